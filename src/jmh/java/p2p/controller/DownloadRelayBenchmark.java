@@ -0,0 +1,106 @@
+package p2p.controller;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.Log;
+
+/**
+ * A full {@code GET /download/{code}} through the API server: HTTP request,
+ * peer socket to the share listener, relay into the response. The 1 MB file
+ * is small enough for the hot file cache; the larger one is sent from disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadRelayBenchmark {
+
+    private static final String BOUNDARY = "peerlinkbenchboundary";
+
+    @Param({ "1048576", "67108864" })
+    int fileSize;
+
+    private FileController controller;
+    private HttpClient client;
+    private URI download;
+    private final byte[] readBuffer = new byte[256 * 1024];
+
+    @Setup
+    public void setUp() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        System.setProperty("peerlink.share.port", "0");
+        controller = new FileController(0);
+        controller.start();
+        client = HttpClient.newHttpClient();
+
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(fileSize + 256);
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+
+        HttpResponse<String> uploaded = client.send(HttpRequest.newBuilder(baseUri("/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Matcher port = Pattern.compile("\"port\": (\\d+)").matcher(uploaded.body());
+        if (uploaded.statusCode() != 200 || !port.find()) {
+            throw new IllegalStateException("Upload failed: " + uploaded.body());
+        }
+        download = baseUri("/download/" + port.group(1));
+    }
+
+    @TearDown
+    public void tearDown() {
+        controller.stop();
+    }
+
+    @Benchmark
+    public long download() throws IOException, InterruptedException {
+        HttpResponse<InputStream> response = client.send(HttpRequest.newBuilder(download).GET().build(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        long received = 0;
+        try (InputStream in = response.body()) {
+            int n;
+            while ((n = in.read(readBuffer)) != -1) {
+                received += n;
+            }
+        }
+        if (response.statusCode() != 200 || received != fileSize) {
+            throw new IllegalStateException("Download returned " + response.statusCode() + " with " + received + " bytes");
+        }
+        return received;
+    }
+
+    private URI baseUri(String path) {
+        return URI.create("http://127.0.0.1:" + controller.getPort() + path);
+    }
+}
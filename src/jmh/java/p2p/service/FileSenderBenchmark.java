@@ -0,0 +1,119 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.Log;
+
+/**
+ * One whole-file transfer by {@link FileSharer.FileSenderHandler} to a
+ * receiver on loopback, per sending strategy. Divide the file size by the
+ * score for MB/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSenderBenchmark {
+
+    @Param({ "1048576", "67108864" })
+    long fileSize;
+
+    @Param({ "transferTo", "streams", "mmap" })
+    String sender;
+
+    private Path dir;
+    private Path file;
+    private MappedShareFile mapping;
+    private ServerSocketChannel server;
+    private ExecutorService senderThread;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(1024 * 1024);
+
+    @Setup
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        dir = Files.createTempDirectory("peerlink-bench");
+        file = dir.resolve("bench.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31);
+            }
+            for (long written = 0; written < fileSize; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, fileSize - written));
+            }
+        }
+        mapping = new MappedShareFile(file);
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        senderThread = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        senderThread.shutdownNow();
+        server.close();
+        mapping.close();
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public long send() throws Exception {
+        Future<?> sending = senderThread.submit(() -> {
+            SocketChannel client = server.accept();
+            newHandler(client).run();
+            return null;
+        });
+        long received = 0;
+        try (SocketChannel receiver = SocketChannel.open(server.getLocalAddress())) {
+            int n;
+            while ((n = receiver.read(receiveBuffer)) != -1) {
+                received += n;
+                receiveBuffer.clear();
+            }
+        }
+        sending.get();
+        if (received < fileSize) {
+            throw new IllegalStateException("Received " + received + " of " + fileSize + " bytes");
+        }
+        return received;
+    }
+
+    private Runnable newHandler(SocketChannel client) {
+        String path = file.toString();
+        switch (sender) {
+            case "streams":
+                return new FileSharer.FileSenderHandler(client.socket(), path, "bench.bin", 0, -1, false);
+            case "mmap":
+                return new FileSharer.FileSenderHandler(client.socket(), path, "bench.bin", 0, -1, mapping);
+            default:
+                return new FileSharer.FileSenderHandler(client.socket(), path, "bench.bin", 0, -1, true);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import p2p.utils.ExecutionMode;
+import p2p.utils.Log;
+import p2p.utils.UploadUtils;
+
+/**
+ * Code generation and share registration with many uploads completing at
+ * once. Every offered share is stopped again so the small code space never
+ * fills up during a run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class ShareCodeBenchmark {
+
+    private Path file;
+    private FileSharer fileSharer;
+
+    @Setup
+    public void setUp() throws IOException {
+        Log.setLevel(Log.Level.WARN);
+        file = Files.createTempFile("peerlink-bench", ".bin");
+        Files.write(file, new byte[1024]);
+        fileSharer = new FileSharer(0, ExecutionMode.VIRTUAL);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        fileSharer.shutdown();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Integer generateCode() {
+        return UploadUtils.generateCode();
+    }
+
+    @Benchmark
+    public int offerFile() {
+        int code = fileSharer.offerFile(file.toString(), "bench.bin");
+        fileSharer.startFileServer(code);
+        fileSharer.stopFileServer(code);
+        return code;
+    }
+}
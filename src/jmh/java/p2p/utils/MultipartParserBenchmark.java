@@ -0,0 +1,159 @@
+package p2p.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Multipart parsing of in-memory bodies, so only the parser is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultipartParserBenchmark {
+
+    static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    /**
+     * A whole upload body. {@code parts} spreads the same bytes over more
+     * files, which moves the boundaries relative to the parser's window.
+     */
+    @State(Scope.Benchmark)
+    public static class Body {
+
+        @Param({ "65536", "1048576", "16777216" })
+        int bodySize;
+
+        @Param({ "1", "16" })
+        int parts;
+
+        byte[] bytes;
+
+        @Setup
+        public void setUp() throws IOException {
+            Random random = new Random(42);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bodySize + parts * 256);
+            byte[] content = new byte[bodySize / parts];
+            for (int i = 0; i < parts; i++) {
+                random.nextBytes(content);
+                out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"part" + i
+                        + ".bin\"\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                out.write(content);
+                out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+            bytes = out.toByteArray();
+        }
+    }
+
+    /**
+     * One 64 KB parser window with the delimiter at its start, middle or
+     * end, or not in it at all (the common case while a file streams past).
+     * The naive search is the nested loop the parser used before
+     * {@link BytePattern}, kept as the baseline.
+     */
+    @State(Scope.Benchmark)
+    public static class Window {
+
+        @Param({ "start", "middle", "end", "absent" })
+        String delimiterAt;
+
+        byte[] bytes;
+        byte[] delimiter;
+        BytePattern pattern;
+
+        @Setup
+        public void setUp() {
+            delimiter = ("\r\n--" + BOUNDARY).getBytes(StandardCharsets.ISO_8859_1);
+            pattern = new BytePattern(delimiter);
+            bytes = new byte[64 * 1024];
+            new Random(42).nextBytes(bytes);
+            int at;
+            switch (delimiterAt) {
+                case "start":
+                    at = 0;
+                    break;
+                case "middle":
+                    at = bytes.length / 2;
+                    break;
+                case "end":
+                    at = bytes.length - delimiter.length;
+                    break;
+                default:
+                    at = -1;
+            }
+            if (at >= 0) {
+                System.arraycopy(delimiter, 0, bytes, at, delimiter.length);
+            }
+        }
+    }
+
+    @Benchmark
+    public void parse(Body body, Blackhole blackhole) throws IOException {
+        new MultipartParser(BOUNDARY, new ConsumingHandler(blackhole)).parse(new ByteArrayInputStream(body.bytes));
+    }
+
+    @Benchmark
+    public int findDelimiterNaive(Window window) {
+        return naiveIndexOf(window.bytes, 0, window.bytes.length, window.delimiter);
+    }
+
+    @Benchmark
+    public int findDelimiterHorspool(Window window) {
+        return window.pattern.indexOf(window.bytes, 0, window.bytes.length);
+    }
+
+    private static int naiveIndexOf(byte[] data, int from, int to, byte[] pattern) {
+        outer:
+        for (int i = from; i <= to - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static class ConsumingHandler implements MultipartParser.PartHandler {
+
+        private final Blackhole blackhole;
+
+        ConsumingHandler(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void startPart(MultipartParser.Part part) {
+            blackhole.consume(part);
+        }
+
+        @Override
+        public void partData(byte[] data, int offset, int length) {
+            blackhole.consume(length);
+        }
+
+        @Override
+        public void endPart() {
+        }
+    }
+}
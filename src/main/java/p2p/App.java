@@ -3,6 +3,8 @@ package p2p;
 import java.io.IOException;
 
 import p2p.controller.FileController;
+import p2p.http.HttpFrontEnd;
+import p2p.utils.Log;
 
 /**
  * PeerLink - P2P File Sharing Application
@@ -13,30 +15,39 @@ public class App {
 
     public static void main(String[] args) {
         try {
-            // Start the API server on port 8080
-            fileController = new FileController(8080);
+            // Start the API server on port 8080 unless -Dpeerlink.http.port says otherwise
+            int port = Integer.getInteger("peerlink.http.port", 8080);
+            fileController = new FileController(port, frontEnd(args));
             fileController.start();
 
-            System.out.println("PeerLink server started on port 8080");
-            System.out.println("UI available at http://localhost:3000");
+            Log.info("server.started", "port", port, "ui", "http://localhost:3000");
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                System.out.println("Shutting down server...");
+                Log.info("server.stopping");
                 if (fileController != null) {
                     fileController.stop();
                 }
             }));
 
-            System.out.println("Press Enter to stop the server");
+            Log.info("server.ready", "stop", "press Enter");
             System.in.read();
 
         } catch (IOException e) {
-            System.err.println("Error starting server: " + e.getMessage());
-            e.printStackTrace();
+            Log.error("server.start.failed", "error", e);
         } finally {
             if (fileController != null) {
                 fileController.stop();
             }
         }
     }
+
+    // --http-server=jdk|nio picks the HTTP front end, overriding -Dpeerlink.http.server
+    private static HttpFrontEnd frontEnd(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--http-server=")) {
+                return HttpFrontEnd.parse(arg.substring("--http-server=".length()));
+            }
+        }
+        return HttpFrontEnd.fromSystemProperties();
+    }
 }
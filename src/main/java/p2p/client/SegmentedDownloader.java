@@ -0,0 +1,265 @@
+package p2p.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import p2p.utils.ExecutionMode;
+import p2p.utils.StreamRelay;
+import p2p.utils.TransferHeader;
+
+/**
+ * Downloads a share over several parallel connections. The file is split into
+ * fixed-size segments; workers pull segments from a shared queue, fetch each
+ * one as a byte range and write it at its offset in a preallocated file.
+ *
+ * The number of connections adapts to the link: it starts small and another
+ * worker is added while each addition still raises aggregate throughput,
+ * up to {@code maxConnections}.
+ */
+public class SegmentedDownloader {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+    public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long SAMPLE_INTERVAL_MILLIS = 500;
+    // A new connection has to add at least this much throughput to keep growing
+    private static final double MIN_GAIN = 1.10;
+
+    private final String host;
+    private final int port;
+    private final int maxConnections;
+    private final long segmentSize;
+
+    public SegmentedDownloader(String host, int port) {
+        this(host, port, DEFAULT_MAX_CONNECTIONS, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public SegmentedDownloader(String host, int port, int maxConnections, long segmentSize) {
+        if (maxConnections < 1 || segmentSize < 1) {
+            throw new IllegalArgumentException("maxConnections and segmentSize must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.segmentSize = segmentSize;
+    }
+
+    public static class Result {
+
+        public final String filename;
+        public final long size;
+        public final int connections;
+        public final long elapsedNanos;
+
+        Result(String filename, long size, int connections, long elapsedNanos) {
+            this.filename = filename;
+            this.size = size;
+            this.connections = connections;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double megabytesPerSecond() {
+            return (size / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+        }
+    }
+
+    public Result download(int code, Path target) throws IOException {
+        long start = System.nanoTime();
+
+        TransferHeader info;
+        try (ShareConnection probe = ShareConnection.open(host, port, code, 0, 0)) {
+            info = probe.header();
+        }
+        long size = info.getLong(TransferHeader.SIZE, -1);
+        if (size < 0) {
+            throw new IOException("Peer did not report the file size");
+        }
+
+        ConcurrentLinkedQueue<Segment> queue = new ConcurrentLinkedQueue<>();
+        for (long offset = 0; offset < size; offset += segmentSize) {
+            queue.add(new Segment(offset, Math.min(segmentSize, size - offset)));
+        }
+        int segments = queue.size();
+
+        AtomicLong received = new AtomicLong();
+        AtomicLong completed = new AtomicLong();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Future<?>> workers = new ArrayList<>();
+
+        ExecutorService executor = ExecutionMode.fromSystemProperties().newExecutor("peerlink-segment", maxConnections);
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // Preallocate so every worker can write at its own offset
+            if (size > 0) {
+                file.write(ByteBuffer.allocate(1), size - 1);
+            }
+
+            Runnable worker = () -> runWorker(code, info, file, queue, received, completed, failure);
+            int initial = Math.min(Math.min(INITIAL_CONNECTIONS, maxConnections), Math.max(1, segments));
+            for (int i = 0; i < initial; i++) {
+                workers.add(executor.submit(worker));
+            }
+
+            // Hill-climb the connection count on measured throughput
+            double lastRate = 0;
+            long lastBytes = 0;
+            boolean growing = true;
+            while (completed.get() < segments && failure.get() == null) {
+                sleep(SAMPLE_INTERVAL_MILLIS);
+                long bytes = received.get();
+                double rate = (bytes - lastBytes) / (double) SAMPLE_INTERVAL_MILLIS;
+                lastBytes = bytes;
+                if (growing && workers.size() < maxConnections && !queue.isEmpty()) {
+                    if (rate > lastRate * MIN_GAIN) {
+                        workers.add(executor.submit(worker));
+                    } else {
+                        growing = false;
+                    }
+                }
+                lastRate = rate;
+                if (allDone(workers)) {
+                    break;
+                }
+            }
+            for (Future<?> future : workers) {
+                waitFor(future);
+            }
+
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+            verify(code, info, file, size, completed.get(), segments);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        String filename = info.get(TransferHeader.FILENAME);
+        return new Result(filename, size, workers.size(), System.nanoTime() - start);
+    }
+
+    private void runWorker(int code, TransferHeader info, FileChannel file, ConcurrentLinkedQueue<Segment> queue,
+            AtomicLong received, AtomicLong completed, AtomicReference<IOException> failure) {
+        Segment segment;
+        while (failure.get() == null && (segment = queue.poll()) != null) {
+            try {
+                fetch(code, info, file, segment, received);
+                completed.incrementAndGet();
+            } catch (IOException e) {
+                if (++segment.attempts >= MAX_ATTEMPTS) {
+                    failure.compareAndSet(null, new IOException("Segment at " + segment.offset + " failed: " + e.getMessage(), e));
+                    return;
+                }
+                // Give the segment to whichever worker is free next
+                queue.add(segment);
+            }
+        }
+    }
+
+    private void fetch(int code, TransferHeader info, FileChannel file, Segment segment, AtomicLong received) throws IOException {
+        try (ShareConnection connection = ShareConnection.open(host, port, code, segment.offset, segment.length)) {
+            // Every segment has to come from the same version of the file
+            if (!Objects.equals(connection.header().get(TransferHeader.ETAG), info.get(TransferHeader.ETAG))
+                    || connection.size() != info.getLong(TransferHeader.SIZE, -1)) {
+                throw new IOException("Shared file changed during download");
+            }
+            // Chunk checksums are verified as the segment streams in; a bad or
+            // short segment fails here and is fetched again
+            long copied = StreamRelay.relay(connection.verifiedInput(), file, segment.offset, segment.length);
+            received.addAndGet(copied);
+            if (copied < segment.length) {
+                throw new IOException("Peer closed after " + copied + " of " + segment.length + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Final integrity check: every segment arrived in full, the file has the
+     * advertised size and the peer still serves the same version.
+     */
+    private void verify(int code, TransferHeader info, FileChannel file, long size, long completed, int segments) throws IOException {
+        if (completed != segments) {
+            throw new IOException("Only " + completed + " of " + segments + " segments completed");
+        }
+        file.force(false);
+        if (file.size() != size) {
+            throw new IOException("Reassembled file is " + file.size() + " bytes, expected " + size);
+        }
+        try (ShareConnection probe = ShareConnection.open(host, port, code, 0, 0)) {
+            if (!Objects.equals(probe.header().get(TransferHeader.ETAG), info.get(TransferHeader.ETAG))) {
+                throw new IOException("Shared file changed during download");
+            }
+        }
+    }
+
+    private static boolean allDone(List<Future<?>> workers) {
+        for (Future<?> future : workers) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void waitFor(Future<?> future) throws IOException {
+        try {
+            future.get(1, TimeUnit.HOURS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        } catch (Exception e) {
+            throw new IOException("Segment worker failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        }
+    }
+
+    private static class Segment {
+
+        final long offset;
+        final long length;
+        int attempts;
+
+        Segment(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Command line entry point:
+     * {@code SegmentedDownloader <host> <sharePort> <code> <target> [maxConnections]}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: SegmentedDownloader <host> <sharePort> <code> <target> [maxConnections]");
+            System.exit(2);
+        }
+        int maxConnections = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_MAX_CONNECTIONS;
+        SegmentedDownloader downloader = new SegmentedDownloader(args[0], Integer.parseInt(args[1]), maxConnections, DEFAULT_SEGMENT_SIZE);
+        Result result = downloader.download(Integer.parseInt(args[2]), Paths.get(args[3]));
+        System.out.printf("Downloaded '%s' (%d bytes) over %d connections at %.1f MB/s%n",
+                result.filename, result.size, result.connections, result.megabytesPerSecond());
+    }
+}
@@ -0,0 +1,195 @@
+package p2p.client;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Base64;
+
+import p2p.utils.ChunkChecksums;
+import p2p.utils.Compression;
+import p2p.utils.TransferHeader;
+import p2p.utils.VerifyingInputStream;
+
+/**
+ * Client side of the peer socket protocol: one request for a byte range of a
+ * share, answered by a header block and the requested bytes.
+ */
+public class ShareConnection implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+    private static final int READ_TIMEOUT_MILLIS = 600000; // 10 minutes
+
+    private final Socket socket;
+    private final InputStream input;
+    private final TransferHeader header;
+
+    private ShareConnection(Socket socket, InputStream input, TransferHeader header) {
+        this.socket = socket;
+        this.input = input;
+        this.header = header;
+    }
+
+    /**
+     * Requests {@code length} bytes of the share starting at {@code offset}. A
+     * negative length asks for everything up to the end of the file and a zero
+     * length only fetches the header.
+     *
+     * @throws FileNotFoundException if the peer does not know the code
+     */
+    public static ShareConnection open(String host, int port, int code, long offset, long length) throws IOException {
+        return open(host, port, code, offset, length, null);
+    }
+
+    /**
+     * Like {@link #open(String, int, int, long, long)}, offering the codings in
+     * {@code acceptEncoding} (an Accept-Encoding list) for the body. Whether
+     * one was chosen is told by {@link #encoding()}.
+     */
+    public static ShareConnection open(String host, int port, int code, long offset, long length, String acceptEncoding) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setReceiveBufferSize(1024 * 1024); // 1MB receive buffer
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+
+            TransferHeader request = new TransferHeader().set(TransferHeader.CODE, code);
+            if (offset > 0) {
+                request.set(TransferHeader.OFFSET, offset);
+            }
+            if (length >= 0) {
+                request.set(TransferHeader.LENGTH, length);
+            }
+            if (acceptEncoding != null) {
+                request.set(TransferHeader.ACCEPT_ENCODING, acceptEncoding);
+            }
+            OutputStream out = socket.getOutputStream();
+            request.writeTo(out);
+            out.flush();
+
+            // Small buffer for the header; body reads are large enough to bypass it
+            InputStream input = new BufferedInputStream(socket.getInputStream(), 8192);
+            TransferHeader header = TransferHeader.readFrom(input);
+            if (header.get(TransferHeader.ERROR) != null) {
+                throw new FileNotFoundException(header.get(TransferHeader.ERROR));
+            }
+            return new ShareConnection(socket, input, header);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public TransferHeader header() {
+        return header;
+    }
+
+    public String filename() {
+        String filename = header.get(TransferHeader.FILENAME);
+        return filename != null ? filename : "downloaded-file";
+    }
+
+    /**
+     * Total size of the shared file, or -1 if the peer did not say.
+     */
+    public long size() {
+        return header.getLong(TransferHeader.SIZE, -1);
+    }
+
+    /**
+     * Number of body bytes that follow the header, or -1 if unknown.
+     */
+    public long length() {
+        return header.getLong(TransferHeader.LENGTH, -1);
+    }
+
+    /**
+     * Coding applied to the body, or null if it is sent as is.
+     */
+    public String encoding() {
+        return header.get(TransferHeader.ENCODING);
+    }
+
+    /**
+     * True if the file is still uploading, so the body may pause while the
+     * uploader does.
+     */
+    public boolean isLive() {
+        return "true".equals(header.get(TransferHeader.LIVE));
+    }
+
+    /**
+     * The body exactly as sent, still encoded if {@link #encoding()} is set.
+     */
+    public InputStream input() {
+        return input;
+    }
+
+    /**
+     * The body, checked while it is read: a stream that ends early or fails
+     * the peer's chunk checksums or whole-file SHA-256 throws instead of
+     * returning bad data. Encoded bodies are returned as sent, with the
+     * checks applied to the bytes they decode to and the coding's own trailer
+     * checked as well.
+     */
+    public InputStream verifiedInput() throws IOException {
+        long offset = header.getLong(TransferHeader.OFFSET, 0);
+        long length = length();
+        long size = size();
+        if (length < 0 || size < 0) {
+            return input;
+        }
+        VerifyingInputStream verified = new VerifyingInputStream(input, offset, length, size);
+        String checksums = header.get(TransferHeader.CHUNK_CRC32C);
+        if (checksums != null) {
+            verified.expectChunks(ChunkChecksums.fromHeader(checksums));
+        }
+        byte[] sha256 = sha256();
+        if (sha256 != null) {
+            verified.expectSha256(sha256);
+        }
+        String encoding = encoding();
+        if (encoding != null) {
+            return verified.encodedAs(encoding, header.getLong(TransferHeader.ENCODED_LENGTH, -1));
+        }
+        return verified;
+    }
+
+    /**
+     * SHA-256 of the whole file from the Digest field, or null if not sent.
+     */
+    public byte[] sha256() {
+        String digest = header.get(TransferHeader.DIGEST);
+        if (digest == null) {
+            return null;
+        }
+        for (String entry : digest.split(",")) {
+            String value = entry.trim();
+            if (value.regionMatches(true, 0, "sha-256=", 0, 8)) {
+                try {
+                    return Base64.getDecoder().decode(value.substring(8));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The body with any coding removed.
+     */
+    public InputStream decodedInput() throws IOException {
+        String encoding = encoding();
+        return encoding != null ? Compression.decoder(encoding, input) : input;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,107 @@
+package p2p.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This node's view of a statically configured cluster. Nodes create shares
+ * only under invite codes the {@link ClusterRing} assigns to themselves, so
+ * any node can tell where a code lives. A download for a code owned elsewhere
+ * is relayed from the owner's share listener or redirected there.
+ *
+ * With replication on, a node that has relayed a share often enough keeps
+ * its own copy and serves it directly from then on.
+ */
+public class Cluster {
+
+    public enum Routing {
+        PROXY,
+        REDIRECT
+    }
+
+    private final ClusterRing ring;
+    private final ClusterNode self;
+    private final Routing routing;
+    private final int replicateAfter;
+    private final Map<Integer, AtomicInteger> relayed = new ConcurrentHashMap<>();
+    private final Map<Integer, Boolean> replicating = new ConcurrentHashMap<>();
+
+    /**
+     * @param replicateAfter full downloads relayed before a local copy is made, 0 to never replicate
+     */
+    public Cluster(ClusterRing ring, ClusterNode self, Routing routing, int replicateAfter) {
+        if (!ring.nodes().contains(self)) {
+            throw new IllegalArgumentException("This node " + self + " is not in the peer list");
+        }
+        this.ring = ring;
+        this.self = self;
+        this.routing = routing;
+        this.replicateAfter = replicateAfter;
+    }
+
+    /**
+     * Configured by {@code peerlink.cluster.peers} (comma separated
+     * {@code host:httpPort:sharePort}, this node included),
+     * {@code peerlink.cluster.self}, {@code peerlink.cluster.routing}
+     * ({@code proxy} or {@code redirect}) and
+     * {@code peerlink.cluster.replicateAfter}. Returns null when no peers are
+     * configured.
+     */
+    public static Cluster fromSystemProperties() {
+        String peers = System.getProperty("peerlink.cluster.peers", "").trim();
+        if (peers.isEmpty()) {
+            return null;
+        }
+        String selfSpec = System.getProperty("peerlink.cluster.self");
+        if (selfSpec == null) {
+            throw new IllegalArgumentException("peerlink.cluster.self must name this node");
+        }
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (String spec : peers.split(",")) {
+            nodes.add(ClusterNode.parse(spec));
+        }
+        Routing routing = Routing.valueOf(System.getProperty("peerlink.cluster.routing", "proxy").toUpperCase(Locale.ROOT));
+        return new Cluster(new ClusterRing(nodes), ClusterNode.parse(selfSpec), routing,
+                Integer.getInteger("peerlink.cluster.replicateAfter", 0));
+    }
+
+    public ClusterNode self() {
+        return self;
+    }
+
+    public Routing routing() {
+        return routing;
+    }
+
+    public ClusterNode owner(int code) {
+        return ring.owner(code);
+    }
+
+    public boolean owns(int code) {
+        return ring.owner(code).equals(self);
+    }
+
+    /**
+     * Counts a full download relayed from another node. Returns true, once,
+     * when the share has become popular enough to copy here.
+     */
+    public boolean relayedDownload(int code) {
+        if (replicateAfter <= 0) {
+            return false;
+        }
+        int count = relayed.computeIfAbsent(code, key -> new AtomicInteger()).incrementAndGet();
+        return count >= replicateAfter && replicating.putIfAbsent(code, Boolean.TRUE) == null;
+    }
+
+    /**
+     * Forgets a share's relay count, e.g. after its replica was made or dropped.
+     */
+    public void forget(int code) {
+        relayed.remove(code);
+        replicating.remove(code);
+    }
+}
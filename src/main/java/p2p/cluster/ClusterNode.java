@@ -0,0 +1,49 @@
+package p2p.cluster;
+
+/**
+ * One backend instance: where its HTTP API and its share listener are.
+ * Written {@code host:httpPort:sharePort} in the peer list.
+ */
+public final class ClusterNode {
+
+    public final String host;
+    public final int httpPort;
+    public final int sharePort;
+
+    public ClusterNode(String host, int httpPort, int sharePort) {
+        this.host = host;
+        this.httpPort = httpPort;
+        this.sharePort = sharePort;
+    }
+
+    public static ClusterNode parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        if (parts.length != 3 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("Expected host:httpPort:sharePort, got " + spec);
+        }
+        return new ClusterNode(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+    }
+
+    public String httpUrl(String path) {
+        return "http://" + host + ":" + httpPort + path;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ClusterNode)) {
+            return false;
+        }
+        ClusterNode node = (ClusterNode) other;
+        return host.equals(node.host) && httpPort == node.httpPort && sharePort == node.sharePort;
+    }
+
+    @Override
+    public int hashCode() {
+        return (host.hashCode() * 31 + httpPort) * 31 + sharePort;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + httpPort + ":" + sharePort;
+    }
+}
@@ -0,0 +1,74 @@
+package p2p.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of invite codes onto nodes. Each node is placed on the
+ * ring at many points, so codes spread evenly and adding or removing a node
+ * only moves the codes next to its points.
+ *
+ * Every node builds the same ring from the same peer list, so they agree on
+ * each code's owner without talking to each other.
+ */
+public final class ClusterRing {
+
+    static final int POINTS_PER_NODE = 128;
+
+    private final TreeMap<Long, ClusterNode> ring = new TreeMap<>();
+    private final List<ClusterNode> nodes;
+
+    public ClusterRing(Collection<ClusterNode> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node");
+        }
+        this.nodes = List.copyOf(nodes);
+        MessageDigest md5 = md5();
+        for (ClusterNode node : this.nodes) {
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                byte[] hash = md5.digest((node + "#" + i).getBytes(StandardCharsets.UTF_8));
+                ring.put(toLong(hash), node);
+            }
+        }
+    }
+
+    public List<ClusterNode> nodes() {
+        return nodes;
+    }
+
+    public ClusterNode owner(int code) {
+        Map.Entry<Long, ClusterNode> entry = ring.ceilingEntry(mix(code));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    // Codes only fill the low 31 bits of the 64-bit ring; spread them over all of it
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static long toLong(byte[] hash) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (hash[i] & 0xff);
+        }
+        return value;
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
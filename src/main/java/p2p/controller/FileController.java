@@ -1,67 +1,175 @@
 package p2p.controller;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import org.apache.commons.io.IOUtils;
 
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
+import p2p.client.ShareConnection;
+import p2p.cluster.Cluster;
+import p2p.cluster.ClusterNode;
+import p2p.http.HttpFrontEnd;
+import p2p.service.AdmissionControl;
+import p2p.service.BandwidthShaper;
+import p2p.service.BlobStore;
+import p2p.service.ChunkedUploadManager;
 import p2p.service.FileSharer;
+import p2p.service.ShareArchive;
+import p2p.service.ShareIndex;
+import p2p.service.ShareLimits;
+import p2p.utils.ByteRange;
+import p2p.utils.ContentTypes;
+import p2p.utils.ExecutionMode;
+import p2p.utils.Log;
+import p2p.utils.Metrics;
+import p2p.utils.MultipartParser;
+import p2p.utils.StreamRelay;
+import p2p.utils.TransferHeader;
 
 public class FileController {
 
     private final FileSharer fileSharer;
+    private final ChunkedUploadManager chunkedUploads;
+    private final BlobStore blobStore;
     private final HttpServer server;
     private final String uploadDir;
     private final ExecutorService executorService;
-
+    private final ExecutionMode executionMode;
+    private final AdmissionControl admission;
+    // Null when this node runs on its own
+    private final Cluster cluster;
+
+    /**
+     * Configured from system properties: {@code peerlink.share.port},
+     * {@code peerlink.storage.dir} (peerlink-uploads in the temp directory
+     * unless set), {@code peerlink.http.server}, {@code peerlink.admin.token}
+     * and the {@code peerlink.cluster.*} settings.
+     */
     public FileController(int port) throws IOException {
-        this.fileSharer = new FileSharer();
-        this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
+        this(port, HttpFrontEnd.fromSystemProperties());
+    }
+
+    public FileController(int port, HttpFrontEnd frontEnd) throws IOException {
+        this(port, Integer.getInteger("peerlink.share.port", FileSharer.DEFAULT_PORT),
+                System.getProperty("peerlink.storage.dir",
+                        System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads"),
+                Cluster.fromSystemProperties(), frontEnd);
+    }
+
+    public FileController(int port, int sharePort, String uploadDir, Cluster cluster) throws IOException {
+        this(port, sharePort, uploadDir, cluster, HttpFrontEnd.JDK);
+    }
+
+    public FileController(int port, int sharePort, String uploadDir, Cluster cluster, HttpFrontEnd frontEnd)
+            throws IOException {
+        this.executionMode = ExecutionMode.fromSystemProperties();
+        this.fileSharer = new FileSharer(sharePort, executionMode);
+        this.chunkedUploads = new ChunkedUploadManager();
+        // Abandoned uploads are dropped even if no new one comes along
+        fileSharer.getLifecycle().onSweep(chunkedUploads::expireIdleSessions);
+        this.server = frontEnd.create(new InetSocketAddress(port));
+        this.uploadDir = uploadDir;
+        this.cluster = cluster;
+        if (cluster != null) {
+            // New codes are drawn from this node's part of the ring
+            fileSharer.setCodeFilter(cluster::owns);
+        }
+        // Virtual threads by default so long transfers don't exhaust a small pool
+        this.executorService = executionMode.newExecutor("peerlink-http", Integer.getInteger("peerlink.http.threads", 10));
 
         File uploadDirFile = new File(uploadDir);
         if (!uploadDirFile.exists()) {
             uploadDirFile.mkdirs();
         }
+        // Identical uploads share one blob on disk
+        this.blobStore = new BlobStore(uploadDirFile.toPath());
+        this.admission = AdmissionControl.fromSystemProperties();
+        admission.setFreeSpace(uploadDirFile::getUsableSpace);
+        // Invite codes of stored files survive a restart unless -Dpeerlink.index=false
+        if (Boolean.parseBoolean(System.getProperty("peerlink.index", "true"))) {
+            try {
+                fileSharer.restore(ShareIndex.open(uploadDirFile.toPath().resolve("index")), blobStore);
+            } catch (IOException e) {
+                Log.error("index.unavailable", "error", e);
+            }
+        }
 
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
+        // Transfers are admitted before their handler runs; the other endpoints are never held back
+        AdmissionFilter admissionFilter = new AdmissionFilter();
+        server.createContext("/upload", new UploadHandler()).getFilters().add(admissionFilter);
+        server.createContext("/upload/", new ChunkedUploadHandler()).getFilters().add(admissionFilter);
+        server.createContext("/download", new DownloadHandler()).getFilters().add(admissionFilter);
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/bandwidth", new BandwidthHandler());
         server.createContext("/", new CORSHandler());
 
         // Increase executor thread pool and timeout for large files
         server.setExecutor(executorService);
+        Metrics.executorQueue("http", executorService);
+        registerAdmissionMetrics();
+    }
 
-        // Set system properties for large file handling
-        System.setProperty("sun.net.httpserver.maxReqTime", "600"); // 10 minutes
-        System.setProperty("sun.net.httpserver.maxRspTime", "600"); // 10 minutes
+    private void registerAdmissionMetrics() {
+        for (AdmissionControl.Direction direction : AdmissionControl.Direction.values()) {
+            String label = "direction=\"" + direction.name().toLowerCase(Locale.ROOT) + "\"";
+            Metrics.gauge("peerlink_admission_active{" + label + "}", "Transfers admitted and running.",
+                    () -> admission.active(direction));
+            Metrics.gauge("peerlink_admission_queued{" + label + "}", "Transfers waiting to be admitted.",
+                    () -> admission.queued(direction));
+            for (AdmissionControl.Reason reason : AdmissionControl.Reason.values()) {
+                Metrics.counter("peerlink_admission_rejected_total{" + label + ",reason=\""
+                        + reason.name().toLowerCase(Locale.ROOT) + "\"}", "Transfers turned away by admission control.",
+                        () -> admission.rejected(direction, reason));
+            }
+        }
+        Metrics.gauge("peerlink_admission_upload_bytes", "Announced bytes of admitted uploads.",
+                admission::uploadBytesInFlight);
+        Metrics.counter("peerlink_admission_stalled_total", "Transfers aborted for falling below the minimum rate.",
+                admission::stalledCount);
     }
 
-    public void start() {
+    public void start() throws IOException {
+        fileSharer.start();
+        admission.start();
         server.start();
-        System.out.println("API server started on port " + server.getAddress().getPort());
+        Log.info("api.started", "port", server.getAddress().getPort(), "threads", executionMode,
+                "cluster", cluster != null ? cluster.self() : "off");
+    }
+
+    /**
+     * Port the API server is bound to; useful when it was created with port 0.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
     }
 
     public void stop() {
         server.stop(0);
         fileSharer.shutdown(); // Add this line
+        chunkedUploads.shutdown();
+        admission.shutdown();
         executorService.shutdown();
         try {
             if (!executorService.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS)) {
@@ -71,7 +179,81 @@ public class FileController {
             executorService.shutdownNow();
             Thread.currentThread().interrupt();
         }
-        System.out.println("API server stopped");
+        Log.info("api.stopped");
+    }
+
+    /**
+     * Admission control for transfers: file uploads, chunk uploads and
+     * downloads. A transfer that cannot be admitted is answered at once,
+     * without its body being read: 503 with Retry-After when the node is
+     * busy, 413 when the upload is too large, 507 when it would not fit on
+     * disk. With a request size limit set, uploads must announce their
+     * length.
+     */
+    private class AdmissionFilter extends Filter {
+
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            AdmissionControl.Direction direction = transferDirection(exchange);
+            if (direction == null) {
+                chain.doFilter(exchange);
+                return;
+            }
+            long length = requestLength(exchange);
+            if (direction == AdmissionControl.Direction.UPLOAD && length < 0 && admission.maxRequestBytes() > 0) {
+                rejectWith(exchange, 411, "Length Required");
+                return;
+            }
+            AdmissionControl.Ticket ticket;
+            try {
+                ticket = admission.admit(direction, direction == AdmissionControl.Direction.UPLOAD ? length : -1);
+            } catch (AdmissionControl.RejectedException e) {
+                Log.debug("admission.rejected", "direction", e.direction, "reason", e.reason, "length", length);
+                switch (e.reason) {
+                    case TOO_LARGE:
+                        rejectWith(exchange, 413, "Payload Too Large: uploads are limited to "
+                                + admission.maxRequestBytes() + " bytes");
+                        break;
+                    case INSUFFICIENT_STORAGE:
+                        rejectWith(exchange, 507, "Insufficient Storage");
+                        break;
+                    default:
+                        exchange.getResponseHeaders().add("Retry-After", String.valueOf(admission.retryAfterSeconds()));
+                        rejectWith(exchange, 503, "Service Unavailable: too many transfers, retry later");
+                }
+                return;
+            }
+            try (ticket) {
+                exchange.setStreams(ticket.wrap(exchange.getRequestBody()), ticket.wrap(exchange.getResponseBody()));
+                chain.doFilter(exchange);
+            }
+        }
+
+        @Override
+        public String description() {
+            return "Admission control for uploads and downloads";
+        }
+
+        private AdmissionControl.Direction transferDirection(HttpExchange exchange) {
+            String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith("/download")) {
+                return method.equals("GET") ? AdmissionControl.Direction.DOWNLOAD : null;
+            }
+            boolean chunk = path.startsWith("/upload/") && path.contains("/chunk/");
+            if ((path.equals("/upload") && method.equals("POST"))
+                    || (chunk && (method.equals("PUT") || method.equals("POST")))) {
+                return AdmissionControl.Direction.UPLOAD;
+            }
+            return null;
+        }
+
+        private void rejectWith(HttpExchange exchange, int status, String message) throws IOException {
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            // The unread body is not worth draining
+            exchange.getResponseHeaders().add("Connection", "close");
+            sendResponse(exchange, status, "text/plain", message);
+        }
     }
 
     private class CORSHandler implements HttpHandler {
@@ -80,8 +262,8 @@ public class FileController {
         public void handle(HttpExchange exchange) throws IOException {
             Headers headers = exchange.getResponseHeaders();
             headers.add("Access-Control-Allow-Origin", "*");
-            headers.add("Access-Control-Allow-Methods", "GET, POST, OPTIONS");
-            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+            headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+            headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization,Range,If-Range");
 
             if (exchange.getRequestMethod().equalsIgnoreCase("OPTIONS")) {
                 exchange.sendResponseHeaders(204, -1);
@@ -96,97 +278,132 @@ public class FileController {
         }
     }
 
-    private static class MultipartParser {
+    /**
+     * Prometheus scrape endpoint.
+     */
+    private static class MetricsHandler implements HttpHandler {
 
-        private final byte[] data;
-        private final String boundary;
-
-        public MultipartParser(byte[] data, String boundary) {
-            this.data = data;
-            this.boundary = boundary;
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                sendResponse(exchange, 405, "text/plain", "Method Not Allowed");
+                return;
+            }
+            sendResponse(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", Metrics.toPrometheus());
         }
+    }
 
-        public ParseResult parse() {
-            try {
-                String dataAsString = new String(data);
-
-                String filenameMarker = "filename=\"";
-                int filenameStart = dataAsString.indexOf(filenameMarker);
-                if (filenameStart == -1) {
-                    return null;
-                }
-
-                filenameStart += filenameMarker.length();
-                int filenameEnd = dataAsString.indexOf("\"", filenameStart);
-                String filename = dataAsString.substring(filenameStart, filenameEnd);
-
-                String contentTypeMarker = "Content-Type: ";
-                int contentTypeStart = dataAsString.indexOf(contentTypeMarker, filenameEnd);
-                String contentType = "application/octet-stream"; // Default
+    /**
+     * Reads and changes bandwidth limits at runtime, all in KB/s with 0 for
+     * unlimited:
+     *
+     * <pre>
+     * GET  /bandwidth                                        -&gt; node-wide limits
+     * POST /bandwidth?send=&amp;receive=&amp;transfer=&amp;share=&amp;small=  -&gt; change any of them
+     * GET  /bandwidth?code=N                                 -&gt; one share's limit and weight
+     * POST /bandwidth?code=N[&amp;rate=R][&amp;weight=W]              -&gt; rate -1 restores the default
+     * </pre>
+     *
+     * Changes are only taken from this host, or from anywhere with
+     * {@code Authorization: Bearer <token>} matching the
+     * {@code peerlink.admin.token} property. Browsers get no CORS headers
+     * here, and a request a browser sent for another site's page (one with
+     * an {@code Origin}) counts as remote even from this host.
+     */
+    private class BandwidthHandler implements HttpHandler {
+
+        private final byte[] adminToken = adminToken();
 
-                if (contentTypeStart != -1) {
-                    contentTypeStart += contentTypeMarker.length();
-                    int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+            BandwidthShaper shaper = fileSharer.getShaper();
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            try {
+                boolean update = method.equals("POST") || method.equals("PUT");
+                if (!update && !method.equals("GET")) {
+                    sendResponse(exchange, 405, "text/plain", "Method Not Allowed");
+                    return;
                 }
-
-                String headerEndMarker = "\r\n\r\n";
-                int headerEnd = dataAsString.indexOf(headerEndMarker);
-                if (headerEnd == -1) {
-                    return null;
+                if (update && !mayChangeLimits(exchange)) {
+                    Log.warn("bandwidth.denied", "client", exchange.getRemoteAddress());
+                    sendResponse(exchange, 403, "text/plain", "Forbidden");
+                    return;
                 }
-
-                int contentStart = headerEnd + headerEndMarker.length();
-
-                byte[] boundaryBytes = ("\r\n--" + boundary + "--").getBytes();
-                int contentEnd = findSequence(data, boundaryBytes, contentStart);
-
-                if (contentEnd == -1) {
-                    boundaryBytes = ("\r\n--" + boundary).getBytes();
-                    contentEnd = findSequence(data, boundaryBytes, contentStart);
+                if (update) {
+                    if (query.containsKey("send")) {
+                        shaper.setSendRate(Long.parseLong(query.get("send")) * 1024);
+                    }
+                    if (query.containsKey("receive")) {
+                        shaper.setReceiveRate(Long.parseLong(query.get("receive")) * 1024);
+                    }
+                    if (query.containsKey("transfer")) {
+                        shaper.setTransferRate(Long.parseLong(query.get("transfer")) * 1024);
+                    }
+                    if (query.containsKey("share")) {
+                        shaper.setShareRate(Long.parseLong(query.get("share")) * 1024);
+                    }
+                    if (query.containsKey("small")) {
+                        shaper.setSmallTransfer(Long.parseLong(query.get("small")) * 1024);
+                    }
+                    Log.info("bandwidth.changed", "send", shaper.sendRate(), "receive", shaper.receiveRate(),
+                            "transfer", shaper.transferRate(), "share", shaper.shareRate());
                 }
-
-                if (contentEnd == -1 || contentEnd <= contentStart) {
-                    return null;
+                if (query.containsKey("code")) {
+                    int code = Integer.parseInt(query.get("code"));
+                    // Settings are kept per share until it stops; unknown codes would never be dropped
+                    if (!fileSharer.hasShare(code)) {
+                        sendResponse(exchange, 404, "text/plain", "No share with code " + code);
+                        return;
+                    }
+                    if (update && query.containsKey("rate")) {
+                        long rate = Long.parseLong(query.get("rate"));
+                        shaper.setShareRate(code, rate < 0 ? -1 : rate * 1024);
+                    }
+                    if (update && query.containsKey("weight")) {
+                        shaper.setShareWeight(code, Integer.parseInt(query.get("weight")));
+                    }
+                    if (update && !fileSharer.hasShare(code)) {
+                        // Stopped meanwhile, after its settings were forgotten
+                        shaper.forgetShare(code);
+                    }
+                    sendResponse(exchange, 200, "application/json", "{\"code\": " + code + ", \"rateKBps\": "
+                            + shaper.shareRate(code) / 1024 + ", \"weight\": " + shaper.shareWeight(code) + "}");
+                    return;
                 }
-
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
-
-                return new ParseResult(filename, contentType, fileContent);
-            } catch (Exception e) {
-                System.err.println("Error parsing multipart data: " + e.getMessage());
-                return null;
+                sendResponse(exchange, 200, "application/json", "{\"sendKBps\": " + shaper.sendRate() / 1024
+                        + ", \"receiveKBps\": " + shaper.receiveRate() / 1024 + ", \"transferKBps\": "
+                        + shaper.transferRate() / 1024 + ", \"shareKBps\": " + shaper.shareRate() / 1024
+                        + ", \"smallKB\": " + shaper.smallTransfer() / 1024 + "}");
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException included
+                sendResponse(exchange, 400, "text/plain", "Bad Request: " + e.getMessage());
             }
         }
 
-        private int findSequence(byte[] data, byte[] sequence, int startPos) {
-            outer:
-            for (int i = startPos; i <= data.length - sequence.length; i++) {
-                for (int j = 0; j < sequence.length; j++) {
-                    if (data[i + j] != sequence[j]) {
-                        continue outer;
-                    }
-                }
-                return i;
+        private boolean mayChangeLimits(HttpExchange exchange) {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (adminToken != null && authorization != null && authorization.startsWith("Bearer ")) {
+                byte[] presented = authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8);
+                return MessageDigest.isEqual(presented, adminToken);
             }
-            return -1;
+            InetSocketAddress remote = exchange.getRemoteAddress();
+            return remote != null && remote.getAddress() != null && remote.getAddress().isLoopbackAddress()
+                    && exchange.getRequestHeaders().getFirst("Origin") == null;
         }
 
-        public static class ParseResult {
-
-            public final String filename;
-            public final String contentType;
-            public final byte[] fileContent;
-
-            public ParseResult(String filename, String contentType, byte[] fileContent) {
-                this.filename = filename;
-                this.contentType = contentType;
-                this.fileContent = fileContent;
-            }
+        private byte[] adminToken() {
+            String token = System.getProperty("peerlink.admin.token", "");
+            return token.isBlank() ? null : token.trim().getBytes(StandardCharsets.UTF_8);
         }
     }
 
+    /**
+     * Multipart upload of one or more files, each shared under its own code.
+     * With {@code archive} (or {@code archive=name.zip}) they are shared
+     * together under one code and downloaded as a zip that keeps the
+     * uploaded folder structure.
+     */
     private class UploadHandler implements HttpHandler {
 
         @Override
@@ -215,66 +432,552 @@ public class FileController {
                 return;
             }
 
-            try {
-                String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
-
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IOUtils.copy(exchange.getRequestBody(), baos);
-                byte[] requestData = baos.toByteArray();
+            String boundary = MultipartParser.extractBoundary(contentType);
+            if (boundary == null) {
+                String response = "Bad Request: Missing multipart boundary";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
 
-                MultipartParser parser = new MultipartParser(requestData, boundary);
-                MultipartParser.ParseResult result = parser.parse();
+            // Checked before the body is read, which may be gigabytes
+            ShareLimits limits;
+            try {
+                limits = requestedLimits(exchange);
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, "text/plain", "Bad Request: " + e.getMessage());
+                return;
+            }
 
-                if (result == null) {
-                    String response = "Bad Request: Could not parse file content";
-                    exchange.sendResponseHeaders(400, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
-                    }
-                    return;
+            UploadedFilesWriter writer = new UploadedFilesWriter();
+            long started = Metrics.UPLOADS.start();
+            boolean parsed = false;
+            try {
+                // Parts are streamed straight from the request body to disk
+                try (InputStream body = fileSharer.getShaper().receiving(requestLength(exchange)).wrap(exchange.getRequestBody())) {
+                    new MultipartParser(boundary, writer).parse(body);
                 }
-
-                String originalFilename = result.filename;
-                if (originalFilename == null || originalFilename.trim().isEmpty()) {
-                    originalFilename = "unnamed-file";
+                parsed = true;
+            } catch (MultipartParser.MultipartException e) {
+                writer.discard();
+                String response = "Bad Request: Could not parse file content";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            } catch (Exception e) {
+                writer.discard();
+                Log.warn("upload.failed", "error", e);
+                String response = "Server error: " + e.getMessage();
+                exchange.sendResponseHeaders(500, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
                 }
+                return;
+            } finally {
+                Metrics.UPLOADS.finish(started, parsed);
+            }
 
-                // Create unique filename while preserving original name and extension
-                String fileExtension = "";
-                String baseName = originalFilename;
-                int lastDotIndex = originalFilename.lastIndexOf('.');
-                if (lastDotIndex > 0 && lastDotIndex < originalFilename.length() - 1) {
-                    fileExtension = originalFilename.substring(lastDotIndex);
-                    baseName = originalFilename.substring(0, lastDotIndex);
+            if (writer.files.isEmpty()) {
+                String response = "Bad Request: Could not parse file content";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
                 }
+                return;
+            }
 
-                String uniqueFilename = UUID.randomUUID().toString() + "_" + baseName + fileExtension;
-                String filePath = uploadDir + File.separator + uniqueFilename;
+            String archive = parseQuery(exchange.getRequestURI().getRawQuery()).get("archive");
+            if (archive != null) {
+                shareArchive(exchange, writer, archive, limits);
+                return;
+            }
+
+            StringBuilder filesJson = new StringBuilder();
+            int firstPort = -1;
+            for (UploadedFile file : writer.files) {
+                int code = fileSharer.offerFile(file.blob, file.originalFilename, limits); // Pass original filename
 
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(result.fileContent);
+                fileSharer.startFileServer(code);
+
+                if (firstPort == -1) {
+                    firstPort = code;
+                } else {
+                    filesJson.append(", ");
                 }
+                filesJson.append("{\"port\": ").append(code)
+                        .append(", \"filename\": \"").append(escapeJson(file.originalFilename)).append("\"}");
+            }
+
+            // "port" is kept for single-file clients, "files" lists every uploaded part
+            byte[] jsonResponse = ("{\"port\": " + firstPort + ", \"files\": [" + filesJson + "]}").getBytes(StandardCharsets.UTF_8);
+            headers.add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, jsonResponse.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(jsonResponse);
+            }
+        }
+
+        /**
+         * Shares every uploaded file under one code as a zip archive, keeping
+         * the folder structure the browser sent.
+         */
+        private void shareArchive(HttpExchange exchange, UploadedFilesWriter writer, String requestedName, ShareLimits limits)
+                throws IOException {
+            List<String> paths = new ArrayList<>();
+            List<BlobStore.Blob> blobs = new ArrayList<>();
+            for (UploadedFile file : writer.files) {
+                paths.add(file.path);
+                blobs.add(file.blob);
+            }
+            ShareArchive archive;
+            try {
+                archive = ShareArchive.create(blobStore, paths, blobs);
+            } catch (IOException | IllegalArgumentException e) {
+                writer.discard();
+                Log.warn("upload.archive.failed", "files", paths.size(), "error", e);
+                sendResponse(exchange, 500, "text/plain", "Server error: " + e.getMessage());
+                return;
+            }
+            String name = archiveName(requestedName, paths);
+            int code = fileSharer.offerArchive(archive, name, limits);
+            fileSharer.startFileServer(code);
+            sendResponse(exchange, 200, "application/json", "{\"port\": " + code + ", \"filename\": \"" + escapeJson(name)
+                    + "\", \"entries\": " + archive.entryCount() + ", \"size\": " + archive.size() + "}");
+        }
+    }
 
-                int port = fileSharer.offerFile(filePath, originalFilename); // Pass original filename
+    /**
+     * The name asked for with {@code archive=name}, otherwise the folder all
+     * files were uploaded from, with ".zip" appended.
+     */
+    private static String archiveName(String requested, List<String> paths) {
+        String name = requested.trim();
+        int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        name = name.substring(slash + 1);
+        if (name.isEmpty() || name.equalsIgnoreCase("true") || name.equals("1")) {
+            name = commonFolder(paths);
+        }
+        return name.toLowerCase(Locale.ROOT).endsWith(".zip") ? name : name + ".zip";
+    }
 
-                new Thread(() -> fileSharer.startFileServer(port)).start();
+    private static String commonFolder(List<String> paths) {
+        String folder = null;
+        for (String path : paths) {
+            int slash = path.indexOf('/');
+            String first = slash > 0 ? path.substring(0, slash) : null;
+            if (first == null || (folder != null && !folder.equals(first))) {
+                return "files";
+            }
+            folder = first;
+        }
+        return folder != null ? folder : "files";
+    }
 
-                String jsonResponse = "{\"port\": " + port + "}";
-                headers.add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(jsonResponse.getBytes());
+    private static class UploadedFile {
+
+        final BlobStore.Blob blob;
+        final String originalFilename;
+        // Relative path within an uploaded folder; the filename otherwise
+        final String path;
+
+        UploadedFile(BlobStore.Blob blob, String originalFilename, String path) {
+            this.blob = blob;
+            this.originalFilename = originalFilename;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Streams every file part of a multipart body into the blob store, hashing
+     * it on the way. Non-file form fields are skipped.
+     */
+    private class UploadedFilesWriter implements MultipartParser.PartHandler {
+
+        private final List<UploadedFile> files = new ArrayList<>();
+        private BlobStore.BlobWriter current;
+        private String currentFilename;
+        private String currentPath;
+
+        @Override
+        public void startPart(MultipartParser.Part part) throws IOException {
+            if (!part.isFile()) {
+                return;
+            }
+
+            currentFilename = part.filename;
+            if (currentFilename.trim().isEmpty()) {
+                currentFilename = "unnamed-file";
+            }
+            currentPath = part.path.isEmpty() ? currentFilename : part.path;
+            current = blobStore.newWriter();
+        }
+
+        @Override
+        public void partData(byte[] data, int offset, int length) throws IOException {
+            if (current != null) {
+                current.write(data, offset, length);
+                Metrics.UPLOADS.addBytes(length);
+            }
+        }
+
+        @Override
+        public void endPart() throws IOException {
+            if (current != null) {
+                BlobStore.BlobWriter writer = current;
+                current = null;
+                files.add(new UploadedFile(writer.commit(), currentFilename, currentPath));
+            }
+        }
+
+        void discard() {
+            if (current != null) {
+                current.abort();
+                current = null;
+            }
+            for (UploadedFile file : files) {
+                file.blob.release();
+            }
+            files.clear();
+        }
+    }
+
+    /**
+     * Resumable chunked upload protocol:
+     *
+     * <pre>
+     * POST /upload/init?filename=a.bin&amp;size=N[&amp;chunkSize=M]  -&gt; {"uploadId", "chunkSize", "chunks"}
+     * PUT  /upload/{id}/chunk/{n}                             -&gt; raw chunk bytes, any order, concurrently
+     * GET  /upload/{id}                                       -&gt; {"received", "missing": [...]} for resuming
+     * POST /upload/{id}/complete                              -&gt; {"port": code}
+     * DELETE /upload/{id}                                     -&gt; abort
+     * </pre>
+     *
+     * With {@code live=true} on init the share is created straight away and
+     * its code returned as {@code "port"}: recipients can start downloading
+     * while chunks are still arriving, and receive each byte once every chunk
+     * up to it is on disk. Completing keeps the same code.
+     */
+    private class ChunkedUploadHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+
+            String method = exchange.getRequestMethod().toUpperCase(Locale.ROOT);
+            if (method.equals("OPTIONS")) {
+                headers.add("Access-Control-Allow-Methods", "GET, POST, PUT, DELETE, OPTIONS");
+                headers.add("Access-Control-Allow-Headers", "Content-Type,Authorization");
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
+            // Path segments after "/upload/"
+            String[] parts = exchange.getRequestURI().getPath().substring("/upload/".length()).split("/");
+
+            try {
+                if (parts.length == 1 && parts[0].equals("init") && method.equals("POST")) {
+                    init(exchange);
+                } else if (parts.length == 1 && method.equals("GET")) {
+                    status(exchange, parts[0]);
+                } else if (parts.length == 1 && method.equals("DELETE")) {
+                    chunkedUploads.abort(parts[0]);
+                    sendResponse(exchange, 204, null, null);
+                } else if (parts.length == 3 && parts[1].equals("chunk") && (method.equals("PUT") || method.equals("POST"))) {
+                    chunk(exchange, parts[0], Integer.parseInt(parts[2]));
+                } else if (parts.length == 2 && parts[1].equals("complete") && method.equals("POST")) {
+                    complete(exchange, parts[0]);
+                } else {
+                    sendResponse(exchange, 404, "text/plain", "Not Found");
                 }
+            } catch (NumberFormatException e) {
+                sendResponse(exchange, 400, "text/plain", "Bad Request: Invalid number");
+            } catch (IllegalArgumentException e) {
+                sendResponse(exchange, 400, "text/plain", "Bad Request: " + e.getMessage());
+            } catch (IllegalStateException e) {
+                sendResponse(exchange, 409, "text/plain", "Conflict: " + e.getMessage());
+            } catch (IOException e) {
+                Log.warn("upload.chunked.failed", "error", e);
+                sendResponse(exchange, 500, "text/plain", "Server error: " + e.getMessage());
+            }
+        }
 
-            } catch (Exception e) {
-                System.err.println("Error processing file upload: " + e.getMessage());
-                String response = "Server error: " + e.getMessage();
-                exchange.sendResponseHeaders(500, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+        private void init(HttpExchange exchange) throws IOException {
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String originalFilename = query.get("filename");
+            if (originalFilename == null || originalFilename.trim().isEmpty()) {
+                originalFilename = "unnamed-file";
+            }
+            long size = Long.parseLong(query.getOrDefault("size", "-1"));
+            long chunkSize = Long.parseLong(query.getOrDefault("chunkSize", String.valueOf(ChunkedUploadManager.DEFAULT_CHUNK_SIZE)));
+            boolean live = Boolean.parseBoolean(query.get("live"));
+            ShareLimits limits = live ? requestedLimits(exchange) : null;
+            // The chunks are admitted one by one, so the whole file is checked here
+            if (admission.maxRequestBytes() > 0 && size > admission.maxRequestBytes()) {
+                sendResponse(exchange, 413, "text/plain", "Payload Too Large: uploads are limited to "
+                        + admission.maxRequestBytes() + " bytes");
+                return;
+            }
+
+            ChunkedUploadManager.UploadSession session = chunkedUploads.create(
+                    blobStore.newIncomingFile(), originalFilename, size, chunkSize, live);
+            if (session == null) {
+                exchange.getResponseHeaders().add("Retry-After", String.valueOf(admission.retryAfterSeconds()));
+                sendResponse(exchange, 503, "text/plain", "Service Unavailable: too many uploads in progress");
+                return;
+            }
+            String share = "";
+            if (live) {
+                int code = fileSharer.offerLive(session.live(), originalFilename, limits);
+                fileSharer.startFileServer(code);
+                session.attachShare(code);
+                share = ", \"port\": " + code;
+            }
+            sendResponse(exchange, 200, "application/json", "{\"uploadId\": \"" + session.id + "\", \"chunkSize\": "
+                    + session.chunkSize + ", \"chunks\": " + session.chunkCount + share + "}");
+        }
+
+        private void status(HttpExchange exchange, String id) throws IOException {
+            ChunkedUploadManager.UploadSession session = chunkedUploads.get(id);
+            if (session == null) {
+                sendResponse(exchange, 404, "text/plain", "Unknown upload");
+                return;
+            }
+            StringBuilder missing = new StringBuilder();
+            for (int index : session.missingChunks()) {
+                if (missing.length() > 0) {
+                    missing.append(", ");
                 }
+                missing.append(index);
+            }
+            sendResponse(exchange, 200, "application/json", "{\"uploadId\": \"" + session.id + "\", \"size\": " + session.size
+                    + ", \"chunkSize\": " + session.chunkSize + ", \"chunks\": " + session.chunkCount
+                    + ", \"received\": " + session.receivedCount() + ", \"missing\": [" + missing + "]}");
+        }
+
+        private void chunk(HttpExchange exchange, String id, int index) throws IOException {
+            ChunkedUploadManager.UploadSession session = chunkedUploads.get(id);
+            if (session == null) {
+                sendResponse(exchange, 404, "text/plain", "Unknown upload");
+                return;
+            }
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (index >= 0 && index < session.chunkCount && contentLength != null
+                    && Long.parseLong(contentLength) != session.chunkLength(index)) {
+                sendResponse(exchange, 400, "text/plain", "Bad Request: chunk " + index + " must be "
+                        + session.chunkLength(index) + " bytes");
+                return;
+            }
+            // Each chunk request counts as one upload transfer
+            long started = Metrics.UPLOADS.start();
+            boolean written = false;
+            BandwidthShaper.Throttle throttle = fileSharer.getShaper().receiving(session.chunkLength(index));
+            try (InputStream body = throttle.wrap(exchange.getRequestBody())) {
+                session.writeChunk(index, body);
+                written = true;
+                Metrics.UPLOADS.addBytes(session.chunkLength(index));
+            } finally {
+                Metrics.UPLOADS.finish(started, written);
+            }
+            sendResponse(exchange, 200, "application/json", "{\"chunk\": " + index + ", \"received\": " + session.receivedCount() + "}");
+        }
+
+        private void complete(HttpExchange exchange, String id) throws IOException {
+            ShareLimits limits = requestedLimits(exchange);
+            ChunkedUploadManager.UploadSession session = chunkedUploads.complete(id);
+            if (session == null) {
+                sendResponse(exchange, 404, "text/plain", "Unknown upload");
+                return;
+            }
+
+            // Chunks arrive out of order, so the content is hashed here rather
+            // than while streaming
+            BlobStore.Blob blob;
+            try {
+                blob = blobStore.importFile(session.file);
+            } catch (IOException e) {
+                // The chunks are still on disk, so the client may retry
+                chunkedUploads.reinstate(session);
+                throw e;
+            }
+            if (session.live() != null) {
+                completeLive(exchange, session, blob);
+                return;
+            }
+            // The share only exists once every chunk is on disk
+            int code;
+            try {
+                code = fileSharer.offerFile(blob, session.originalFilename, limits);
+            } catch (RuntimeException e) {
+                blob.release();
+                throw e;
+            }
+            try {
+                fileSharer.startFileServer(code);
+            } catch (RuntimeException e) {
+                // The share owns the blob by now; stopping it releases the reference
+                fileSharer.stopFileServer(code);
+                throw e;
+            }
+            sendResponse(exchange, 200, "application/json", "{\"port\": " + code + ", \"filename\": \""
+                    + escapeJson(session.originalFilename) + "\"}");
+        }
+
+        // The share already exists; it moves over to the stored blob
+        private void completeLive(HttpExchange exchange, ChunkedUploadManager.UploadSession session, BlobStore.Blob blob)
+                throws IOException {
+            int code = session.shareCode();
+            if (!fileSharer.completeLive(code, blob)) {
+                sendResponse(exchange, 410, "text/plain", "Share was stopped before the upload completed");
+                return;
+            }
+            sendResponse(exchange, 200, "application/json", "{\"port\": " + code + ", \"filename\": \""
+                    + escapeJson(session.originalFilename) + "\"}");
+        }
+    }
+
+    /**
+     * The node to fetch a share from, or null if it is served here: it is
+     * owned by this node, replicated here, or there is no cluster.
+     */
+    private ClusterNode remoteOwner(int code) {
+        if (cluster == null || cluster.owns(code) || fileSharer.hasShare(code)) {
+            return null;
+        }
+        return cluster.owner(code);
+    }
+
+    private void afterFullDownload(int code, ClusterNode owner) {
+        if (owner != null) {
+            if (cluster.relayedDownload(code)) {
+                executorService.submit(() -> replicate(code, owner));
+            }
+        } else if (!cluster.owns(code)) {
+            // Served from a replica: drop it if the owner has stopped the share
+            executorService.submit(() -> revalidate(code));
+        }
+    }
+
+    /**
+     * Copies a popular share from its owner into the local blob store. Shares
+     * with a download quota stay with the owner, which does the counting.
+     */
+    private void replicate(int code, ClusterNode owner) {
+        try {
+            TransferHeader info;
+            try (ShareConnection probe = ShareConnection.open(owner.host, owner.sharePort, code, 0, 0)) {
+                info = probe.header();
+            }
+            if (info.getLong(TransferHeader.MAX_DOWNLOADS, 0) > 0 || info.get(TransferHeader.DIGEST) == null) {
+                return;
+            }
+            BlobStore.Blob blob;
+            BlobStore.BlobWriter writer = blobStore.newWriter();
+            try (ShareConnection connection = ShareConnection.open(owner.host, owner.sharePort, code, 0, -1)) {
+                // Verified against the owner's digest before the last bytes are written
+                StreamRelay.relay(connection.verifiedInput(), writer, connection.length());
+                blob = writer.commit();
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+            fileSharer.addReplica(code, blob, info.get(TransferHeader.FILENAME),
+                    info.getLong(TransferHeader.EXPIRES, Long.MAX_VALUE));
+        } catch (IOException e) {
+            Log.warn("share.replicate.failed", "code", code, "owner", owner, "error", e);
+            cluster.forget(code);
+        }
+    }
+
+    private void revalidate(int code) {
+        ClusterNode owner = cluster.owner(code);
+        try {
+            // The owner refuses a code it no longer shares, so opening is the whole check
+            ShareConnection.open(owner.host, owner.sharePort, code, 0, 0).close();
+        } catch (FileNotFoundException e) {
+            Log.info("share.replica.dropped", "code", code, "owner", owner);
+            fileSharer.stopFileServer(code);
+            cluster.forget(code);
+        } catch (IOException e) {
+            // Owner unreachable; the replica keeps serving
+        }
+    }
+
+    private static long requestLength(HttpExchange exchange) {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        try {
+            return contentLength != null ? Long.parseLong(contentLength) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Share limits asked for with the optional {@code ttl} (seconds) and
+     * {@code maxDownloads} query parameters.
+     */
+    private ShareLimits requestedLimits(HttpExchange exchange) {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        long ttlSeconds = Long.parseLong(query.getOrDefault("ttl", "0"));
+        int maxDownloads = Integer.parseInt(query.getOrDefault("maxDownloads", "0"));
+        if (ttlSeconds < 0 || maxDownloads < 0) {
+            throw new IllegalArgumentException("ttl and maxDownloads must not be negative");
+        }
+        return fileSharer.getDefaultLimits().restrict(ttlSeconds * 1000, maxDownloads);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals == -1 ? pair : pair.substring(0, equals);
+            String value = equals == -1 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static void sendResponse(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            exchange.close();
+            return;
+        }
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    private static String escapeJson(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
             }
         }
+        return sb.toString();
     }
 
     private class DownloadHandler implements HttpHandler {
@@ -294,156 +997,275 @@ public class FileController {
             }
 
             String path = exchange.getRequestURI().getPath();
-            String portStr = path.substring(path.lastIndexOf('/') + 1);
+            String codeStr = path.substring(path.lastIndexOf('/') + 1);
+
+            int code;
+            try {
+                code = Integer.parseInt(codeStr);
+            } catch (NumberFormatException e) {
+                String response = "Bad Request: Invalid invite code";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+
+            ClusterNode owner = remoteOwner(code);
+            if (owner != null && cluster.routing() == Cluster.Routing.REDIRECT) {
+                headers.add("Location", owner.httpUrl(exchange.getRequestURI().getRawPath()));
+                exchange.sendResponseHeaders(307, -1);
+                exchange.close();
+                return;
+            }
 
+            long started = Metrics.DOWNLOADS.start();
+            boolean completed = false;
             try {
-                int port = Integer.parseInt(portStr);
-
-                try (Socket socket = new Socket()) {
-                    // Set socket timeout for large files (10 minutes)
-                    socket.setSoTimeout(600000);
-                    socket.setReceiveBufferSize(1024 * 1024); // 1MB receive buffer
-                    socket.connect(new java.net.InetSocketAddress("localhost", port), 30000);
-
-                    InputStream socketInput = socket.getInputStream();
-
-                    File tempFile = File.createTempFile("download-", ".tmp");
-                    String filename = "downloaded-file"; // Default filename
-
-                    try (FileOutputStream fos = new FileOutputStream(tempFile); BufferedOutputStream bos = new BufferedOutputStream(fos, 1024 * 1024)) { // 1MB buffer
-
-                        // Read the filename header
-                        StringBuilder headerBuilder = new StringBuilder();
-                        int b;
-                        while ((b = socketInput.read()) != -1) {
-                            if (b == '\n') {
-                                break;
-                            }
-                            if (b != '\r') { // Skip carriage return
-                                headerBuilder.append((char) b);
-                            }
-                        }
-
-                        String header = headerBuilder.toString().trim();
-                        if (header.startsWith("Filename: ")) {
-                            filename = header.substring("Filename: ".length());
-                        }
-
-                        // Read file content with larger buffer for large files
-                        byte[] buffer = new byte[1024 * 1024]; // 1MB buffer
-                        int bytesRead;
-                        long totalBytesRead = 0;
-
-                        while ((bytesRead = socketInput.read(buffer)) != -1) {
-                            bos.write(buffer, 0, bytesRead);
-                            totalBytesRead += bytesRead;
-
-                            // Optional: Log progress for very large files
-                            if (totalBytesRead % (50 * 1024 * 1024) == 0) { // Every 50MB
-                                System.out.println("Downloaded " + (totalBytesRead / (1024 * 1024)) + "MB...");
-                            }
-                        }
-                        bos.flush();
-                        System.out.println("Total downloaded: " + (totalBytesRead / (1024 * 1024)) + "MB");
+                String rangeHeader = exchange.getRequestHeaders().getFirst("Range");
+                if (rangeHeader == null) {
+                    sendFull(exchange, code);
+                    completed = true;
+                    if (cluster != null) {
+                        afterFullDownload(code, owner);
                     }
+                    return;
+                }
 
-                    // Set proper content disposition with original filename (RFC 6266 compliant)
-                    String encodedFilename = java.net.URLEncoder.encode(filename, "UTF-8").replace("+", "%20");
-                    headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"; filename*=UTF-8''" + encodedFilename);
+                // Ranges need the file size and validator before anything is fetched
+                TransferHeader info;
+                try (ShareConnection probe = openShare(code, 0, 0)) {
+                    info = probe.header();
+                }
+                long size = info.getLong(TransferHeader.SIZE, -1);
+                List<ByteRange> ranges = size >= 0 ? ByteRange.parse(rangeHeader, size) : null;
+                if (ranges == null || !ifRangeMatches(exchange.getRequestHeaders().getFirst("If-Range"), info)) {
+                    sendFull(exchange, code);
+                    completed = true;
+                    return;
+                }
 
-                    // Set content type based on file extension
-                    String contentType = getContentTypeFromFilename(filename);
-                    headers.add("Content-Type", contentType);
+                if (ranges.isEmpty()) {
+                    headers.add("Content-Range", "bytes */" + size);
+                    exchange.sendResponseHeaders(416, -1);
+                    exchange.close();
+                    return;
+                }
 
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    try (OutputStream os = exchange.getResponseBody(); FileInputStream fis = new FileInputStream(tempFile); BufferedInputStream bis = new BufferedInputStream(fis, 1024 * 1024)) { // 1MB buffer
+                if (ranges.size() == 1) {
+                    sendSingleRange(exchange, code, ranges.get(0), size);
+                } else {
+                    sendMultipleRanges(exchange, code, ranges, info);
+                }
+                completed = true;
 
-                        byte[] buffer = new byte[1024 * 1024]; // 1MB buffer
-                        int bytesRead;
-                        while ((bytesRead = bis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
-                        }
-                    }
+            } catch (FileNotFoundException e) {
+                String response = "File not found: " + e.getMessage();
+                headers.add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(404, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+            } catch (IOException e) {
+                if (exchange.getResponseCode() != -1) {
+                    // Headers are out, so the body must not be ended: the server
+                    // drops the connection and the client sees a broken transfer
+                    throw e;
+                }
+                Log.warn("download.failed", "code", code, "error", e);
+                String response = "Error downloading file: " + e.getMessage();
+                headers.add("Content-Type", "text/plain");
+                exchange.sendResponseHeaders(500, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+            } finally {
+                Metrics.DOWNLOADS.finish(started, completed);
+            }
+        }
+
+        private ShareConnection openShare(int code, long offset, long length) throws IOException {
+            return openShare(code, offset, length, null);
+        }
 
-                    tempFile.delete();
+        private ShareConnection openShare(int code, long offset, long length, String acceptEncoding) throws IOException {
+            ClusterNode owner = remoteOwner(code);
+            if (owner != null) {
+                // Same relay as for local shares, from the owner's listener
+                return ShareConnection.open(owner.host, owner.sharePort, code, offset, length, acceptEncoding);
+            }
+            // Every share is served by one listener; the invite code selects the file
+            return ShareConnection.open("localhost", fileSharer.getPort(), code, offset, length, acceptEncoding);
+        }
 
-                } catch (IOException e) {
-                    System.err.println("Error downloading file from peer: " + e.getMessage());
-                    String response = "Error downloading file: " + e.getMessage();
-                    headers.add("Content-Type", "text/plain");
-                    exchange.sendResponseHeaders(500, response.getBytes().length);
-                    try (OutputStream os = exchange.getResponseBody()) {
-                        os.write(response.getBytes());
+        private void sendFull(HttpExchange exchange, int code) throws IOException {
+            // The client's Accept-Encoding goes to the peer, and the encoded bytes
+            // are relayed as they are: no decoding and re-encoding here
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            try (ShareConnection connection = openShare(code, 0, -1, acceptEncoding)) {
+                Headers headers = exchange.getResponseHeaders();
+                addFileHeaders(headers, connection.header());
+                String contentType = ContentTypes.forFilename(connection.filename());
+                headers.add("Content-Type", contentType);
+                headers.add("Vary", "Accept-Encoding");
+
+                // Relay socket bytes straight into the response: known length when
+                // the peer sent one, chunked transfer encoding otherwise
+                long length = connection.length();
+                String encoding = connection.encoding();
+                if (encoding != null) {
+                    headers.add("Content-Encoding", encoding);
+                    // The encoded body is a different representation with its own validator
+                    String etag = headers.getFirst("ETag");
+                    if (etag != null && etag.endsWith("\"")) {
+                        headers.set("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding + "\"");
                     }
+                    length = connection.header().getLong(TransferHeader.ENCODED_LENGTH, -1);
+                } else if (connection.header().get(TransferHeader.DIGEST) != null) {
+                    headers.add("Digest", connection.header().get(TransferHeader.DIGEST));
                 }
+                exchange.sendResponseHeaders(200, length >= 0 ? length : 0);
+                relayToResponse(exchange, connection, length);
+            }
+        }
 
-            } catch (NumberFormatException e) {
-                String response = "Bad Request: Invalid port number";
-                exchange.sendResponseHeaders(400, response.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(response.getBytes());
+        private void sendSingleRange(HttpExchange exchange, int code, ByteRange range, long size) throws IOException {
+            try (ShareConnection connection = openShare(code, range.first, range.length())) {
+                addFileHeaders(exchange.getResponseHeaders(), connection.header());
+                exchange.getResponseHeaders().add("Content-Type", ContentTypes.forFilename(connection.filename()));
+                exchange.getResponseHeaders().add("Content-Range", range.contentRange(size));
+
+                exchange.sendResponseHeaders(206, range.length());
+                relayToResponse(exchange, connection, range.length());
+            }
+        }
+
+        private void sendMultipleRanges(HttpExchange exchange, int code, List<ByteRange> ranges, TransferHeader info) throws IOException {
+            String filename = info.get(TransferHeader.FILENAME);
+            long size = info.getLong(TransferHeader.SIZE, -1);
+            String partType = ContentTypes.forFilename(filename);
+            String boundary = UUID.randomUUID().toString().replace("-", "");
+
+            // Part headers are fixed up front so the total length is known
+            List<byte[]> partHeaders = new ArrayList<>();
+            long contentLength = 0;
+            for (ByteRange range : ranges) {
+                byte[] partHeader = ("--" + boundary + "\r\nContent-Type: " + partType + "\r\nContent-Range: "
+                        + range.contentRange(size) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                contentLength += partHeader.length + range.length() + 2;
+            }
+            byte[] closing = ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength += closing.length;
+
+            if ("true".equals(info.get(TransferHeader.LIVE))) {
+                exemptFromStallGuard();
+            }
+            addFileHeaders(exchange.getResponseHeaders(), info);
+            exchange.getResponseHeaders().add("Content-Type", "multipart/byteranges; boundary=" + boundary);
+            exchange.sendResponseHeaders(206, contentLength);
+
+            OutputStream os = exchange.getResponseBody();
+            try {
+                for (int i = 0; i < ranges.size(); i++) {
+                    ByteRange range = ranges.get(i);
+                    os.write(partHeaders.get(i));
+                    try (ShareConnection connection = openShare(code, range.first, range.length())) {
+                        copyExactly(connection, os, range.length());
+                    }
+                    os.write('\r');
+                    os.write('\n');
                 }
+                os.write(closing);
+            } catch (IOException e) {
+                Log.warn("download.relay.failed", "code", code, "error", e);
+                throw e;
+            }
+            os.close();
+        }
+
+        /**
+         * Throws if the relay broke off after the headers were sent. The body
+         * is left open then: closing it would end a chunked response cleanly,
+         * and the client would take the truncated bytes for the whole file.
+         */
+        private void relayToResponse(HttpExchange exchange, ShareConnection connection, long length) throws IOException {
+            if (connection.isLive()) {
+                exemptFromStallGuard();
+            }
+            OutputStream os = exchange.getResponseBody();
+            try {
+                long totalBytesRead = copyExactly(connection, os, length);
+                Log.debug("download.completed", "file", connection.filename(), "bytes", totalBytesRead);
+            } catch (IOException e) {
+                Log.warn("download.relay.failed", "file", connection.filename(), "error", e);
+                throw e;
+            }
+            os.close();
+        }
+
+        // A live download waits on the uploader, which may pause for minutes
+        private void exemptFromStallGuard() {
+            AdmissionControl.Ticket ticket = admission.current();
+            if (ticket != null) {
+                ticket.exempt();
             }
         }
 
-        private String getContentTypeFromFilename(String filename) {
+        private long copyExactly(ShareConnection connection, OutputStream os, long length) throws IOException {
+            // The last bytes are only released once the whole-file digest matches
+            long copied = StreamRelay.relay(connection.verifiedInput(), os, length);
+            Metrics.DOWNLOADS.addBytes(copied);
+            if (length >= 0 && copied < length) {
+                throw new IOException("Peer closed after " + copied + " of " + length + " bytes");
+            }
+            return copied;
+        }
+
+        private void addFileHeaders(Headers headers, TransferHeader info) throws IOException {
+            String filename = info.get(TransferHeader.FILENAME);
             if (filename == null) {
-                return "application/octet-stream";
-            }
-
-            String extension = "";
-            int lastDotIndex = filename.lastIndexOf('.');
-            if (lastDotIndex > 0 && lastDotIndex < filename.length() - 1) {
-                extension = filename.substring(lastDotIndex + 1).toLowerCase();
-            }
-
-            switch (extension) {
-                case "pdf":
-                    return "application/pdf";
-                case "txt":
-                    return "text/plain";
-                case "doc":
-                    return "application/msword";
-                case "docx":
-                    return "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
-                case "xls":
-                    return "application/vnd.ms-excel";
-                case "xlsx":
-                    return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
-                case "ppt":
-                    return "application/vnd.ms-powerpoint";
-                case "pptx":
-                    return "application/vnd.openxmlformats-officedocument.presentationml.presentation";
-                case "jpg":
-                case "jpeg":
-                    return "image/jpeg";
-                case "png":
-                    return "image/png";
-                case "gif":
-                    return "image/gif";
-                case "zip":
-                    return "application/zip";
-                case "rar":
-                    return "application/x-rar-compressed";
-                case "mp3":
-                    return "audio/mpeg";
-                case "mp4":
-                    return "video/mp4";
-                case "avi":
-                    return "video/x-msvideo";
-                case "json":
-                    return "application/json";
-                case "xml":
-                    return "application/xml";
-                case "html":
-                    return "text/html";
-                case "css":
-                    return "text/css";
-                case "js":
-                    return "application/javascript";
-                default:
-                    return "application/octet-stream";
+                filename = "downloaded-file"; // Default filename
+            }
+
+            // Set proper content disposition with original filename (RFC 6266 compliant)
+            String encodedFilename = java.net.URLEncoder.encode(filename, "UTF-8").replace("+", "%20");
+            headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"; filename*=UTF-8''" + encodedFilename);
+
+            headers.add("Accept-Ranges", "bytes");
+            headers.add("Access-Control-Expose-Headers", "Content-Disposition,Content-Range,Accept-Ranges,ETag,Last-Modified,Digest");
+            String etag = info.get(TransferHeader.ETAG);
+            if (etag != null) {
+                headers.add("ETag", etag);
+            }
+            String lastModified = lastModified(info);
+            if (lastModified != null) {
+                headers.add("Last-Modified", lastModified);
+            }
+        }
+
+        /**
+         * If-Range only allows the partial response when the client's validator
+         * still matches; otherwise the whole file is sent.
+         */
+        private boolean ifRangeMatches(String ifRange, TransferHeader info) {
+            if (ifRange == null) {
+                return true;
+            }
+            ifRange = ifRange.trim();
+            if (ifRange.startsWith("\"")) {
+                return ifRange.equals(info.get(TransferHeader.ETAG));
+            }
+            return ifRange.equals(lastModified(info));
+        }
+
+        private String lastModified(TransferHeader info) {
+            long modified = info.getLong(TransferHeader.MODIFIED, -1);
+            if (modified < 0) {
+                return null;
             }
+            return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    Instant.ofEpochMilli(modified).truncatedTo(ChronoUnit.SECONDS).atZone(ZoneOffset.UTC));
         }
     }
 }
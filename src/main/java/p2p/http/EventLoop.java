@@ -0,0 +1,192 @@
+package p2p.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import p2p.utils.Log;
+
+/**
+ * One selector thread and the connections registered with it. All socket
+ * reads, interest changes and closes for those connections happen here;
+ * other threads hand work over with {@link #execute}.
+ */
+final class EventLoop implements Runnable {
+
+    private final NioHttpServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    // Loop thread only
+    private final Set<HttpConnection> connections = new HashSet<>();
+    private ByteBuffer scratch;
+    private volatile boolean running = true;
+    private long nextSweep;
+
+    EventLoop(NioHttpServer server, int index) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = Thread.ofPlatform().name("peerlink-http-loop-" + index).daemon().unstarted(this);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs {@code task} on the loop thread, waking the selector if needed.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * The buffer connections read into while waiting for a request head, so
+     * that idle connections hold no buffer of their own. Loop thread only.
+     */
+    ByteBuffer scratch() {
+        if (scratch == null) {
+            scratch = server.pool().acquire();
+        }
+        return scratch.clear();
+    }
+
+    /**
+     * Takes over a freshly accepted socket.
+     */
+    void adopt(SocketChannel channel) {
+        execute(() -> {
+            if (!running) {
+                closeQuietly(channel);
+                server.connectionClosed();
+                return;
+            }
+            try {
+                HttpConnection connection = new HttpConnection(server, this, channel);
+                connection.register(channel.register(selector, SelectionKey.OP_READ, connection));
+                connections.add(connection);
+            } catch (IOException e) {
+                Log.debug("http.accept.failed", "error", e.getMessage());
+                closeQuietly(channel);
+                server.connectionClosed();
+            }
+        });
+    }
+
+    void removed(HttpConnection connection) {
+        connections.remove(connection);
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void join(long millis) throws InterruptedException {
+        thread.join(millis);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                // Tasks queued from this thread did not wake the selector
+                if (tasks.isEmpty()) {
+                    selector.select(1000);
+                } else {
+                    selector.selectNow();
+                }
+                wakeupPending.set(false);
+                runTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    dispatch(key);
+                }
+                long now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    nextSweep = now + TimeUnit.SECONDS.toNanos(1);
+                    for (HttpConnection connection : new ArrayList<>(connections)) {
+                        connection.closeIfIdle(now);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            Log.error("http.loop.failed", "error", e);
+        } finally {
+            runTasks();
+            for (HttpConnection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            server.pool().release(scratch);
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (!(key.attachment() instanceof HttpConnection connection)) {
+            server.acceptReady();
+            return;
+        }
+        try {
+            if (key.isWritable()) {
+                connection.onWritable();
+            }
+            if (key.isValid() && key.isReadable()) {
+                connection.onReadable();
+            }
+        } catch (RuntimeException e) {
+            Log.error("http.connection.failed", "error", e);
+            connection.close();
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("http.loop.task.failed", "error", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package p2p.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.Headers;
+
+import p2p.utils.BufferPool;
+
+/**
+ * One client socket of a {@link NioHttpServer}. Request heads are read and
+ * parsed on the event loop; once one is complete the exchange is handed to
+ * a handler thread, and the body moves between the two as queues of pooled
+ * buffers in each direction. Neither queue holds more than a few buffers:
+ * the loop stops reading while the handler is behind, and the handler waits
+ * while the client is slow to take the response.
+ *
+ * Responses are written straight from the handler thread when the socket
+ * accepts them, and left to the loop when it does not.
+ */
+final class HttpConnection {
+
+    // Buffers queued in either direction before the producer is held back
+    private static final int MAX_QUEUED = 4;
+    private static final Pattern TOKEN = Pattern.compile("[!#$%&'*+.^_`|~0-9A-Za-z-]+");
+
+    /**
+     * A request that is answered with {@code status} and the connection closed.
+     */
+    static final class BadRequest extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        BadRequest(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final NioHttpServer server;
+    private final EventLoop loop;
+    private final SocketChannel channel;
+    private final BufferPool pool;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private SelectionKey key;
+
+    // Loop thread only
+    private byte[] head = new byte[1024];
+    private int headLength;
+    private boolean inExchange;
+    private boolean closeWhenDrained;
+    private long idleSince = System.nanoTime();
+
+    private final ReentrantLock inLock = new ReentrantLock();
+    private final Condition inReady = inLock.newCondition();
+    private final ArrayDeque<ByteBuffer> inbound = new ArrayDeque<>();
+    private boolean inEof;
+    private boolean readPaused;
+
+    private final ReentrantLock outLock = new ReentrantLock();
+    private final Condition outDrained = outLock.newCondition();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private boolean writeRequested;
+    private IOException failure;
+
+    private volatile boolean closed;
+
+    HttpConnection(NioHttpServer server, EventLoop loop, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.pool = server.pool();
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    BufferPool pool() {
+        return pool;
+    }
+
+    InetSocketAddress remoteAddress() {
+        return remoteAddress;
+    }
+
+    InetSocketAddress localAddress() {
+        return localAddress;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    // ---- Event loop side ----
+
+    void onReadable() {
+        if (inExchange) {
+            readBody();
+            return;
+        }
+        ByteBuffer scratch = loop.scratch();
+        int read;
+        try {
+            read = channel.read(scratch);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            closeAfterWrites();
+        } else if (read > 0) {
+            headInput(scratch.flip(), false);
+        }
+    }
+
+    void onWritable() {
+        outLock.lock();
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer buffer = outbound.peek();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                pool.release(outbound.poll());
+            }
+            if (outbound.isEmpty()) {
+                writeRequested = false;
+                setInterest(SelectionKey.OP_WRITE, false);
+            }
+            outDrained.signalAll();
+        } catch (IOException e) {
+            failure = e;
+            outDrained.signalAll();
+        } finally {
+            outLock.unlock();
+        }
+        if (failure != null || closeWhenDrained && !writeRequested) {
+            close();
+        }
+    }
+
+    /**
+     * Closes a connection that has waited too long for a request head, or
+     * for a client to take the last response before it is closed.
+     */
+    void closeIfIdle(long now) {
+        if ((!inExchange || closeWhenDrained) && now - idleSince > server.idleNanos()) {
+            close();
+        }
+    }
+
+    // Bytes that arrive while no exchange is running: the next request head and whatever follows it
+    private void headInput(ByteBuffer data, boolean owned) {
+        if (closed || closeWhenDrained) {
+            release(data, owned);
+            return;
+        }
+        if (inExchange) {
+            queueInbound(data, owned);
+            return;
+        }
+        if (!feedHead(data)) {
+            release(data, owned);
+            if (headLength >= NioHttpServer.MAX_HEAD_BYTES) {
+                reject(431);
+            }
+            return;
+        }
+        NioHttpExchange exchange;
+        try {
+            exchange = parseHead();
+        } catch (BadRequest e) {
+            release(data, owned);
+            reject(e.status);
+            return;
+        }
+        inExchange = true;
+        if (data.hasRemaining()) {
+            queueInbound(data, owned);
+        } else {
+            release(data, owned);
+        }
+        server.dispatch(exchange);
+    }
+
+    // Copies head bytes until the blank line that ends the head; false if it has not come yet
+    private boolean feedHead(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            if (headLength == 0 && (b == '\r' || b == '\n')) {
+                // Stray line breaks between requests are allowed
+                continue;
+            }
+            if (headLength == head.length) {
+                if (head.length >= NioHttpServer.MAX_HEAD_BYTES) {
+                    return false;
+                }
+                head = Arrays.copyOf(head, Math.min(NioHttpServer.MAX_HEAD_BYTES, head.length * 2));
+            }
+            head[headLength++] = b;
+            if (b == '\n' && headLength >= 2
+                    && (head[headLength - 2] == '\n'
+                            || headLength >= 3 && head[headLength - 2] == '\r' && head[headLength - 3] == '\n')) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private NioHttpExchange parseHead() throws BadRequest {
+        String text = new String(head, 0, headLength, StandardCharsets.ISO_8859_1);
+        headLength = 0;
+        if (head.length > 8 * 1024) {
+            head = new byte[1024];
+        }
+        String[] lines = text.split("\r?\n");
+        String[] request = lines[0].split(" ");
+        if (request.length != 3 || !TOKEN.matcher(request[0]).matches()) {
+            throw new BadRequest(400, "Malformed request line");
+        }
+        String protocol = request[2];
+        if (!protocol.equals("HTTP/1.1") && !protocol.equals("HTTP/1.0")) {
+            throw new BadRequest(505, "Unsupported protocol " + protocol);
+        }
+        URI uri;
+        try {
+            uri = new URI(request[1]);
+        } catch (URISyntaxException e) {
+            throw new BadRequest(400, "Malformed request target");
+        }
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int colon = line.indexOf(':');
+            if (colon <= 0 || !TOKEN.matcher(line.substring(0, colon)).matches()) {
+                throw new BadRequest(400, "Malformed header line");
+            }
+            headers.add(line.substring(0, colon), line.substring(colon + 1).strip());
+        }
+        return new NioHttpExchange(this, request[0], uri, protocol, headers);
+    }
+
+    private void readBody() {
+        inLock.lock();
+        try {
+            if (inbound.size() >= MAX_QUEUED) {
+                readPaused = true;
+                setInterest(SelectionKey.OP_READ, false);
+                return;
+            }
+        } finally {
+            inLock.unlock();
+        }
+        ByteBuffer buffer = pool.acquire();
+        int read;
+        try {
+            read = channel.read(buffer);
+        } catch (IOException e) {
+            pool.release(buffer);
+            close();
+            return;
+        }
+        if (read > 0) {
+            queueInbound(buffer.flip(), true);
+            return;
+        }
+        pool.release(buffer);
+        if (read < 0) {
+            setInterest(SelectionKey.OP_READ, false);
+            inLock.lock();
+            try {
+                inEof = true;
+                inReady.signalAll();
+            } finally {
+                inLock.unlock();
+            }
+        }
+    }
+
+    private void queueInbound(ByteBuffer data, boolean owned) {
+        ByteBuffer buffer = data;
+        if (!owned) {
+            buffer = pool.acquire().put(data).flip();
+        }
+        inLock.lock();
+        try {
+            inbound.add(buffer);
+            inReady.signalAll();
+        } finally {
+            inLock.unlock();
+        }
+    }
+
+    private void resumeReading() {
+        if (!closed && inExchange) {
+            setInterest(SelectionKey.OP_READ, true);
+        }
+    }
+
+    /**
+     * Continues after an exchange: reads the next request if the connection
+     * can be reused, otherwise closes it once the response has gone out.
+     */
+    private void nextRequest(boolean reuse, ByteBuffer leftover) {
+        if (closed) {
+            pool.release(leftover);
+            return;
+        }
+        List<ByteBuffer> pending = new ArrayList<>();
+        if (leftover != null) {
+            pending.add(leftover);
+        }
+        boolean eof;
+        inLock.lock();
+        try {
+            pending.addAll(inbound);
+            inbound.clear();
+            readPaused = false;
+            eof = inEof;
+        } finally {
+            inLock.unlock();
+        }
+        if (!reuse || eof) {
+            pending.forEach(pool::release);
+            closeAfterWrites();
+            return;
+        }
+        inExchange = false;
+        idleSince = System.nanoTime();
+        setInterest(SelectionKey.OP_READ, true);
+        // Pipelined requests may already be here
+        for (ByteBuffer buffer : pending) {
+            headInput(buffer, true);
+        }
+    }
+
+    private void reject(int status) {
+        byte[] response = ("HTTP/1.1 " + status + " " + NioHttpExchange.reason(status)
+                + "\r\nContent-length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        outLock.lock();
+        try {
+            if (failure == null) {
+                enqueue(ByteBuffer.wrap(response));
+            }
+        } finally {
+            outLock.unlock();
+        }
+        closeAfterWrites();
+    }
+
+    private void closeAfterWrites() {
+        setInterest(SelectionKey.OP_READ, false);
+        idleSince = System.nanoTime();
+        boolean drained;
+        outLock.lock();
+        try {
+            drained = outbound.isEmpty();
+        } finally {
+            outLock.unlock();
+        }
+        if (drained) {
+            close();
+        } else {
+            closeWhenDrained = true;
+        }
+    }
+
+    private void setInterest(int op, boolean on) {
+        if (key != null && key.isValid()) {
+            int ops = key.interestOps();
+            key.interestOps(on ? ops | op : ops & ~op);
+        }
+    }
+
+    /**
+     * Closes the socket and wakes any handler waiting on it. Loop thread
+     * only; other threads use {@link #abort()}.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        loop.removed(this);
+        server.connectionClosed();
+        inLock.lock();
+        try {
+            inbound.forEach(pool::release);
+            inbound.clear();
+            inReady.signalAll();
+        } finally {
+            inLock.unlock();
+        }
+        outLock.lock();
+        try {
+            if (failure == null) {
+                failure = new IOException("Connection closed");
+            }
+            outbound.forEach(pool::release);
+            outbound.clear();
+            outDrained.signalAll();
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    private void release(ByteBuffer data, boolean owned) {
+        if (owned) {
+            pool.release(data);
+        }
+    }
+
+    // ---- Handler thread side ----
+
+    /**
+     * The next buffer of request bytes, waiting for the client if none has
+     * arrived; null once the client has stopped sending. The caller owns the
+     * buffer and releases it to the pool.
+     */
+    ByteBuffer take() throws IOException {
+        inLock.lock();
+        try {
+            while (inbound.isEmpty()) {
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                if (inEof) {
+                    return null;
+                }
+                try {
+                    inReady.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abort();
+                    throw new InterruptedIOException("Interrupted reading request body");
+                }
+            }
+            ByteBuffer buffer = inbound.poll();
+            if (readPaused) {
+                readPaused = false;
+                loop.execute(this::resumeReading);
+            }
+            return buffer;
+        } finally {
+            inLock.unlock();
+        }
+    }
+
+    /**
+     * Writes {@code buffer}, or queues it for the loop when the socket is
+     * not ready, waiting while the queue is full. The buffer is released to
+     * the pool once written.
+     */
+    void send(ByteBuffer buffer) throws IOException {
+        outLock.lock();
+        try {
+            while (failure == null && outbound.size() >= MAX_QUEUED) {
+                try {
+                    outDrained.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pool.release(buffer);
+                    abort();
+                    throw new InterruptedIOException("Interrupted writing response");
+                }
+            }
+            if (failure != null) {
+                pool.release(buffer);
+                throw new IOException(failure.getMessage(), failure);
+            }
+            enqueue(buffer);
+            if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+        } finally {
+            outLock.unlock();
+        }
+    }
+
+    // Caller holds outLock
+    private void enqueue(ByteBuffer buffer) {
+        if (outbound.isEmpty()) {
+            try {
+                channel.write(buffer);
+            } catch (IOException e) {
+                pool.release(buffer);
+                failure = e;
+                abort();
+                return;
+            }
+            if (!buffer.hasRemaining()) {
+                pool.release(buffer);
+                return;
+            }
+        }
+        outbound.add(buffer);
+        if (!writeRequested) {
+            writeRequested = true;
+            if (loop.inLoop()) {
+                setInterest(SelectionKey.OP_WRITE, true);
+            } else {
+                loop.execute(() -> setInterest(SelectionKey.OP_WRITE, true));
+            }
+        }
+    }
+
+    /**
+     * Hands the connection back after an exchange. {@code leftover} holds
+     * any bytes read past the end of the request body.
+     */
+    void exchangeDone(boolean reuse, ByteBuffer leftover) {
+        loop.execute(() -> nextRequest(reuse, leftover));
+    }
+
+    void abort() {
+        loop.execute(this::close);
+    }
+}
@@ -0,0 +1,43 @@
+package p2p.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Locale;
+
+import com.sun.net.httpserver.HttpServer;
+
+import p2p.utils.Log;
+
+/**
+ * Which server accepts API connections. {@link #JDK} is the built-in
+ * com.sun.net.httpserver implementation; {@link #NIO} is
+ * {@link NioHttpServer}, which keeps sockets on a few selector threads and
+ * moves bodies in pooled direct buffers, so idle and slow clients tie up no
+ * thread at all. Handlers are written against the same HttpServer API and
+ * run unchanged on either.
+ *
+ * Selected with -Dpeerlink.http.server=jdk|nio or {@code --http-server=} on
+ * the command line.
+ */
+public enum HttpFrontEnd {
+
+    JDK,
+    NIO;
+
+    public static HttpFrontEnd fromSystemProperties() {
+        return parse(System.getProperty("peerlink.http.server", "jdk"));
+    }
+
+    public static HttpFrontEnd parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            Log.warn("config.invalid", "property", "peerlink.http.server", "value", name, "using", "jdk");
+            return JDK;
+        }
+    }
+
+    public HttpServer create(InetSocketAddress address) throws IOException {
+        return this == NIO ? NioHttpServer.create(address, 0) : HttpServer.create(address, 0);
+    }
+}
@@ -0,0 +1,645 @@
+package p2p.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import p2p.utils.Log;
+
+/**
+ * One request and its response on a {@link HttpConnection}, run on a
+ * handler thread. The body streams read from and write to pooled direct
+ * buffers that the connection moves to and from the socket; response
+ * headers go out in the same buffer as the start of the body.
+ *
+ * Behaves like the JDK server's exchange where handlers can tell: a
+ * response length of 0 means chunked, -1 means no body, and the exchange
+ * is over once the response stream is closed.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+    // Chunk sizes are written as six hex digits so the header has a fixed width
+    private static final int CHUNK_HEADER = 8;
+    private static final int CHUNK_TRAILER = 2;
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int MAX_LINE = 4096;
+
+    private final HttpConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final RequestBody requestBody;
+    private final ResponseBody responseBody;
+    private InputStream in;
+    private OutputStream out;
+    private HttpContext context;
+    private int responseCode = -1;
+    private boolean keepAlive;
+
+    NioHttpExchange(HttpConnection connection, String method, URI uri, String protocol, Headers requestHeaders)
+            throws HttpConnection.BadRequest {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        String connectionHeader = requestHeaders.getFirst("Connection");
+        this.keepAlive = http11()
+                ? !"close".equalsIgnoreCase(connectionHeader)
+                : "keep-alive".equalsIgnoreCase(connectionHeader);
+
+        String transferEncoding = requestHeaders.getFirst("Transfer-encoding");
+        List<String> lengths = requestHeaders.get("Content-length");
+        if (transferEncoding != null) {
+            if (!"chunked".equalsIgnoreCase(transferEncoding.strip())) {
+                throw new HttpConnection.BadRequest(501, "Unsupported transfer encoding " + transferEncoding);
+            }
+            this.requestBody = new RequestBody(-1);
+        } else if (lengths != null) {
+            long length;
+            try {
+                length = Long.parseLong(lengths.get(0));
+            } catch (NumberFormatException e) {
+                throw new HttpConnection.BadRequest(400, "Malformed Content-Length");
+            }
+            if (length < 0 || lengths.stream().anyMatch(l -> !l.equals(lengths.get(0)))) {
+                throw new HttpConnection.BadRequest(400, "Malformed Content-Length");
+            }
+            this.requestBody = new RequestBody(length);
+        } else {
+            this.requestBody = new RequestBody(0);
+        }
+        this.responseBody = new ResponseBody();
+        this.in = requestBody;
+        this.out = responseBody;
+    }
+
+    /**
+     * Runs the context's filters and handler, then hands the connection back.
+     */
+    void run(NioHttpContext context) {
+        try {
+            if (context == null) {
+                byte[] body = "No context found for request".getBytes(StandardCharsets.UTF_8);
+                sendResponseHeaders(404, body.length);
+                responseBody.write(body);
+            } else {
+                this.context = context;
+                new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(this);
+            }
+        } catch (Throwable t) {
+            keepAlive = false;
+            if (!(t instanceof IOException)) {
+                Log.error("http.handler.failed", "path", uri.getPath(), "error", t);
+            }
+            if (responseCode == -1 && !connection.isClosed()) {
+                try {
+                    sendResponseHeaders(500, -1);
+                } catch (IOException e) {
+                    // The client is gone
+                }
+            } else {
+                // As with the JDK server, a body that is under way is left
+                // unterminated so the client cannot mistake it for a whole one
+                responseBody.abandon();
+            }
+        } finally {
+            finish();
+        }
+    }
+
+    private void finish() {
+        boolean complete = false;
+        if (responseCode != -1) {
+            try {
+                responseBody.close();
+                complete = responseBody.complete();
+            } catch (IOException e) {
+                complete = false;
+            }
+        }
+        boolean reuse = keepAlive && complete && requestBody.done && !connection.isClosed();
+        connection.exchangeDone(reuse, requestBody.detach());
+    }
+
+    private boolean http11() {
+        return "HTTP/1.1".equals(protocol);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (responseCode == -1) {
+                // Nothing was sent; the client only learns from the connection closing
+                keepAlive = false;
+                connection.abort();
+            } else {
+                out.close();
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return out;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("Response headers already sent");
+        }
+        responseCode = rCode;
+        boolean head = method.equalsIgnoreCase("HEAD");
+        boolean noContent = rCode < 200 || rCode == 204 || rCode == 304;
+        Headers headers = responseHeaders;
+        headers.remove("Transfer-encoding");
+        if (!headers.containsKey("Date")) {
+            headers.set("Date", DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)));
+        }
+        long length;
+        if (head || noContent) {
+            if (noContent) {
+                headers.remove("Content-length");
+            }
+            length = -1;
+        } else if (responseLength > 0) {
+            headers.set("Content-length", Long.toString(responseLength));
+            length = responseLength;
+        } else if (responseLength < 0) {
+            headers.set("Content-length", "0");
+            length = -1;
+        } else if (http11()) {
+            headers.set("Transfer-encoding", "chunked");
+            length = 0;
+        } else {
+            // HTTP/1.0 without a length: the body ends when the connection does
+            keepAlive = false;
+            length = Long.MAX_VALUE;
+        }
+        if ("close".equalsIgnoreCase(headers.getFirst("Connection"))) {
+            keepAlive = false;
+        }
+        if (!keepAlive) {
+            headers.set("Connection", "close");
+        } else if (!http11()) {
+            headers.set("Connection", "keep-alive");
+        }
+
+        StringBuilder text = new StringBuilder(256)
+                .append("HTTP/1.1 ").append(rCode).append(' ').append(reason(rCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                text.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        text.append("\r\n");
+        responseBody.begin(text.toString().getBytes(StandardCharsets.ISO_8859_1), length);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            in = i;
+        }
+        if (o != null) {
+            out = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    static String reason(int status) {
+        return switch (status) {
+            case 100 -> "Continue";
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 400 -> "Bad Request";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 410 -> "Gone";
+            case 411 -> "Length Required";
+            case 412 -> "Precondition Failed";
+            case 413 -> "Payload Too Large";
+            case 416 -> "Range Not Satisfiable";
+            case 429 -> "Too Many Requests";
+            case 431 -> "Request Header Fields Too Large";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 502 -> "Bad Gateway";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            case 505 -> "HTTP Version Not Supported";
+            case 507 -> "Insufficient Storage";
+            default -> "";
+        };
+    }
+
+    /**
+     * The request body, decoded from the raw bytes the loop queued; with
+     * chunked framing when {@code remaining} is -1.
+     */
+    private final class RequestBody extends InputStream {
+
+        private final boolean chunked;
+        private long remaining;
+        private ByteBuffer current;
+        private boolean done;
+        private boolean closed;
+        private boolean started;
+        private boolean chunkSeen;
+
+        RequestBody(long length) {
+            this.chunked = length < 0;
+            this.remaining = chunked ? 0 : length;
+            this.done = length == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (done) {
+                return -1;
+            }
+            if (!started) {
+                started = true;
+                if ("100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect")) && responseCode == -1) {
+                    // The client holds the body back until told to go ahead
+                    connection.send(ByteBuffer.wrap(CONTINUE));
+                }
+            }
+            if (chunked && remaining == 0) {
+                if (!nextChunk()) {
+                    return -1;
+                }
+            }
+            if (!fill()) {
+                throw new EOFException("Request body ended early");
+            }
+            int n = (int) Math.min(Math.min(len, remaining), current.remaining());
+            current.get(b, off, n);
+            remaining -= n;
+            if (!chunked && remaining == 0) {
+                done = true;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            if (done || closed || current == null) {
+                return 0;
+            }
+            return (int) Math.min(remaining, current.remaining());
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        // Reads the next chunk-size line; false after the last chunk and its trailers
+        private boolean nextChunk() throws IOException {
+            if (chunkSeen && !readLine().isEmpty()) {
+                // Chunk data is followed by CRLF
+                throw new IOException("Malformed chunk");
+            }
+            chunkSeen = true;
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).strip();
+            long length;
+            try {
+                length = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + size);
+            }
+            if (length < 0) {
+                throw new IOException("Malformed chunk size: " + size);
+            }
+            if (length == 0) {
+                // Trailers are read and dropped
+                while (!readLine().isEmpty()) {
+                    // Skip
+                }
+                done = true;
+                return false;
+            }
+            remaining = length;
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                if (!fill()) {
+                    throw new EOFException("Request body ended early");
+                }
+                byte b = current.get();
+                if (b == '\n') {
+                    int end = line.length();
+                    return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+                }
+                if (line.length() >= MAX_LINE) {
+                    throw new IOException("Chunk line too long");
+                }
+                line.append((char) (b & 0xFF));
+            }
+        }
+
+        private boolean fill() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (current != null) {
+                    connection.pool().release(current);
+                    current = null;
+                }
+                ByteBuffer next = connection.take();
+                if (next == null) {
+                    return false;
+                }
+                current = next;
+            }
+            return true;
+        }
+
+        // Bytes read past the end of the body belong to the next request
+        ByteBuffer detach() {
+            ByteBuffer leftover = current;
+            current = null;
+            if (leftover != null && !leftover.hasRemaining()) {
+                connection.pool().release(leftover);
+                return null;
+            }
+            return leftover;
+        }
+    }
+
+    /**
+     * The response: headers and body packed into pooled buffers and passed
+     * to the connection as each one fills.
+     */
+    private final class ResponseBody extends OutputStream {
+
+        private ByteBuffer buffer;
+        // Where body bytes start in the current buffer
+        private int dataStart;
+        private byte[] pendingHead;
+        // -1 for no body, 0 for chunked, else the exact length
+        private long length = -2;
+        private long written;
+        private boolean closed;
+        private boolean complete;
+
+        void begin(byte[] head, long length) throws IOException {
+            this.length = length;
+            this.pendingHead = head;
+            if (length == -1) {
+                close();
+            }
+        }
+
+        boolean complete() {
+            return complete;
+        }
+
+        // Drops what is buffered; the connection closes without the rest of the body
+        void abandon() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingHead = null;
+            if (buffer != null) {
+                connection.pool().release(buffer);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (length == -2) {
+                throw new IOException("sendResponseHeaders has not been called");
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return;
+            }
+            if (length == -1) {
+                if (method.equalsIgnoreCase("HEAD")) {
+                    return;
+                }
+                throw new IOException("Response has no body");
+            }
+            if (length > 0 && written + len > length) {
+                throw new IOException("Too many bytes for Content-Length " + length);
+            }
+            written += len;
+            while (len > 0) {
+                ensureBuffer();
+                int space = buffer.limit() - buffer.position();
+                int n = Math.min(space, len);
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+                if (buffer.position() == buffer.limit()) {
+                    push(false);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!closed && length != -2 && (buffer != null || pendingHead != null)) {
+                ensureBuffer();
+                push(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed || length == -2) {
+                return;
+            }
+            closed = true;
+            ensureBuffer();
+            push(length == 0);
+            if (length > 0 && length != Long.MAX_VALUE && written != length) {
+                keepAlive = false;
+                throw new IOException("Response ended after " + written + " of " + length + " bytes");
+            }
+            complete = length != Long.MAX_VALUE;
+        }
+
+        private void ensureBuffer() {
+            if (buffer != null) {
+                return;
+            }
+            buffer = connection.pool().acquire();
+            if (pendingHead != null && pendingHead.length <= buffer.capacity() / 2) {
+                buffer.put(pendingHead);
+                pendingHead = null;
+            }
+            if (length == 0) {
+                buffer.position(buffer.position() + CHUNK_HEADER);
+            }
+            dataStart = buffer.position();
+            // Room for the chunk's CRLF and the last chunk
+            buffer.limit(buffer.capacity() - (length == 0 ? CHUNK_TRAILER + LAST_CHUNK.length : 0));
+        }
+
+        // Sends the current buffer, framed as a chunk if chunked, with the last chunk after it if {@code last}
+        private void push(boolean last) throws IOException {
+            if (pendingHead != null) {
+                // Too large to share a buffer with the body
+                connection.send(ByteBuffer.wrap(pendingHead));
+                pendingHead = null;
+            }
+            ByteBuffer out = buffer;
+            buffer = null;
+            int data = out.position() - dataStart;
+            if (length == 0) {
+                out.limit(out.capacity());
+                int headerStart = dataStart - CHUNK_HEADER;
+                if (data > 0) {
+                    byte[] size = String.format("%06x\r\n", data).getBytes(StandardCharsets.ISO_8859_1);
+                    out.put(headerStart, size);
+                    out.put((byte) '\r').put((byte) '\n');
+                } else {
+                    out.position(headerStart);
+                }
+                if (last) {
+                    out.put(LAST_CHUNK);
+                }
+            }
+            out.flip();
+            if (out.hasRemaining()) {
+                connection.send(out);
+            } else {
+                connection.pool().release(out);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + uri + " " + protocol.toLowerCase(Locale.ROOT);
+    }
+}
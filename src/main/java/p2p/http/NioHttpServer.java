@@ -0,0 +1,308 @@
+package p2p.http;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import p2p.utils.BufferPool;
+import p2p.utils.Log;
+import p2p.utils.Metrics;
+
+/**
+ * An {@link HttpServer} on non-blocking channels. A few event loop threads
+ * own every socket: they accept, read request heads, and move body bytes in
+ * pooled direct buffers. Only a complete request reaches the executor, so
+ * connections that are idle or still sending their head cost no thread,
+ * and a handler blocked on a slow client parks until the loop has bytes
+ * for it or room for more.
+ *
+ * Contexts, filters and handlers work as with the JDK server, so the API
+ * runs on either unchanged. Configured with the {@code peerlink.http.*}
+ * properties: {@code eventLoops}, {@code bufferKB}, {@code maxPooledBuffers},
+ * {@code idleSeconds} (how long a connection may take to send a request
+ * head) and {@code sendBufferKB}/{@code receiveBufferKB} for the socket
+ * buffers, 0 leaving them to the OS.
+ */
+public final class NioHttpServer extends HttpServer {
+
+    static final int MAX_HEAD_BYTES = 64 * 1024;
+
+    private final BufferPool pool;
+    private final int loopCount;
+    private final long idleNanos;
+    private final int sendBuffer;
+    private final int receiveBuffer;
+    private final List<NioHttpContext> contexts = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel acceptor;
+    private EventLoop[] loops;
+    private volatile Executor executor;
+    private ExecutorService defaultExecutor;
+
+    public NioHttpServer(int loopCount, int bufferSize, int maxPooled, long idleMillis, int sendBuffer, int receiveBuffer) {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("At least one event loop is needed");
+        }
+        this.pool = new BufferPool(bufferSize, maxPooled);
+        this.loopCount = loopCount;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.sendBuffer = sendBuffer;
+        this.receiveBuffer = receiveBuffer;
+    }
+
+    /**
+     * A server configured from system properties, bound to {@code address}
+     * unless it is null.
+     */
+    public static NioHttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        NioHttpServer server = new NioHttpServer(
+                Integer.getInteger("peerlink.http.eventLoops", Math.max(1, Math.min(4, cores / 2))),
+                Integer.getInteger("peerlink.http.bufferKB", 64) * 1024,
+                Integer.getInteger("peerlink.http.maxPooledBuffers", 1024),
+                Long.getLong("peerlink.http.idleSeconds", 30) * 1000,
+                Integer.getInteger("peerlink.http.sendBufferKB", 0) * 1024,
+                Integer.getInteger("peerlink.http.receiveBufferKB", 0) * 1024);
+        if (address != null) {
+            server.bind(address, backlog);
+        }
+        return server;
+    }
+
+    BufferPool pool() {
+        return pool;
+    }
+
+    long idleNanos() {
+        return idleNanos;
+    }
+
+    @Override
+    public synchronized void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (acceptor != null) {
+            throw new BindException("Server already bound");
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(address, backlog);
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        acceptor = channel;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (acceptor == null) {
+            throw new IllegalStateException("Server not bound");
+        }
+        if (loops != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        if (executor == null) {
+            defaultExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("peerlink-http-", 0).factory());
+            executor = defaultExecutor;
+        }
+        EventLoop[] started = new EventLoop[loopCount];
+        try {
+            for (int i = 0; i < loopCount; i++) {
+                started[i] = new EventLoop(this, i);
+            }
+            // The first loop also accepts
+            acceptor.register(started[0].selector(), SelectionKey.OP_ACCEPT, acceptor);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot start event loops", e);
+        }
+        loops = started;
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        Metrics.gauge("peerlink_http_connections", "Open connections to the non-blocking HTTP server.", connections::get);
+        Metrics.gauge("peerlink_http_buffers_pooled", "Idle direct buffers kept for request and response bodies.",
+                pool::pooledCount);
+        Metrics.counter("peerlink_http_buffers_allocated_total", "Direct buffers allocated for request and response bodies.",
+                pool::allocatedCount);
+        Log.info("http.nio.started", "port", getAddress().getPort(), "loops", loopCount,
+                "bufferKB", pool.bufferSize() / 1024);
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (loops != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stops accepting, gives open exchanges up to {@code delay} seconds to
+     * finish, then closes every connection.
+     */
+    @Override
+    public void stop(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Negative delay");
+        }
+        EventLoop[] running;
+        synchronized (this) {
+            running = loops;
+            loops = null;
+        }
+        try {
+            acceptor.close();
+        } catch (IOException e) {
+            // Stopping anyway
+        }
+        if (running == null) {
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(delay);
+        while (connections.get() > 0 && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (EventLoop loop : running) {
+            loop.shutdown();
+        }
+        for (EventLoop loop : running) {
+            try {
+                loop.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (defaultExecutor != null) {
+            defaultExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Invalid context path: " + path);
+        }
+        NioHttpContext context = new NioHttpContext(this, path, handler);
+        for (NioHttpContext existing : contexts) {
+            if (existing.getPath().equals(path)) {
+                throw new IllegalArgumentException("Context already exists: " + path);
+            }
+        }
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(context -> context.getPath().equals(path))) {
+            throw new IllegalArgumentException("No context at " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        if (!contexts.remove(context)) {
+            throw new IllegalArgumentException("Unknown context");
+        }
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) acceptor.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Longest context path that prefixes the request path, as the JDK server matches
+    private NioHttpContext findContext(String path) {
+        NioHttpContext best = null;
+        for (NioHttpContext context : contexts) {
+            if (path.startsWith(context.getPath()) && context.getHandler() != null
+                    && (best == null || context.getPath().length() > best.getPath().length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    void dispatch(NioHttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath();
+        NioHttpContext context = findContext(path == null || path.isEmpty() ? "/" : path);
+        try {
+            executor.execute(() -> exchange.run(context));
+        } catch (RejectedExecutionException e) {
+            Log.warn("http.dispatch.rejected", "path", path);
+            exchange.close();
+        }
+    }
+
+    // Runs on the first loop whenever connections are waiting to be accepted
+    void acceptReady() {
+        EventLoop[] running = loops;
+        if (running == null) {
+            return;
+        }
+        try {
+            SocketChannel channel;
+            while ((channel = acceptor.accept()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    if (sendBuffer > 0) {
+                        channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+                    }
+                    if (receiveBuffer > 0) {
+                        channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+                    }
+                } catch (IOException e) {
+                    channel.close();
+                    continue;
+                }
+                connections.incrementAndGet();
+                running[Math.floorMod(nextLoop.getAndIncrement(), running.length)].adopt(channel);
+            }
+        } catch (IOException e) {
+            Log.warn("http.accept.failed", "error", e.getMessage());
+        }
+    }
+
+    void connectionClosed() {
+        connections.decrementAndGet();
+    }
+}
@@ -0,0 +1,594 @@
+package p2p.service;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import p2p.utils.Log;
+
+/**
+ * Decides which transfers run now, which wait and which are turned away, so
+ * that an overloaded node answers quickly instead of piling up work.
+ *
+ * Uploads and downloads each have a limit on concurrent transfers, and
+ * uploads also on the bytes they have announced but not yet finished, since
+ * those are what fill the staging disk. A transfer that does not fit waits
+ * in a short first-come-first-served queue; once that queue is full, or the
+ * wait runs out, it is rejected as {@link Reason#BUSY}. Uploads larger than
+ * the request limit or than the free disk space are rejected before a byte
+ * of their body is read.
+ *
+ * Admitted transfers are watched for stalls: one that moves fewer than the
+ * minimum rate over a whole window, like a slowloris client trickling its
+ * body, has its thread interrupted, which closes its connection.
+ *
+ * A lock and conditions are used rather than monitors so that parked
+ * virtual threads release their carrier.
+ */
+public class AdmissionControl {
+
+    public enum Direction {
+        UPLOAD,
+        DOWNLOAD
+    }
+
+    public enum Reason {
+        BUSY,
+        TOO_LARGE,
+        INSUFFICIENT_STORAGE
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Lane uploads;
+    private final Lane downloads;
+    private final int maxQueue;
+    private final long queueWaitMillis;
+    private volatile long maxRequestBytes;
+    private volatile LongSupplier freeSpace = () -> Long.MAX_VALUE;
+    private volatile long minBytesPerSecond;
+    private volatile long stallWindowMillis;
+    private final Set<Ticket> tickets = ConcurrentHashMap.newKeySet();
+    // A transfer runs on the thread that was admitted for it
+    private final ThreadLocal<Ticket> current = new ThreadLocal<>();
+    private final LongAdder stalled = new LongAdder();
+    private ScheduledExecutorService watchdog;
+
+    /**
+     * @param maxUploads      concurrent uploads, 0 for unlimited
+     * @param maxUploadBytes  bytes of admitted uploads not yet finished, 0 for unlimited
+     * @param maxDownloads    concurrent downloads, 0 for unlimited
+     * @param maxQueue        transfers that may wait per direction before the rest are rejected
+     * @param queueWaitMillis how long a queued transfer waits before it is rejected
+     */
+    public AdmissionControl(int maxUploads, long maxUploadBytes, int maxDownloads, int maxQueue, long queueWaitMillis) {
+        if (maxUploads < 0 || maxUploadBytes < 0 || maxDownloads < 0 || maxQueue < 0 || queueWaitMillis < 0) {
+            throw new IllegalArgumentException("Admission limits must not be negative");
+        }
+        this.uploads = new Lane(Direction.UPLOAD, maxUploads, maxUploadBytes);
+        this.downloads = new Lane(Direction.DOWNLOAD, maxDownloads, 0);
+        this.maxQueue = maxQueue;
+        this.queueWaitMillis = queueWaitMillis;
+    }
+
+    public static AdmissionControl unlimited() {
+        return new AdmissionControl(0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Configured by {@code peerlink.admission.uploads} (16),
+     * {@code uploadMB} (2048 in flight), {@code downloads} (64),
+     * {@code queue} (32), {@code queueWaitMs} (5000), {@code maxUploadMB}
+     * (unlimited), and the stall guard {@code minKBps} (1) over
+     * {@code stallSeconds} (30); a rate of 0 turns the guard off.
+     */
+    public static AdmissionControl fromSystemProperties() {
+        AdmissionControl admission = new AdmissionControl(
+                Integer.getInteger("peerlink.admission.uploads", 16),
+                Long.getLong("peerlink.admission.uploadMB", 2048) * 1024 * 1024,
+                Integer.getInteger("peerlink.admission.downloads", 64),
+                Integer.getInteger("peerlink.admission.queue", 32),
+                Long.getLong("peerlink.admission.queueWaitMs", 5000));
+        admission.setMaxRequestBytes(Long.getLong("peerlink.admission.maxUploadMB", 0) * 1024 * 1024);
+        admission.setStallGuard(Long.getLong("peerlink.admission.minKBps", 1) * 1024,
+                TimeUnit.SECONDS.toMillis(Long.getLong("peerlink.admission.stallSeconds", 30)));
+        return admission;
+    }
+
+    /**
+     * The largest single upload accepted, 0 for unlimited.
+     */
+    public void setMaxRequestBytes(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Request limit must not be negative");
+        }
+        this.maxRequestBytes = bytes;
+    }
+
+    public long maxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    /**
+     * Where uploads are staged; announced uploads that would not fit are rejected.
+     */
+    public void setFreeSpace(LongSupplier freeSpace) {
+        this.freeSpace = freeSpace;
+    }
+
+    /**
+     * Transfers moving fewer than {@code minBytesPerSecond} over
+     * {@code windowMillis} are aborted; a rate of 0 disables the guard.
+     */
+    public void setStallGuard(long minBytesPerSecond, long windowMillis) {
+        if (minBytesPerSecond < 0 || windowMillis <= 0) {
+            throw new IllegalArgumentException("Stall guard needs a non-negative rate and a positive window");
+        }
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.stallWindowMillis = windowMillis;
+    }
+
+    public void start() {
+        lock.lock();
+        try {
+            if (watchdog != null) {
+                return;
+            }
+            watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "peerlink-admission-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watchdog.scheduleWithFixedDelay(this::abortStalled, 1, 1, TimeUnit.SECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void shutdown() {
+        lock.lock();
+        try {
+            if (watchdog != null) {
+                watchdog.shutdownNow();
+                watchdog = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admits a transfer for the calling thread, waiting in the queue if it
+     * does not fit yet. The ticket must be closed when the transfer ends.
+     *
+     * @param bytes the announced length of an upload, -1 if unknown or for downloads
+     * @throws RejectedException if the transfer should be turned away
+     */
+    public Ticket admit(Direction direction, long bytes) throws RejectedException {
+        Lane lane = direction == Direction.UPLOAD ? uploads : downloads;
+        long charged = Math.max(0, bytes);
+        if (direction == Direction.UPLOAD) {
+            long maxRequest = maxRequestBytes;
+            if (maxRequest > 0 && bytes > maxRequest) {
+                throw lane.reject(Reason.TOO_LARGE);
+            }
+        }
+        long free = direction == Direction.UPLOAD && charged > 0 ? freeSpace.getAsLong() : Long.MAX_VALUE;
+        lock.lock();
+        try {
+            if (charged + lane.bytes > free) {
+                throw lane.reject(Reason.INSUFFICIENT_STORAGE);
+            }
+            if (lane.queue.isEmpty() && lane.fits(charged)) {
+                return lane.admit(charged);
+            }
+            if (lane.queue.size() >= maxQueue) {
+                throw lane.reject(Reason.BUSY);
+            }
+            Condition turn = lock.newCondition();
+            lane.queue.addLast(turn);
+            try {
+                long remaining = TimeUnit.MILLISECONDS.toNanos(queueWaitMillis);
+                while (lane.queue.peekFirst() != turn || !lane.fits(charged)) {
+                    if (remaining <= 0) {
+                        throw lane.reject(Reason.BUSY);
+                    }
+                    remaining = turn.awaitNanos(remaining);
+                }
+                return lane.admit(charged);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw lane.reject(Reason.BUSY);
+            } finally {
+                lane.queue.remove(turn);
+                lane.signalHead();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How long a rejected client should wait before retrying: about as long
+     * as a queued transfer would have waited.
+     */
+    public long retryAfterSeconds() {
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(queueWaitMillis));
+    }
+
+    /**
+     * The open ticket of the transfer running on the calling thread, or null.
+     */
+    public Ticket current() {
+        return current.get();
+    }
+
+    public int active(Direction direction) {
+        return (direction == Direction.UPLOAD ? uploads : downloads).active;
+    }
+
+    public int queued(Direction direction) {
+        lock.lock();
+        try {
+            return (direction == Direction.UPLOAD ? uploads : downloads).queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long uploadBytesInFlight() {
+        return uploads.bytes;
+    }
+
+    public long rejected(Direction direction, Reason reason) {
+        return (direction == Direction.UPLOAD ? uploads : downloads).rejected[reason.ordinal()].sum();
+    }
+
+    /**
+     * Transfers aborted by the stall guard.
+     */
+    public long stalledCount() {
+        return stalled.sum();
+    }
+
+    /**
+     * Aborts every watched transfer that moved too little during its last
+     * full window. Run every second by the watchdog.
+     */
+    void abortStalled() {
+        long minRate = minBytesPerSecond;
+        if (minRate == 0) {
+            return;
+        }
+        long window = stallWindowMillis;
+        long now = System.nanoTime();
+        for (Ticket ticket : tickets) {
+            if (ticket.stalled(now, window, minRate)) {
+                stalled.increment();
+                Log.warn("admission.stalled", "direction", ticket.lane.direction, "bytes", ticket.transferred,
+                        "minBytesPerSecond", minRate);
+                ticket.abort();
+            }
+        }
+    }
+
+    private final class Lane {
+
+        final Direction direction;
+        final int maxTransfers;
+        final long maxBytes;
+        final ArrayDeque<Condition> queue = new ArrayDeque<>();
+        final LongAdder[] rejected = new LongAdder[Reason.values().length];
+        // Guarded by the lock; volatile for the metrics readers
+        volatile int active;
+        volatile long bytes;
+
+        Lane(Direction direction, int maxTransfers, long maxBytes) {
+            this.direction = direction;
+            this.maxTransfers = maxTransfers;
+            this.maxBytes = maxBytes;
+            for (int i = 0; i < rejected.length; i++) {
+                rejected[i] = new LongAdder();
+            }
+        }
+
+        boolean fits(long charged) {
+            if (maxTransfers > 0 && active >= maxTransfers) {
+                return false;
+            }
+            // A transfer larger than the whole budget still runs, on its own
+            return maxBytes == 0 || active == 0 || bytes + charged <= maxBytes;
+        }
+
+        Ticket admit(long charged) {
+            active++;
+            bytes += charged;
+            Ticket ticket = new Ticket(this, charged);
+            tickets.add(ticket);
+            current.set(ticket);
+            return ticket;
+        }
+
+        void release(long charged) {
+            active--;
+            bytes -= charged;
+            signalHead();
+        }
+
+        void signalHead() {
+            Condition head = queue.peekFirst();
+            if (head != null) {
+                head.signal();
+            }
+        }
+
+        RejectedException reject(Reason reason) {
+            rejected[reason.ordinal()].increment();
+            return new RejectedException(direction, reason);
+        }
+    }
+
+    /**
+     * An admitted transfer. Its body streams are wrapped with
+     * {@link #wrap(InputStream)} and {@link #wrap(OutputStream)}, which
+     * report progress to the stall guard. The guard watches an upload from
+     * admission until its body ends, and a download from its first byte
+     * until the response is closed, so work before and after the transfer
+     * itself is never mistaken for a stall.
+     */
+    public final class Ticket implements AutoCloseable {
+
+        private final Lane lane;
+        private final long charged;
+        private final Thread thread = Thread.currentThread();
+        // Written by the transfer's own thread only
+        private volatile long transferred;
+        private volatile boolean watched;
+        private volatile boolean exempt;
+        // Each ticket has its own lock for the rest, so reads and writes never
+        // contend on the admission lock; only admit and release take that one
+        private final ReentrantLock state = new ReentrantLock();
+        private long windowStart;
+        private long windowBytes;
+        private boolean inIo;
+        private boolean closed;
+        private boolean aborted;
+
+        private Ticket(Lane lane, long charged) {
+            this.lane = lane;
+            this.charged = charged;
+        }
+
+        public Direction direction() {
+            return lane.direction;
+        }
+
+        public InputStream wrap(InputStream in) {
+            watch();
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    beginIo();
+                    int b;
+                    try {
+                        b = super.read();
+                    } finally {
+                        endIo();
+                    }
+                    progress(b == -1 ? -1 : 1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    beginIo();
+                    int n;
+                    try {
+                        n = super.read(buffer, offset, length);
+                    } finally {
+                        endIo();
+                    }
+                    progress(n);
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    watched = false;
+                    super.close();
+                }
+            };
+        }
+
+        public OutputStream wrap(OutputStream out) {
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    watch();
+                    beginIo();
+                    try {
+                        out.write(buffer, offset, length);
+                    } finally {
+                        endIo();
+                    }
+                    progress(length);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    beginIo();
+                    try {
+                        out.flush();
+                    } finally {
+                        endIo();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    watched = false;
+                    beginIo();
+                    try {
+                        out.close();
+                    } finally {
+                        endIo();
+                    }
+                }
+            };
+        }
+
+        private void progress(int count) {
+            if (count < 0) {
+                watched = false;
+            } else {
+                transferred += count;
+            }
+        }
+
+        /**
+         * Takes the transfer out of the stall guard for good, for one that may
+         * legitimately pause, like a download following a live upload.
+         */
+        public void exempt() {
+            exempt = true;
+            watched = false;
+        }
+
+        private void watch() {
+            if (!watched && !exempt) {
+                state.lock();
+                try {
+                    windowStart = System.nanoTime();
+                    windowBytes = transferred;
+                    watched = true;
+                } finally {
+                    state.unlock();
+                }
+            }
+        }
+
+        private void beginIo() throws IOException {
+            state.lock();
+            try {
+                if (aborted) {
+                    throw new IOException("Transfer aborted: slower than the minimum rate");
+                }
+                inIo = true;
+            } finally {
+                state.unlock();
+            }
+        }
+
+        private void endIo() throws IOException {
+            boolean wasAborted;
+            // An abort interrupts while holding the lock, so no interrupt can land after this
+            state.lock();
+            try {
+                inIo = false;
+                wasAborted = aborted;
+            } finally {
+                state.unlock();
+            }
+            if (wasAborted) {
+                Thread.interrupted();
+                throw new IOException("Transfer aborted: slower than the minimum rate");
+            }
+        }
+
+        private boolean stalled(long now, long windowMillis, long minRate) {
+            if (!watched) {
+                return false;
+            }
+            state.lock();
+            try {
+                long elapsed = now - windowStart;
+                if (closed || aborted || elapsed < TimeUnit.MILLISECONDS.toNanos(windowMillis)) {
+                    return false;
+                }
+                long moved = transferred - windowBytes;
+                windowStart = now;
+                windowBytes = transferred;
+                return moved * 1_000_000_000d / elapsed < minRate;
+            } finally {
+                state.unlock();
+            }
+        }
+
+        /**
+         * Aborts the transfer. A thread blocked on its socket is interrupted,
+         * which closes the connection; that is only done while it is inside
+         * the body stream, so files it has open are never closed under it.
+         */
+        private void abort() {
+            state.lock();
+            try {
+                if (closed || aborted) {
+                    return;
+                }
+                aborted = true;
+                if (inIo) {
+                    thread.interrupt();
+                }
+            } finally {
+                state.unlock();
+            }
+        }
+
+        @Override
+        public void close() {
+            state.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+            } finally {
+                state.unlock();
+            }
+            tickets.remove(this);
+            if (current.get() == this) {
+                current.remove();
+            }
+            lock.lock();
+            try {
+                lane.release(charged);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Thrown when a transfer is turned away.
+     */
+    public static class RejectedException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public final Direction direction;
+        public final Reason reason;
+
+        public RejectedException(Direction direction, Reason reason) {
+            super(direction.name().toLowerCase(Locale.ROOT) + " rejected: " + reason.name().toLowerCase(Locale.ROOT));
+            this.direction = direction;
+            this.reason = reason;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package p2p.service;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.TokenBucket;
+
+/**
+ * Traffic shaping for transfers. Every transfer is charged against up to
+ * three token buckets: its own, its share's, and the node-wide one for its
+ * direction. After each slice it pauses for the longest debt among them.
+ *
+ * The shared buckets are fair: a transfer reserves one quantum at a time,
+ * times its share's weight, so concurrent transfers split a limit in
+ * proportion to their weights. Transfers no larger than the small-transfer
+ * threshold are charged to the shared buckets but never wait on them; small
+ * files finish straight away and large ones share what is left.
+ *
+ * All limits are in bytes per second, 0 meaning unlimited, and may be
+ * changed while transfers are running.
+ */
+public final class BandwidthShaper {
+
+    public static final long DEFAULT_SMALL_TRANSFER = 256 * 1024;
+
+    private final TokenBucket sendLimit;
+    private final TokenBucket receiveLimit;
+    private volatile long transferRate;
+    private volatile long shareRate;
+    private volatile long smallTransfer;
+    private final Map<Integer, ShareShaping> shares = new ConcurrentHashMap<>();
+    private final LongAdder pausedNanos = new LongAdder();
+
+    public BandwidthShaper(long sendRate, long receiveRate, long transferRate, long shareRate, long smallTransfer) {
+        this.sendLimit = new TokenBucket(sendRate);
+        this.receiveLimit = new TokenBucket(receiveRate);
+        setTransferRate(transferRate);
+        setShareRate(shareRate);
+        setSmallTransfer(smallTransfer);
+    }
+
+    public static BandwidthShaper unlimited() {
+        return new BandwidthShaper(0, 0, 0, 0, DEFAULT_SMALL_TRANSFER);
+    }
+
+    /**
+     * Node-wide limits from {@code peerlink.shape.sendKBps},
+     * {@code receiveKBps}, {@code transferKBps} and {@code shareKBps}, all
+     * unlimited unless set, and {@code peerlink.shape.smallKB} (256).
+     */
+    public static BandwidthShaper fromSystemProperties() {
+        return new BandwidthShaper(
+                Long.getLong("peerlink.shape.sendKBps", 0) * 1024,
+                Long.getLong("peerlink.shape.receiveKBps", 0) * 1024,
+                Long.getLong("peerlink.shape.transferKBps", 0) * 1024,
+                Long.getLong("peerlink.shape.shareKBps", 0) * 1024,
+                Long.getLong("peerlink.shape.smallKB", DEFAULT_SMALL_TRANSFER / 1024) * 1024);
+    }
+
+    /**
+     * A throttle for sending {@code length} bytes of a share.
+     */
+    public Throttle sending(int shareCode, long length) {
+        ShareShaping share = shares.computeIfAbsent(shareCode, code -> new ShareShaping(shareRate));
+        return new Throttle(this, sendLimit, share, length >= 0 && length <= smallTransfer);
+    }
+
+    /**
+     * A throttle for receiving an upload of {@code length} bytes, -1 if unknown.
+     */
+    public Throttle receiving(long length) {
+        return new Throttle(this, receiveLimit, null, length >= 0 && length <= smallTransfer);
+    }
+
+    public long sendRate() {
+        return sendLimit.rate();
+    }
+
+    public void setSendRate(long bytesPerSecond) {
+        sendLimit.setRate(bytesPerSecond);
+    }
+
+    public long receiveRate() {
+        return receiveLimit.rate();
+    }
+
+    public void setReceiveRate(long bytesPerSecond) {
+        receiveLimit.setRate(bytesPerSecond);
+    }
+
+    public long transferRate() {
+        return transferRate;
+    }
+
+    /**
+     * Applies to running transfers from their next slice on.
+     */
+    public void setTransferRate(long bytesPerSecond) {
+        requireRate(bytesPerSecond);
+        this.transferRate = bytesPerSecond;
+    }
+
+    public long shareRate() {
+        return shareRate;
+    }
+
+    /**
+     * The limit for every share that has none of its own.
+     */
+    public void setShareRate(long bytesPerSecond) {
+        requireRate(bytesPerSecond);
+        this.shareRate = bytesPerSecond;
+        for (ShareShaping share : shares.values()) {
+            if (!share.ownRate) {
+                share.bucket.setRate(bytesPerSecond);
+            }
+        }
+    }
+
+    public long shareRate(int code) {
+        ShareShaping share = shares.get(code);
+        return share != null ? share.bucket.rate() : shareRate;
+    }
+
+    /**
+     * Gives one share its own limit; a negative rate restores the default.
+     */
+    public void setShareRate(int code, long bytesPerSecond) {
+        ShareShaping share = shares.computeIfAbsent(code, c -> new ShareShaping(shareRate));
+        share.ownRate = bytesPerSecond >= 0;
+        share.bucket.setRate(share.ownRate ? bytesPerSecond : shareRate);
+    }
+
+    public int shareWeight(int code) {
+        ShareShaping share = shares.get(code);
+        return share != null ? share.weight : 1;
+    }
+
+    /**
+     * How many quanta the share's transfers reserve per turn; 1 by default.
+     */
+    public void setShareWeight(int code, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be at least 1");
+        }
+        shares.computeIfAbsent(code, c -> new ShareShaping(shareRate)).weight = weight;
+    }
+
+    public long smallTransfer() {
+        return smallTransfer;
+    }
+
+    public void setSmallTransfer(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("small transfer size must not be negative");
+        }
+        this.smallTransfer = bytes;
+    }
+
+    public void forgetShare(int code) {
+        shares.remove(code);
+    }
+
+    /**
+     * Total time transfers have spent paused by a limit.
+     */
+    public long pausedNanos() {
+        return pausedNanos.sum();
+    }
+
+    private static void requireRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("rate must not be negative");
+        }
+    }
+
+    private static final class ShareShaping {
+
+        final TokenBucket bucket;
+        volatile boolean ownRate;
+        volatile int weight = 1;
+
+        ShareShaping(long rate) {
+            this.bucket = new TokenBucket(rate);
+        }
+    }
+
+    /**
+     * Paces one transfer. Senders ask for the {@link #quantum()} before each
+     * slice and report what they sent with {@link #consume(long)}.
+     */
+    public static final class Throttle {
+
+        /** Never pauses; for transfers outside any shaper. */
+        public static final Throttle NONE = new Throttle(null, new TokenBucket(0), null, false);
+
+        private final BandwidthShaper shaper;
+        private final TokenBucket direction;
+        private final ShareShaping share;
+        private final TokenBucket own = new TokenBucket(0);
+        private final boolean small;
+
+        private Throttle(BandwidthShaper shaper, TokenBucket direction, ShareShaping share, boolean small) {
+            this.shaper = shaper;
+            this.direction = direction;
+            this.share = share;
+            this.small = small;
+        }
+
+        /**
+         * The most to send before the next {@link #consume(long)};
+         * {@link Long#MAX_VALUE} while nothing limits this transfer.
+         */
+        public long quantum() {
+            syncOwnRate();
+            long quantum = Math.min(own.quantum(), direction.quantum());
+            if (share != null) {
+                quantum = Math.min(quantum, share.bucket.quantum());
+            }
+            if (quantum == Long.MAX_VALUE || share == null) {
+                return quantum;
+            }
+            return quantum * share.weight;
+        }
+
+        /**
+         * Charges {@code bytes} already sent or received and pauses until the
+         * limits allow more.
+         */
+        public void consume(long bytes) throws IOException {
+            if (bytes <= 0) {
+                return;
+            }
+            syncOwnRate();
+            long pause = own.reserve(bytes);
+            long shared = direction.reserve(bytes);
+            if (share != null) {
+                shared = Math.max(shared, share.bucket.reserve(bytes));
+            }
+            if (!small) {
+                pause = Math.max(pause, shared);
+            }
+            if (pause > 0) {
+                shaper.pausedNanos.add(pause);
+                try {
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while throttled");
+                }
+            }
+        }
+
+        public InputStream wrap(InputStream in) {
+            if (this == NONE) {
+                return in;
+            }
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) {
+                        consume(1);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    long quantum = quantum();
+                    int n = super.read(buffer, offset, (int) Math.min(length, Math.max(1, quantum)));
+                    consume(n);
+                    return n;
+                }
+            };
+        }
+
+        public OutputStream wrap(OutputStream out) {
+            if (this == NONE) {
+                return out;
+            }
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    consume(1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    while (length > 0) {
+                        int n = (int) Math.min(length, quantum());
+                        out.write(buffer, offset, n);
+                        consume(n);
+                        offset += n;
+                        length -= n;
+                    }
+                }
+            };
+        }
+
+        private void syncOwnRate() {
+            if (shaper != null) {
+                long rate = shaper.transferRate;
+                if (rate != own.rate()) {
+                    own.setRate(rate);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package p2p.service;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import p2p.utils.ChunkChecksums;
+import p2p.utils.Compression;
+import p2p.utils.Log;
+
+/**
+ * Content-addressed storage for shared files. Every distinct content is kept
+ * once, as {@code blobs/<first two hex digits>/<sha-256>}, and reference
+ * counted: each share holds one reference and the blob is deleted when the
+ * last share releases it.
+ *
+ * Uploads are written to {@code incoming/} through a {@link BlobWriter}, which
+ * hashes the bytes as they stream in, and then moved into place by digest.
+ * Per-chunk CRC32C checksums are computed in the same pass and kept next to
+ * the blob as {@code <sha-256>.crc}, along with the whole-content CRC-32 a
+ * zip entry needs, which is only kept in memory.
+ */
+public class BlobStore {
+
+    private final Path blobDir;
+    private final Path incomingDir;
+    private final Map<String, Integer> references = new ConcurrentHashMap<>();
+
+    public BlobStore(Path root) throws IOException {
+        this.blobDir = root.resolve("blobs");
+        this.incomingDir = root.resolve("incoming");
+        Files.createDirectories(blobDir);
+        Files.createDirectories(incomingDir);
+    }
+
+    /**
+     * A fresh file in the staging directory for uploads that cannot be hashed
+     * while they are written, such as out-of-order chunked uploads.
+     */
+    public Path newIncomingFile() {
+        return incomingDir.resolve(UUID.randomUUID().toString());
+    }
+
+    public BlobWriter newWriter() throws IOException {
+        return new BlobWriter(newIncomingFile());
+    }
+
+    /**
+     * Hashes a finished staging file and moves it into the store. The returned
+     * blob carries one reference for the caller.
+     */
+    public Blob importFile(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        ChunkChecksums.Builder checksums = new ChunkChecksums.Builder();
+        CRC32 crc = new CRC32();
+        long size = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[256 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+                checksums.write(buffer, 0, bytesRead);
+                crc.update(buffer, 0, bytesRead);
+                size += bytesRead;
+            }
+        }
+        return commit(file, HexFormat.of().formatHex(digest.digest()), size, checksums.build(), crc.getValue());
+    }
+
+    /**
+     * Takes a reference to a blob stored before a restart, as recorded in the
+     * share index. Only the file's presence is checked; its content is not
+     * read.
+     *
+     * @throws FileNotFoundException if the blob is missing
+     */
+    public Blob restore(String digest, long size) throws FileNotFoundException {
+        Path path = blobPath(digest);
+        if (!Files.isRegularFile(path)) {
+            throw new FileNotFoundException("Blob " + digest + " is missing");
+        }
+        references.merge(digest, 1, Integer::sum);
+        return new Blob(digest, path, size, -1);
+    }
+
+    /**
+     * Like {@link #restore(String, long)} for a blob whose size was not
+     * recorded; it is read from disk.
+     *
+     * @throws IOException if the blob is missing
+     */
+    public Blob restore(String digest) throws IOException {
+        long size = Files.size(blobPath(digest));
+        return restore(digest, size);
+    }
+
+    /**
+     * Deletes every blob that no share references, with its sidecars, and
+     * every staging file. Blobs of shares that expired while the node was
+     * down, and uploads cut off by a crash, are otherwise never released.
+     * Only safe once the restored shares hold their references and before
+     * any upload starts.
+     *
+     * @return the number of files deleted
+     */
+    public int deleteUnreferenced() throws IOException {
+        int deleted = 0;
+        try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(blobDir)) {
+            for (Path prefix : prefixes) {
+                if (!Files.isDirectory(prefix)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(prefix)) {
+                    for (Path file : files) {
+                        String digest = file.getFileName().toString().replaceFirst("\\.(crc|gz)$", "");
+                        if (deleteIfUnreferenced(digest, file)) {
+                            deleted++;
+                        }
+                    }
+                }
+            }
+        }
+        try (DirectoryStream<Path> staged = Files.newDirectoryStream(incomingDir)) {
+            for (Path file : staged) {
+                if (Files.deleteIfExists(file)) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+
+    // Serialised with commits of the same digest, which may revive it
+    private boolean deleteIfUnreferenced(String digest, Path file) throws IOException {
+        boolean[] deleted = new boolean[1];
+        IOException[] failure = new IOException[1];
+        references.compute(digest, (key, count) -> {
+            if (count == null) {
+                try {
+                    deleted[0] = Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            }
+            return count;
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return deleted[0];
+    }
+
+    public int referenceCount(String digest) {
+        return references.getOrDefault(digest, 0);
+    }
+
+    private Blob commit(Path staged, String digest, long size, ChunkChecksums checksums, long crc32) throws IOException {
+        Path target = blobPath(digest);
+        IOException[] failure = new IOException[1];
+        // compute() serialises commits and releases of the same digest, so a blob
+        // is never deleted while another upload of the same content lands
+        references.compute(digest, (key, count) -> {
+            try {
+                if (count == null && !Files.exists(target)) {
+                    Files.createDirectories(target.getParent());
+                    checksums.writeTo(crcPath(digest));
+                    move(staged, target);
+                } else {
+                    // Same content is already stored
+                    Files.deleteIfExists(staged);
+                }
+                return count == null ? 1 : count + 1;
+            } catch (IOException e) {
+                failure[0] = e;
+                return count;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return new Blob(digest, target, size, crc32);
+    }
+
+    private void release(String digest) {
+        references.computeIfPresent(digest, (key, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            try {
+                Files.deleteIfExists(blobPath(digest));
+                Files.deleteIfExists(gzipPath(digest));
+                Files.deleteIfExists(crcPath(digest));
+                Log.debug("blob.deleted", "digest", digest);
+            } catch (IOException e) {
+                Log.warn("blob.delete.failed", "digest", digest, "error", e);
+            }
+            return null;
+        });
+    }
+
+    private Path blobPath(String digest) {
+        return blobDir.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private Path crcPath(String digest) {
+        return blobDir.resolve(digest.substring(0, 2)).resolve(digest + ".crc");
+    }
+
+    private Path gzipPath(String digest) {
+        return blobDir.resolve(digest.substring(0, 2)).resolve(digest + ".gz");
+    }
+
+    private void storeGzipVariant(Blob blob) throws IOException {
+        Path target = gzipPath(blob.digest);
+        if (Files.exists(target)) {
+            return;
+        }
+        Path staged = newIncomingFile();
+        try {
+            try (InputStream in = Files.newInputStream(blob.path);
+                    OutputStream out = Compression.encoder(Compression.GZIP, Files.newOutputStream(staged))) {
+                in.transferTo(out);
+            }
+            move(staged, target);
+        } finally {
+            Files.deleteIfExists(staged);
+        }
+        // The last share may have gone while compressing; don't leave an orphan
+        if (referenceCount(blob.digest) == 0) {
+            Files.deleteIfExists(target);
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * One stored content. Each instance handed out stands for one reference,
+     * given back with {@link #release()}.
+     */
+    public class Blob {
+
+        public final String digest;
+        public final Path path;
+        public final long size;
+        // CRC-32 of the content, or -1 for a blob restored from the index
+        public final long crc32;
+        private volatile ChunkChecksums checksums;
+
+        Blob(String digest, Path path, long size, long crc32) {
+            this.digest = digest;
+            this.path = path;
+            this.size = size;
+            this.crc32 = crc32;
+        }
+
+        public byte[] sha256() {
+            return HexFormat.of().parseHex(digest);
+        }
+
+        /**
+         * Per-chunk CRC32C checksums, read from the sidecar on first use.
+         * Returns null if the blob has none.
+         */
+        public ChunkChecksums checksums() {
+            ChunkChecksums loaded = checksums;
+            if (loaded == null) {
+                try {
+                    loaded = ChunkChecksums.readFrom(crcPath(digest));
+                    checksums = loaded;
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+            return loaded;
+        }
+
+        public void release() {
+            BlobStore.this.release(digest);
+        }
+
+        /**
+         * Another reference to the same content, for a second owner.
+         *
+         * @throws FileNotFoundException if the last reference is gone already
+         */
+        public Blob retain() throws FileNotFoundException {
+            if (references.computeIfPresent(digest, (key, count) -> count + 1) == null) {
+                throw new FileNotFoundException("Blob " + digest + " was released");
+            }
+            return new Blob(digest, path, size, crc32);
+        }
+
+        /**
+         * The gzip-compressed copy of this blob, or null if none was made.
+         */
+        public Path gzipVariant() {
+            Path variant = gzipPath(digest);
+            return Files.exists(variant) ? variant : null;
+        }
+
+        /**
+         * Compresses the blob once so popular downloads can send the stored
+         * gzip bytes instead of compressing on every request.
+         */
+        public void createGzipVariant() throws IOException {
+            storeGzipVariant(this);
+        }
+    }
+
+    /**
+     * Streams an upload to a staging file while hashing it, so storing by
+     * digest needs no second pass over the data.
+     */
+    public class BlobWriter extends OutputStream {
+
+        private final Path staged;
+        private final OutputStream out;
+        private final MessageDigest digest = newDigest();
+        private final ChunkChecksums.Builder checksums = new ChunkChecksums.Builder();
+        private final CRC32 crc = new CRC32();
+        private long size;
+        private boolean closed;
+
+        BlobWriter(Path staged) throws IOException {
+            this.staged = staged;
+            this.out = new FileOutputStream(staged.toFile());
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            digest.update((byte) b);
+            checksums.write(b);
+            crc.update(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+            digest.update(data, offset, length);
+            checksums.write(data, offset, length);
+            crc.update(data, offset, length);
+            size += length;
+        }
+
+        /**
+         * Finishes the upload and stores it by digest. The returned blob carries
+         * one reference for the caller.
+         */
+        public Blob commit() throws IOException {
+            close();
+            return BlobStore.this.commit(staged, HexFormat.of().formatHex(digest.digest()), size, checksums.build(),
+                    crc.getValue());
+        }
+
+        /**
+         * Drops a partial upload.
+         */
+        public void abort() {
+            try {
+                close();
+                Files.deleteIfExists(staged);
+            } catch (IOException e) {
+                Log.warn("blob.discard.failed", "error", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+}
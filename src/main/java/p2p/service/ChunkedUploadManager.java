@@ -0,0 +1,348 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import p2p.utils.Log;
+import p2p.utils.StreamRelay;
+
+/**
+ * Resumable chunked uploads. A session reserves a sparse file of the final
+ * size; chunks may arrive concurrently and in any order and are written at
+ * their offset with positional writes. Received chunks are tracked in a
+ * bitmap so a client can ask which ones are still missing after an
+ * interruption.
+ *
+ * A live session also publishes the contiguous prefix received so far
+ * through a {@link LiveSource}, so the file can be shared while it uploads.
+ */
+public class ChunkedUploadManager {
+
+    public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    public static final long MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    // Bounds the received-chunk bitmap at 32 KB a session; 2 TB at the default chunk size
+    public static final int MAX_CHUNKS = 1 << 18;
+
+    // Sessions nobody has touched for this long are dropped with their file;
+    // live ones sooner, since downloaders are waiting on them
+    private static final long SESSION_IDLE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final long LIVE_SESSION_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final Map<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final int maxSessions;
+    private final AtomicInteger open = new AtomicInteger();
+
+    /**
+     * Allows {@code peerlink.upload.maxSessions} (256) sessions at once.
+     */
+    public ChunkedUploadManager() {
+        this(Integer.getInteger("peerlink.upload.maxSessions", 256));
+    }
+
+    public ChunkedUploadManager(int maxSessions) {
+        if (maxSessions < 1) {
+            throw new IllegalArgumentException("At least one upload session is needed");
+        }
+        this.maxSessions = maxSessions;
+    }
+
+    public UploadSession create(Path file, String originalFilename, long size, long chunkSize) throws IOException {
+        return create(file, originalFilename, size, chunkSize, false);
+    }
+
+    /**
+     * Opens a session, or returns null if {@code maxSessions} are already
+     * open.
+     */
+    public UploadSession create(Path file, String originalFilename, long size, long chunkSize, boolean live) throws IOException {
+        if (size < 0) {
+            throw new IllegalArgumentException("size must not be negative");
+        }
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        if ((size + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+            throw new IllegalArgumentException("More than " + MAX_CHUNKS + " chunks, use a larger chunkSize");
+        }
+        if (open.incrementAndGet() > maxSessions) {
+            open.decrementAndGet();
+            return null;
+        }
+        UploadSession session;
+        try {
+            session = new UploadSession(UUID.randomUUID().toString(), file, originalFilename, size, chunkSize, live);
+        } catch (IOException | RuntimeException e) {
+            open.decrementAndGet();
+            throw e;
+        }
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    public int openCount() {
+        return open.get();
+    }
+
+    public UploadSession get(String id) {
+        UploadSession session = sessions.get(id);
+        if (session != null) {
+            session.touch();
+        }
+        return session;
+    }
+
+    /**
+     * Closes a fully received session and removes it; the caller takes over
+     * the file. Of concurrent calls, only one gets the session.
+     *
+     * @throws IllegalStateException if chunks are still missing
+     */
+    public UploadSession complete(String id) throws IOException {
+        UploadSession session = sessions.get(id);
+        if (session == null) {
+            return null;
+        }
+        session.finish();
+        if (sessions.remove(id) == null) {
+            return null;
+        }
+        open.decrementAndGet();
+        return session;
+    }
+
+    /**
+     * Puts back a completed session whose file could not be stored, so the
+     * client can retry the completion. The idle sweep drops it otherwise,
+     * with its file.
+     */
+    public void reinstate(UploadSession session) {
+        open.incrementAndGet();
+        session.touch();
+        sessions.put(session.id, session);
+    }
+
+    public void abort(String id) {
+        UploadSession session = sessions.remove(id);
+        if (session != null) {
+            open.decrementAndGet();
+            session.discard();
+        }
+    }
+
+    public void shutdown() {
+        for (String id : new ArrayList<>(sessions.keySet())) {
+            abort(id);
+        }
+    }
+
+    /**
+     * Drops sessions that have gone idle, failing the share of a live one.
+     * Run periodically, e.g. by the {@link ShareLifecycleManager} sweep.
+     */
+    public void expireIdleSessions() {
+        expireIdleSessions(System.currentTimeMillis());
+    }
+
+    void expireIdleSessions(long now) {
+        for (UploadSession session : sessions.values()) {
+            long limit = session.live != null ? LIVE_SESSION_IDLE_MILLIS : SESSION_IDLE_MILLIS;
+            if (now - session.lastTouched > limit) {
+                Log.info("upload.expired", "id", session.id);
+                abort(session.id);
+            }
+        }
+    }
+
+    public static class UploadSession {
+
+        public final String id;
+        public final Path file;
+        public final String originalFilename;
+        public final long size;
+        public final long chunkSize;
+        public final int chunkCount;
+
+        private final FileChannel channel;
+        private final AtomicLongArray received;
+        private final AtomicInteger receivedCount = new AtomicInteger();
+        // Chunk writes share the lock; completing takes it exclusively
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile boolean closed;
+        // Guarded by the write lock: every chunk is flushed and the channel closed
+        private boolean finished;
+        private volatile long lastTouched = System.currentTimeMillis();
+        // Null unless the file is shared while it uploads
+        private final LiveSource live;
+        private int contiguousChunks;
+        private volatile int shareCode = -1;
+
+        UploadSession(String id, Path file, String originalFilename, long size, long chunkSize, boolean live) throws IOException {
+            long chunks = (size + chunkSize - 1) / chunkSize;
+            if (chunks > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many chunks, use a larger chunkSize");
+            }
+            this.id = id;
+            this.file = file;
+            this.originalFilename = originalFilename;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) chunks;
+            this.received = new AtomicLongArray((chunkCount + 63) / 64);
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                    StandardOpenOption.SPARSE);
+            this.live = live ? new LiveSource(file, size) : null;
+        }
+
+        public LiveSource live() {
+            return live;
+        }
+
+        /**
+         * Code of the share serving this upload while it is live, or -1.
+         */
+        public int shareCode() {
+            return shareCode;
+        }
+
+        public void attachShare(int code) {
+            this.shareCode = code;
+        }
+
+        public long chunkLength(int index) {
+            return Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        /**
+         * Writes chunk {@code index} from the stream. Re-sending a chunk that
+         * already arrived simply overwrites it.
+         *
+         * @throws IOException if the stream ends before the chunk is complete
+         */
+        public void writeChunk(int index, InputStream in) throws IOException {
+            if (index < 0 || index >= chunkCount) {
+                throw new IllegalArgumentException("Chunk index out of range: " + index);
+            }
+            lock.readLock().lock();
+            try {
+                if (closed) {
+                    throw new IllegalStateException("Upload is already complete");
+                }
+                touch();
+                long length = chunkLength(index);
+                long copied = StreamRelay.relay(in, channel, (long) index * chunkSize, length);
+                if (copied < length) {
+                    throw new IOException("Chunk " + index + " ended after " + copied + " of " + length + " bytes");
+                }
+                markReceived(index);
+                if (live != null) {
+                    advanceWatermark();
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Readers may only go as far as the chunks received without gaps
+        private void advanceWatermark() {
+            long watermark;
+            synchronized (received) {
+                while (contiguousChunks < chunkCount && isReceived(contiguousChunks)) {
+                    contiguousChunks++;
+                }
+                watermark = Math.min(size, (long) contiguousChunks * chunkSize);
+            }
+            live.advanceTo(watermark);
+        }
+
+        public boolean isReceived(int index) {
+            return (received.get(index >>> 6) & (1L << (index & 63))) != 0;
+        }
+
+        public int receivedCount() {
+            return receivedCount.get();
+        }
+
+        public List<Integer> missingChunks() {
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < chunkCount; i++) {
+                if (!isReceived(i)) {
+                    missing.add(i);
+                }
+            }
+            return missing;
+        }
+
+        private void markReceived(int index) {
+            int word = index >>> 6;
+            long bit = 1L << (index & 63);
+            while (true) {
+                long current = received.get(word);
+                if ((current & bit) != 0) {
+                    return;
+                }
+                if (received.compareAndSet(word, current, current | bit)) {
+                    receivedCount.incrementAndGet();
+                    return;
+                }
+            }
+        }
+
+        private void finish() throws IOException {
+            lock.writeLock().lock();
+            try {
+                if (finished) {
+                    // Completing again after the file could not be stored
+                    return;
+                }
+                if (closed) {
+                    throw new IllegalStateException("Upload is already complete");
+                }
+                if (receivedCount.get() != chunkCount) {
+                    throw new IllegalStateException((chunkCount - receivedCount.get()) + " chunks still missing");
+                }
+                channel.force(false);
+                channel.close();
+                closed = true;
+                finished = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void discard() {
+            lock.writeLock().lock();
+            try {
+                closed = true;
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("upload.close.failed", "id", id, "error", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (live != null) {
+                live.fail("Upload was abandoned");
+            }
+            file.toFile().delete();
+        }
+
+        private void touch() {
+            lastTouched = System.currentTimeMillis();
+            if (live != null) {
+                live.touch();
+            }
+        }
+    }
+}
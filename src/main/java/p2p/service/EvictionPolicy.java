@@ -0,0 +1,41 @@
+package p2p.service;
+
+import java.util.Comparator;
+
+/**
+ * Decides which shares go first when the disk budget is exceeded. Shares are
+ * evicted in ascending order of this comparator.
+ */
+public interface EvictionPolicy extends Comparator<ShareRegistry.Share> {
+
+    /**
+     * Least recently downloaded first.
+     */
+    EvictionPolicy LRU = (a, b) -> Long.compare(a.usage.lastAccessMillis(), b.usage.lastAccessMillis());
+
+    /**
+     * Least often downloaded first, oldest access breaking ties.
+     */
+    EvictionPolicy LFU = (a, b) -> {
+        int byCount = Integer.compare(a.usage.downloads(), b.usage.downloads());
+        return byCount != 0 ? byCount : LRU.compare(a, b);
+    };
+
+    /**
+     * Resolves {@code lru} or {@code lfu}, or the name of a class implementing
+     * this interface with a no-argument constructor.
+     */
+    static EvictionPolicy forName(String name) {
+        if (name == null || name.equalsIgnoreCase("lru")) {
+            return LRU;
+        }
+        if (name.equalsIgnoreCase("lfu")) {
+            return LFU;
+        }
+        try {
+            return (EvictionPolicy) Class.forName(name).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Unknown eviction policy: " + name, e);
+        }
+    }
+}
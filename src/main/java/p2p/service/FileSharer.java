@@ -4,29 +4,107 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.function.IntPredicate;
 
-import p2p.utils.UploadUtils;
+import p2p.utils.ChunkChecksums;
+import p2p.utils.Compression;
+import p2p.utils.ExecutionMode;
+import p2p.utils.Log;
+import p2p.utils.Metrics;
+import p2p.utils.TransferHeader;
+import p2p.utils.ZipLayout;
 
-public class FileSharer {
+public final class FileSharer {
 
-    private Map<Integer, String> availableFiles;
-    private Map<Integer, String> originalFilenames;
-    private Map<Integer, ServerSocket> activeServers;
+    public static final int DEFAULT_PORT = 9000;
+
+    // Set -Dpeerlink.sender.zeroCopy=false to force the buffered stream sender
+    static final boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("peerlink.sender.zeroCopy", "true"));
+
+    // Set -Dpeerlink.sender.mmap=true to serve files of at least
+    // peerlink.sender.mmapMinMB from one mapping shared by all their senders
+    static final boolean MMAP = Boolean.getBoolean("peerlink.sender.mmap");
+    static final long MMAP_MIN_SIZE = Long.getLong("peerlink.sender.mmapMinMB", 256) * 1024 * 1024;
+
+    // Compressible uploads up to this size get a stored gzip copy; 0 disables
+    static final long PRECOMPRESS_MAX_SIZE = Long.getLong("peerlink.compress.storeMaxMB", 512) * 1024 * 1024;
+
+    private final ShareRegistry shares = new ShareRegistry();
+    private final ShareLimits defaultLimits = ShareLimits.fromSystemProperties();
+    private final ShareLifecycleManager lifecycle = ShareLifecycleManager.fromSystemProperties(shares, this::stopFileServer);
+    private final HotFileCache hotCache = HotFileCache.fromSystemProperties();
+    private final BandwidthShaper shaper = BandwidthShaper.fromSystemProperties();
+    // Null unless shares are persisted across restarts
+    private volatile ShareIndex index;
     private ExecutorService executorService;
+    private final int listenPort;
+    private ShareListener listener;
 
     public FileSharer() {
-        availableFiles = new HashMap<>();
-        originalFilenames = new HashMap<>();
-        activeServers = new HashMap<>();
-        executorService = Executors.newCachedThreadPool();
+        this(Integer.getInteger("peerlink.share.port", DEFAULT_PORT), ExecutionMode.fromSystemProperties());
+    }
+
+    public FileSharer(int listenPort, ExecutionMode executionMode) {
+        this.listenPort = listenPort;
+        // One sender task per connected client; platform mode caps how many run at once
+        executorService = executionMode.newExecutor("peerlink-share", Integer.getInteger("peerlink.share.threads", 64));
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        Metrics.executorQueue("share", executorService);
+        Metrics.gauge("peerlink_shares", "Shares currently registered.", shares::size);
+        Metrics.gauge("peerlink_shares_dormant", "Restored shares not requested since the restart.", shares::dormantCount);
+        Metrics.gauge("peerlink_cache_bytes", "Bytes held by the hot file cache.", hotCache::usedBytes);
+        Metrics.counter("peerlink_cache_requests_total{result=\"hit\"}", "Hot file cache lookups.", hotCache::hits);
+        Metrics.counter("peerlink_cache_requests_total{result=\"miss\"}", "Hot file cache lookups.", hotCache::misses);
+        Metrics.counter("peerlink_shares_retired_total{reason=\"expired\"}", "Shares retired by the lifecycle sweep.",
+                lifecycle::expiredCount);
+        Metrics.counter("peerlink_shares_retired_total{reason=\"exhausted\"}", "Shares retired by the lifecycle sweep.",
+                lifecycle::exhaustedCount);
+        Metrics.counter("peerlink_shares_retired_total{reason=\"evicted\"}", "Shares retired by the lifecycle sweep.",
+                lifecycle::evictedCount);
+        Metrics.gauge("peerlink_bandwidth_limit_bytes{direction=\"send\"}", "Node-wide rate limit, 0 if unlimited.",
+                shaper::sendRate);
+        Metrics.gauge("peerlink_bandwidth_limit_bytes{direction=\"receive\"}", "Node-wide rate limit, 0 if unlimited.",
+                shaper::receiveRate);
+        Metrics.counter("peerlink_shaping_paused_milliseconds_total", "Time transfers spent paused by rate limits.",
+                () -> shaper.pausedNanos() / 1_000_000);
+    }
+
+    /**
+     * Binds the shared listener that serves every share. Clients name the share
+     * they want by sending its invite code in the request preamble.
+     */
+    public synchronized void start() throws IOException {
+        if (listener != null) {
+            return;
+        }
+        listener = new ShareListener(listenPort, this::dispatch);
+        Thread thread = new Thread(listener, "peerlink-share-listener");
+        thread.setDaemon(true);
+        thread.start();
+        lifecycle.start();
+        Log.info("share.listener.started", "port", listener.getPort());
+    }
+
+    /**
+     * Port of the share listener, or -1 before {@link #start()}.
+     */
+    public synchronized int getPort() {
+        return listener != null ? listener.getPort() : -1;
     }
 
     public int offerFile(String filePath) {
@@ -34,150 +112,714 @@ public class FileSharer {
     }
 
     public int offerFile(String filePath, String originalFilename) {
-        int port;
-        while (true) {
-            port = UploadUtils.generateCode();
-            if (!availableFiles.containsKey(port)) {
-                availableFiles.put(port, filePath);
-                originalFilenames.put(port, originalFilename);
-                return port;
-            }
-        }
+        return shares.reserve(filePath, originalFilename, null, defaultLimits).code;
+    }
+
+    /**
+     * Shares a stored blob under its original filename. The share owns the
+     * blob reference and releases it when the share is stopped.
+     */
+    public int offerFile(BlobStore.Blob blob, String originalFilename) {
+        return offerFile(blob, originalFilename, defaultLimits);
     }
 
-    public void startFileServer(int port) {
-        String filePath = availableFiles.get(port);
-        String originalFilename = originalFilenames.get(port);
+    public int offerFile(BlobStore.Blob blob, String originalFilename, ShareLimits limits) {
+        ShareRegistry.Share share = shares.reserve(blob.path.toString(), originalFilename, blob, limits);
+        persist(share);
+        precompress(blob, originalFilename);
+        return share.code;
+    }
+
+    /**
+     * Shares several files under one code, downloaded as a zip archive. The
+     * share owns the archive and releases it when the share is stopped.
+     */
+    public int offerArchive(ShareArchive archive, String archiveName, ShareLimits limits) {
+        ShareRegistry.Share share = shares.reserveArchive(archive, archiveName, limits);
+        persist(share);
+        compressArchive(share.code, archive, archiveName);
+        return share.code;
+    }
 
-        if (filePath == null) {
-            System.err.println("No file associated with port: " + port);
+    // Members are stored at first; the deflated version takes over once it is built
+    private void compressArchive(int code, ShareArchive archive, String archiveName) {
+        if (!archive.hasCompressibleMembers()) {
             return;
         }
-
         executorService.submit(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
-                activeServers.put(port, serverSocket);
-                System.out.println("Serving file '" + originalFilename + "' on port " + port);
-
-                // Accept multiple connections for the same file
-                while (!serverSocket.isClosed()) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        System.out.println("Client connected: " + clientSocket.getInetAddress());
-
-                        // Handle each client in a separate thread
-                        executorService.submit(new FileSenderHandler(clientSocket, filePath, originalFilename));
-
-                    } catch (IOException e) {
-                        if (!serverSocket.isClosed()) {
-                            System.err.println("Error accepting client connection: " + e.getMessage());
-                        }
-                        break;
-                    }
+            try {
+                ShareArchive compressed = archive.compressed();
+                if (compressed == null) {
+                    return;
                 }
+                if (!shares.replaceArchive(code, archive, compressed)) {
+                    compressed.release();
+                    return;
+                }
+                persist(shares.get(code));
+                // Downloads still sending the stored version read member blobs the new one also holds
+                archive.release();
+                Log.info("share.archive.compressed", "code", code, "file", archiveName, "size", compressed.size());
             } catch (IOException e) {
-                System.err.println("Error starting file server on port " + port + ": " + e.getMessage());
-            } finally {
-                // Clean up
-                activeServers.remove(port);
-                availableFiles.remove(port);
-                originalFilenames.remove(port);
+                Log.warn("share.compress.failed", "file", archiveName, "error", e);
             }
         });
     }
 
-    public void stopFileServer(int port) {
-        ServerSocket serverSocket = activeServers.get(port);
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-                System.out.println("Stopped file server on port " + port);
-            } catch (IOException e) {
-                System.err.println("Error stopping file server on port " + port + ": " + e.getMessage());
+    /**
+     * Brings back the shares recorded in {@code index} under their old codes
+     * and records later changes there. Each share is only registered for
+     * serving when it is first requested. The index is closed on shutdown.
+     */
+    public void restore(ShareIndex index, BlobStore blobStore) {
+        long now = System.currentTimeMillis();
+        int restored = 0;
+        for (ShareIndex.Entry entry : index.entries()) {
+            if (entry.isExpired(now)) {
+                index.remove(entry.code);
+                continue;
+            }
+            if (entry.archive) {
+                // An archive's manifest is read now so its members are referenced from the start
+                try {
+                    shares.restoreArchive(entry.code, entry.originalFilename, ShareArchive.restore(blobStore, entry.digest),
+                            entry.expiresAtMillis, entry.maxDownloads);
+                } catch (IOException e) {
+                    Log.warn("index.archive.unreadable", "code", entry.code, "error", e);
+                    index.remove(entry.code);
+                    continue;
+                }
+            } else {
+                try {
+                    shares.restore(entry.code, entry.originalFilename, blobStore.restore(entry.digest, entry.size),
+                            entry.expiresAtMillis, entry.maxDownloads);
+                } catch (FileNotFoundException e) {
+                    Log.warn("index.blob.missing", "code", entry.code, "digest", entry.digest);
+                    index.remove(entry.code);
+                    continue;
+                }
+            }
+            restored++;
+        }
+        // Expired shares took no reference, so their blobs go here with any crash leftovers
+        try {
+            int deleted = blobStore.deleteUnreferenced();
+            if (deleted > 0) {
+                Log.info("blob.unreferenced.deleted", "files", deleted);
+            }
+        } catch (IOException e) {
+            Log.warn("blob.sweep.failed", "error", e);
+        }
+        this.index = index;
+        Metrics.counter("peerlink_index_commits_total", "Group commits to the share index.", index::commitCount);
+        Metrics.counter("peerlink_index_records_total", "Records written to the share index.", index::recordCount);
+        Log.info("index.restored", "shares", restored);
+    }
+
+    /**
+     * Only codes the predicate accepts are handed out for new shares; in a
+     * cluster, those this node owns.
+     */
+    public void setCodeFilter(IntPredicate filter) {
+        shares.setCodeFilter(filter);
+    }
+
+    /**
+     * True if the share is served by this node, as an original or a replica.
+     */
+    public boolean hasShare(int code) {
+        return shares.getActive(code) != null;
+    }
+
+    /**
+     * Serves a copy of a share owned by another node under the owner's code
+     * and expiry.
+     */
+    public void addReplica(int code, BlobStore.Blob blob, String originalFilename, long expiresAtMillis) {
+        shares.restore(code, originalFilename, blob, expiresAtMillis, 0);
+        persist(shares.get(code));
+        Log.info("share.replicated", "code", code, "file", originalFilename, "size", blob.size);
+    }
+
+    // Only blob-backed shares survive a restart; other files may be gone by then
+    private void persist(ShareRegistry.Share share) {
+        ShareIndex current = index;
+        if (current == null || share == null) {
+            return;
+        }
+        if (share.blob != null) {
+            current.put(new ShareIndex.Entry(share.code, share.blob.digest, share.originalFilename, share.size,
+                    share.expiresAtMillis, share.maxDownloads));
+        } else if (share.archive != null) {
+            current.put(new ShareIndex.Entry(share.code, share.archive.manifest.digest, share.originalFilename, share.size,
+                    share.expiresAtMillis, share.maxDownloads, true));
+        }
+    }
+
+    /**
+     * Shares a file while it is still being uploaded. Downloads follow the
+     * upload; if it is abandoned the share stops with it.
+     */
+    public int offerLive(LiveSource live, String originalFilename, ShareLimits limits) {
+        int code = shares.reserveLive(live, originalFilename, limits).code;
+        live.onFailure(() -> stopFileServer(code));
+        return code;
+    }
+
+    /**
+     * Switches a live share over to the finished blob. Downloads already
+     * running finish from the staged file. Returns false, releasing the blob,
+     * if the share was stopped in the meantime.
+     */
+    public boolean completeLive(int code, BlobStore.Blob blob) {
+        ShareRegistry.Share previous = shares.completeLive(code, blob);
+        if (previous == null) {
+            blob.release();
+            return false;
+        }
+        previous.mapping.close();
+        previous.live.retire();
+        persist(shares.get(code));
+        precompress(blob, previous.originalFilename);
+        return true;
+    }
+
+    private void precompress(BlobStore.Blob blob, String originalFilename) {
+        if (blob.size <= PRECOMPRESS_MAX_SIZE && Compression.isWorthCompressing(originalFilename, blob.size)) {
+            // Compress once in the background; until it's done downloads compress on the fly
+            executorService.submit(() -> {
+                try {
+                    blob.createGzipVariant();
+                } catch (IOException e) {
+                    Log.warn("share.compress.failed", "file", originalFilename, "error", e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Limits applied to shares unless the uploader asks for tighter ones.
+     */
+    public ShareLimits getDefaultLimits() {
+        return defaultLimits;
+    }
+
+    public ShareLifecycleManager getLifecycle() {
+        return lifecycle;
+    }
+
+    public BandwidthShaper getShaper() {
+        return shaper;
+    }
+
+    public HotFileCache getHotCache() {
+        return hotCache;
+    }
+
+    public void startFileServer(int code) {
+        ShareRegistry.Share share = shares.activate(code);
+        if (share == null) {
+            Log.warn("share.unknown", "code", code);
+            return;
+        }
+        Log.info("share.started", "code", code, "file", share.originalFilename, "size", share.size);
+    }
+
+    public void stopFileServer(int code) {
+        ShareRegistry.Share share = shares.remove(code);
+        if (share == null) {
+            return;
+        }
+        Log.info("share.stopped", "code", code);
+        hotCache.invalidate(code);
+        shaper.forgetShare(code);
+        share.mapping.close();
+        if (share.live != null) {
+            share.live.retire();
+        }
+        if (share.archive != null) {
+            share.archive.release();
+        }
+        if (share.blob != null) {
+            share.blob.release();
+        }
+        if (share.blob != null || share.archive != null) {
+            ShareIndex current = index;
+            if (current != null) {
+                current.remove(code);
             }
         }
     }
 
     public void shutdown() {
-        // Close all active servers
-        for (ServerSocket serverSocket : activeServers.values()) {
+        lifecycle.shutdown();
+        synchronized (this) {
+            if (listener != null) {
+                listener.close();
+                listener = null;
+            }
+        }
+        // Blobs stay on disk; only the in-memory share state goes away
+        shares.clear();
+        if (index != null) {
+            index.close();
+            index = null;
+        }
+        executorService.shutdown();
+    }
+
+    private void dispatch(SocketChannel channel, TransferHeader request) {
+        Socket clientSocket = channel.socket();
+        int code = (int) request.getLong(TransferHeader.CODE, -1);
+        ShareRegistry.Share share = shares.getActive(code);
+        if (share == null) {
+            executorService.submit(() -> rejectRequest(clientSocket, "Unknown share code"));
+            return;
+        }
+        Log.debug("share.request", "code", code, "client", clientSocket.getInetAddress());
+
+        FileChannel liveChannel = null;
+        if (share.live != null) {
             try {
-                serverSocket.close();
+                liveChannel = share.live.acquire();
             } catch (IOException e) {
-                System.err.println("Error closing server socket: " + e.getMessage());
+                // The upload finished a moment ago; serve the completed share
+                share = shares.getActive(code);
+                if (share == null || share.live != null) {
+                    executorService.submit(() -> rejectRequest(clientSocket, "Unknown share code"));
+                    return;
+                }
             }
         }
-        activeServers.clear();
-        availableFiles.clear();
-        originalFilenames.clear();
-        executorService.shutdown();
+
+        long offset = Math.max(0, request.getLong(TransferHeader.OFFSET, 0));
+        long length = request.getLong(TransferHeader.LENGTH, -1);
+
+        // A download is a request for the start of the file; header probes and
+        // later ranges or segments of the same download are not counted again
+        share.usage.touch(System.currentTimeMillis());
+        if (offset == 0 && length != 0 && !share.usage.tryStartDownload(share.maxDownloads)) {
+            if (liveChannel != null) {
+                share.live.release();
+            }
+            executorService.submit(() -> rejectRequest(clientSocket, "Download limit reached"));
+            return;
+        }
+
+        // A live file is sent as it arrives, never re-encoded; an archive compresses its own members
+        String encoding = length != 0 && liveChannel == null && share.archive == null
+                ? Compression.negotiate(request.get(TransferHeader.ACCEPT_ENCODING), share.originalFilename, share.size)
+                : null;
+        long requested = length < 0 ? share.size - Math.min(offset, share.size) : length;
+        BandwidthShaper.Throttle throttle = shaper.sending(code, requested);
+        // Handle each client in a separate thread
+        executorService.submit(new FileSenderHandler(clientSocket, share, offset, length, encoding, hotCache, liveChannel, throttle));
+    }
+
+    private static void rejectRequest(Socket clientSocket, String reason) {
+        try (Socket socket = clientSocket) {
+            OutputStream out = socket.getOutputStream();
+            new TransferHeader().set(TransferHeader.ERROR, reason).writeTo(out);
+            out.flush();
+        } catch (IOException e) {
+            Log.warn("share.reject.failed", "reason", reason, "error", e);
+        }
     }
 
-    private static class FileSenderHandler implements Runnable {
+    static class FileSenderHandler implements Runnable {
+
+        // transferTo is issued in slices so progress can be logged between them
+        private static final long TRANSFER_SLICE = 8 * 1024 * 1024;
+        private static final long PROGRESS_STEP = 50 * 1024 * 1024;
+        private static final int STALL_WRITE_SIZE = 64 * 1024;
+        // How long a live download waits for the uploader before giving up,
+        // and how long once the uploader has stopped sending anything at all
+        private static final long LIVE_STALL_MILLIS = 10 * 60 * 1000;
+        private static final long LIVE_IDLE_MILLIS = 2 * 60 * 1000;
 
         private final Socket clientSocket;
         private final String filePath;
         private final String originalFilename;
+        private final long offset;
+        private final long length;
+        private final boolean zeroCopy;
+        private final ShareRegistry.Share share;
+        private final HotFileCache cache;
+        private final MappedShareFile mapping;
+        // Content coding negotiated with the client, null to send the bytes as is
+        private final String encoding;
+        // Acquired from share.live when the file is still being uploaded
+        private final FileChannel liveChannel;
+        private final BandwidthShaper.Throttle throttle;
+
+        public FileSenderHandler(Socket clientSocket, String filePath, String originalFilename, long offset, long length) {
+            this(clientSocket, filePath, originalFilename, offset, length, ZERO_COPY);
+        }
 
-        public FileSenderHandler(Socket clientSocket, String filePath, String originalFilename) {
+        FileSenderHandler(Socket clientSocket, ShareRegistry.Share share, long offset, long length, String encoding,
+                HotFileCache cache, FileChannel liveChannel, BandwidthShaper.Throttle throttle) {
+            this(clientSocket, share.filePath, share.originalFilename, offset, length, ZERO_COPY, share, cache,
+                    MMAP && share.size >= MMAP_MIN_SIZE && liveChannel == null && share.archive == null ? share.mapping : null,
+                    encoding, liveChannel,
+                    throttle);
+        }
+
+        /**
+         * Sends from a shared mapping of the file.
+         */
+        FileSenderHandler(Socket clientSocket, String filePath, String originalFilename, long offset, long length, MappedShareFile mapping) {
+            this(clientSocket, filePath, originalFilename, offset, length, ZERO_COPY, null, null, mapping, null, null, BandwidthShaper.Throttle.NONE);
+        }
+
+        /**
+         * Sends {@code length} bytes starting at {@code offset}; a negative
+         * length means up to the end of the file.
+         */
+        FileSenderHandler(Socket clientSocket, String filePath, String originalFilename, long offset, long length, boolean zeroCopy) {
+            this(clientSocket, filePath, originalFilename, offset, length, zeroCopy, null, null, null, null, null, BandwidthShaper.Throttle.NONE);
+        }
+
+        private FileSenderHandler(Socket clientSocket, String filePath, String originalFilename, long offset, long length,
+                boolean zeroCopy, ShareRegistry.Share share, HotFileCache cache, MappedShareFile mapping, String encoding,
+                FileChannel liveChannel, BandwidthShaper.Throttle throttle) {
             this.clientSocket = clientSocket;
             this.filePath = filePath;
             this.originalFilename = originalFilename;
+            this.offset = offset;
+            this.length = length;
+            this.zeroCopy = zeroCopy;
+            this.share = share;
+            this.cache = cache;
+            this.mapping = mapping;
+            this.encoding = encoding;
+            this.liveChannel = liveChannel;
+            this.throttle = throttle;
         }
 
         @Override
         public void run() {
+            long started = Metrics.SENDS.start();
+            boolean succeeded = false;
             try {
-                // Set socket options for large file transfers
                 clientSocket.setSoTimeout(600000); // 10 minutes timeout
-                clientSocket.setSendBufferSize(1024 * 1024); // 1MB send buffer
-                clientSocket.setTcpNoDelay(false); // Enable Nagle's algorithm for large transfers
+                // The header and a small file's last segment go out without waiting for an ACK
+                clientSocket.setTcpNoDelay(true);
+                long quantum = throttle.quantum();
+                if (quantum != Long.MAX_VALUE) {
+                    // A big kernel buffer would let a limited sender burst past its quantum;
+                    // otherwise the kernel's autotuning sizes the buffer
+                    clientSocket.setSendBufferSize((int) Math.min(1024 * 1024, Math.max(64 * 1024, 2 * quantum)));
+                }
+
+                HotFileCache.Entry cached = cache != null && liveChannel == null ? cache.get(share) : null;
+                File file = new File(filePath);
+                ShareArchive archive = share != null ? share.archive : null;
+                // A live file grows on disk; its final size is known from the upload, an archive's from its layout
+                long size = liveChannel != null || archive != null ? share.size : cached != null ? cached.size : file.length();
+                long start = Math.min(offset, size);
+                long count = length < 0 ? size - start : Math.min(length, size - start);
+
+                // Send the filename, the slice being sent and a validator so the
+                // receiver can relay without staging and answer range requests
+                long modified = archive != null ? archive.createdMillis : cached != null ? cached.modified : file.lastModified();
+                TransferHeader response = new TransferHeader()
+                        .set(TransferHeader.FILENAME, originalFilename)
+                        .set(TransferHeader.SIZE, size)
+                        .set(TransferHeader.OFFSET, start)
+                        .set(TransferHeader.LENGTH, count);
+                // Content that is still arriving has no validator yet
+                if (archive != null) {
+                    // The manifest fixes every byte of the archive
+                    response.set(TransferHeader.ETAG, "\"" + archive.manifest.digest + "\"")
+                            .set(TransferHeader.MODIFIED, modified);
+                } else if (liveChannel == null) {
+                    response.set(TransferHeader.ETAG, "\"" + Long.toHexString(size) + "-" + Long.toHexString(modified) + "\"")
+                            .set(TransferHeader.MODIFIED, modified);
+                } else {
+                    response.set(TransferHeader.LIVE, true);
+                }
+                if (share != null && share.blob != null) {
+                    addIntegrityFields(response, share.blob, start, count, size);
+                }
+                if (share != null && share.expiresAtMillis != Long.MAX_VALUE) {
+                    response.set(TransferHeader.EXPIRES, share.expiresAtMillis);
+                }
+                if (share != null && share.maxDownloads > 0) {
+                    response.set(TransferHeader.MAX_DOWNLOADS, share.maxDownloads);
+                }
+
+                SocketChannel channel = clientSocket.getChannel();
+                long totalBytesSent;
+                if (encoding != null) {
+                    response.set(TransferHeader.ENCODING, encoding);
+                    // A whole-file gzip download can use the copy compressed at upload
+                    File variant = encoding.equals(Compression.GZIP) && start == 0 && count == size ? storedGzip() : null;
+                    if (variant != null && channel != null) {
+                        long encodedLength = variant.length();
+                        response.set(TransferHeader.ENCODED_LENGTH, encodedLength);
+                        sendWithTransferTo(channel, variant, response.toBytes(), 0, encodedLength);
+                        totalBytesSent = count;
+                    } else {
+                        totalBytesSent = sendCompressed(channel, file, response.toBytes(), start, count);
+                    }
+                    succeeded = true;
+                    Log.info("send.completed", "file", originalFilename, "bytes", totalBytesSent, "encoding", encoding,
+                            "client", clientSocket.getInetAddress(), "ms", (System.nanoTime() - started) / 1_000_000);
+                    return;
+                }
+
+                byte[] header = response.toBytes();
+                if (archive != null) {
+                    totalBytesSent = sendArchive(channel, archive, header, start, count);
+                } else if (liveChannel != null) {
+                    totalBytesSent = sendLive(channel, header, start, count);
+                } else if (cached != null && channel != null) {
+                    totalBytesSent = sendFromMemory(channel, cached, header, start, count);
+                } else if (mapping != null && channel != null) {
+                    totalBytesSent = sendFromMapping(channel, header, start, count);
+                } else if (zeroCopy && channel != null) {
+                    totalBytesSent = sendWithTransferTo(channel, file, header, start, count);
+                } else {
+                    totalBytesSent = sendWithStreams(file, header, start, count);
+                }
+                succeeded = true;
+                Log.info("send.completed", "file", originalFilename, "bytes", totalBytesSent,
+                        "client", clientSocket.getInetAddress(), "ms", (System.nanoTime() - started) / 1_000_000);
+
+            } catch (IOException e) {
+                Log.warn("send.failed", "file", originalFilename, "client", clientSocket.getInetAddress(), "error", e);
+            } finally {
+                Metrics.SENDS.finish(started, succeeded);
+                if (liveChannel != null) {
+                    share.live.release();
+                }
+                try {
+                    clientSocket.close();
+                } catch (IOException e) {
+                    Log.warn("send.close.failed", "error", e);
+                }
+            }
+        }
+
+        /**
+         * Blob content never changes, so its digest doubles as a strong ETag.
+         * Chunk checksums are only needed for partial transfers; a whole file
+         * is covered by the SHA-256.
+         */
+        private static void addIntegrityFields(TransferHeader response, BlobStore.Blob blob, long start, long count, long size) {
+            response.set(TransferHeader.ETAG, "\"" + blob.digest + "\"");
+            response.set(TransferHeader.DIGEST, "sha-256=" + Base64.getEncoder().encodeToString(blob.sha256()));
+            ChunkChecksums checksums = blob.checksums();
+            if (checksums != null && (start > 0 || count < size)) {
+                String value = checksums.toHeader(start, count, size);
+                if (value != null) {
+                    response.set(TransferHeader.CHUNK_CRC32C, value);
+                }
+            }
+        }
+
+        private File storedGzip() {
+            if (share == null || share.blob == null) {
+                return null;
+            }
+            Path variant = share.blob.gzipVariant();
+            return variant != null ? variant.toFile() : null;
+        }
+
+        /**
+         * Streams the slice through the negotiated encoder. The compressed
+         * length isn't known up front, so the body ends when the socket closes.
+         */
+        private long sendCompressed(SocketChannel channel, File file, byte[] header, long start, long count) throws IOException {
+            // Charged after compression, as the bytes go onto the wire
+            OutputStream raw = throttle.wrap(channel != null ? Channels.newOutputStream(channel) : clientSocket.getOutputStream());
+            raw.write(header);
+            try (FileInputStream fis = new FileInputStream(file);
+                    OutputStream encoded = Compression.encoder(encoding, new BufferedOutputStream(raw, 64 * 1024))) {
+                fis.getChannel().position(start);
+                byte[] buffer = new byte[64 * 1024];
+                long totalBytesSent = 0;
+                int bytesRead;
+                while (totalBytesSent < count
+                        && (bytesRead = fis.read(buffer, 0, (int) Math.min(buffer.length, count - totalBytesSent))) != -1) {
+                    encoded.write(buffer, 0, bytesRead);
+                    totalBytesSent += bytesRead;
+                    Metrics.SENDS.addBytes(bytesRead);
+                }
+                return totalBytesSent;
+            }
+        }
+
+        /**
+         * Writes a cached file from its direct buffer, gathering the header
+         * and the body into the same writes.
+         */
+        private long sendFromMemory(SocketChannel channel, HotFileCache.Entry cached, byte[] header, long start, long count) throws IOException {
+            ByteBuffer body = cached.content();
+            long end = start + count;
+            long position = start;
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+            ByteBuffer[] buffers = { headerBuffer, body };
+            do {
+                long slice = Math.min(end - position, throttle.quantum());
+                body.position((int) position).limit((int) (position + slice));
+                while (headerBuffer.hasRemaining() || body.hasRemaining()) {
+                    channel.write(buffers);
+                }
+                position += slice;
+                Metrics.SENDS.addBytes(slice);
+                throttle.consume(slice);
+            } while (position < end);
+            return count;
+        }
+
+        private long sendFromMapping(SocketChannel channel, byte[] header, long start, long count) throws IOException {
+            writeFully(channel, ByteBuffer.wrap(header));
+            long end = start + count;
+            long position = start;
+            while (position < end) {
+                long sent = mapping.writeTo(channel, position, Math.min(end - position, throttle.quantum()));
+                position += sent;
+                Metrics.SENDS.addBytes(sent);
+                throttle.consume(sent);
+            }
+            return count;
+        }
+
+        /**
+         * Lets the kernel copy file pages straight to the socket (sendfile on
+         * Linux), so file data never passes through a user-space buffer.
+         */
+        private long sendWithTransferTo(SocketChannel channel, File file, byte[] header, long start, long count) throws IOException {
+            writeFully(channel, ByteBuffer.wrap(header));
+
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                transferRange(fileChannel, channel, start, start + count);
+                return count;
+            }
+        }
+
+        /**
+         * Sends a file that is still being uploaded, each slice as soon as the
+         * uploader's watermark has passed it. The socket paces this reader
+         * alone; other readers and the uploader are unaffected.
+         */
+        private long sendLive(SocketChannel channel, byte[] header, long start, long count) throws IOException {
+            if (channel == null) {
+                throw new IOException("Live shares need a socket channel");
+            }
+            writeFully(channel, ByteBuffer.wrap(header));
+            long end = start + count;
+            long position = start;
+            while (position < end) {
+                long available = Math.min(end, share.live.awaitBeyond(position, LIVE_STALL_MILLIS, LIVE_IDLE_MILLIS));
+                transferRange(liveChannel, channel, position, available);
+                position = available;
+            }
+            return count;
+        }
+
+        /**
+         * Sends a slice of an archive: zip headers as they are generated, and
+         * entry data straight from the member files with transferTo.
+         */
+        private long sendArchive(SocketChannel channel, ShareArchive archive, byte[] header, long start, long count) throws IOException {
+            if (channel == null) {
+                throw new IOException("Archive shares need a socket channel");
+            }
+            writeFully(channel, ByteBuffer.wrap(header));
+            archive.layout().write(start, start + count, new ZipLayout.Sink() {
+                @Override
+                public void header(ByteBuffer bytes) throws IOException {
+                    int length = bytes.remaining();
+                    writeFully(channel, bytes);
+                    Metrics.SENDS.addBytes(length);
+                    throttle.consume(length);
+                }
+
+                @Override
+                public void data(int entry, long position, long length) throws IOException {
+                    try (FileChannel source = FileChannel.open(archive.source(entry), StandardOpenOption.READ)) {
+                        long from = archive.sourceOffset(entry) + position;
+                        transferRange(source, channel, from, from + length);
+                    }
+                }
+            });
+            return count;
+        }
+
+        private void transferRange(FileChannel fileChannel, SocketChannel channel, long position, long end) throws IOException {
+            ByteBuffer stallBuffer = null;
+            while (position < end) {
+                long slice = Math.min(Math.min(TRANSFER_SLICE, throttle.quantum()), end - position);
+                long sent = fileChannel.transferTo(position, slice, channel);
+                if (sent == 0) {
+                    // On a virtual thread the socket is non-blocking underneath, so
+                    // transferTo returns 0 once the send buffer is full. A regular
+                    // write parks until the socket drains, then sendfile resumes.
+                    if (stallBuffer == null) {
+                        stallBuffer = ByteBuffer.allocateDirect(STALL_WRITE_SIZE);
+                    }
+                    stallBuffer.clear().limit((int) Math.min(STALL_WRITE_SIZE, slice));
+                    if (fileChannel.read(stallBuffer, position) <= 0) {
+                        throw new IOException("File shrank while sending at byte " + position);
+                    }
+                    stallBuffer.flip();
+                    while (stallBuffer.hasRemaining()) {
+                        sent += channel.write(stallBuffer);
+                    }
+                }
+                position += sent;
+                Metrics.SENDS.addBytes(sent);
+                throttle.consume(sent);
 
-                FileInputStream fis = new FileInputStream(filePath);
-                BufferedInputStream bis = new BufferedInputStream(fis, 1024 * 1024); // 1MB buffer
-                OutputStream oss = clientSocket.getOutputStream();
-                BufferedOutputStream bos = new BufferedOutputStream(oss, 1024 * 1024); // 1MB buffer
+                if (position / PROGRESS_STEP != (position - sent) / PROGRESS_STEP) {
+                    Log.debug("send.progress", "file", originalFilename, "position", position);
+                }
+            }
+        }
 
-                // Send the original filename as a header
-                String header = "Filename: " + originalFilename + "\n";
-                bos.write(header.getBytes("UTF-8"));
+        private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        /**
+         * Fallback for sockets without a channel: the original buffered stream copy.
+         */
+        private long sendWithStreams(File file, byte[] header, long start, long count) throws IOException {
+            try (FileInputStream fis = new FileInputStream(file);
+                    BufferedInputStream bis = new BufferedInputStream(fis, 1024 * 1024); // 1MB buffer
+                    OutputStream oss = throttle.wrap(clientSocket.getOutputStream());
+                    BufferedOutputStream bos = new BufferedOutputStream(oss, 1024 * 1024)) { // 1MB buffer
+
+                bos.write(header);
                 bos.flush();
+                fis.getChannel().position(start);
 
                 // Send the file content with larger buffer for large files
                 byte[] buffer = new byte[1024 * 1024]; // 1MB buffer
                 int bytesRead;
                 long totalBytesSent = 0;
 
-                while ((bytesRead = bis.read(buffer)) != -1) {
+                while (totalBytesSent < count
+                        && (bytesRead = bis.read(buffer, 0, (int) Math.min(buffer.length, count - totalBytesSent))) != -1) {
                     bos.write(buffer, 0, bytesRead);
                     totalBytesSent += bytesRead;
+                    Metrics.SENDS.addBytes(bytesRead);
 
                     // Flush every 10MB to prevent memory buildup
                     if (totalBytesSent % (10 * 1024 * 1024) == 0) {
                         bos.flush();
                     }
 
-                    // Optional: Log progress for very large files
-                    if (totalBytesSent % (50 * 1024 * 1024) == 0) { // Every 50MB
-                        System.out.println("Sent " + (totalBytesSent / (1024 * 1024)) + "MB of '" + originalFilename + "'...");
+                    if (totalBytesSent % PROGRESS_STEP == 0) { // Every 50MB
+                        Log.debug("send.progress", "file", originalFilename, "bytes", totalBytesSent);
                     }
                 }
                 bos.flush();
-                System.out.println("File '" + originalFilename + "' (" + (totalBytesSent / (1024 * 1024)) + "MB) sent to " + clientSocket.getInetAddress());
-
-                bis.close();
-                fis.close();
-                bos.close();
-                oss.close();
-
-            } catch (IOException e) {
-                System.err.println("Error sending file to client: " + e.getMessage());
-            } finally {
-                try {
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
-                }
+                return totalBytesSent;
             }
         }
     }
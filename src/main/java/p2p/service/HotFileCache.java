@@ -0,0 +1,210 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import p2p.utils.FrequencySketch;
+
+/**
+ * Keeps the contents of small, popular shares in direct buffers so bursts of
+ * downloads are written to the socket from memory instead of reopening and
+ * reading the file each time.
+ *
+ * Admission follows TinyLFU: when the memory budget is full, a file only gets
+ * in if it has been requested more often than the entry it would push out.
+ * Only blob-backed shares are cached, because blob contents never change.
+ * Lookups are a plain map read; the lock is only taken to admit on a miss.
+ */
+public class HotFileCache {
+
+    private final long budgetBytes;
+    private final long maxEntryBytes;
+    private final Map<Integer, Entry> entries = new ConcurrentHashMap<>();
+    private final FrequencySketch sketch;
+    private long usedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder admissions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param budgetBytes total memory for cached files, 0 to disable caching
+     * @param maxEntryBytes files larger than this are always served from disk
+     */
+    public HotFileCache(long budgetBytes, long maxEntryBytes) {
+        this.budgetBytes = budgetBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, Integer.MAX_VALUE);
+        long slots = maxEntryBytes > 0 ? budgetBytes / maxEntryBytes : 0;
+        // Track several times more candidates than fit, as TinyLFU intends
+        this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, slots * 16)));
+    }
+
+    /**
+     * Sized by {@code peerlink.cache.budgetMB} (default 64, 0 disables) and
+     * {@code peerlink.cache.maxFileMB} (default 4).
+     */
+    public static HotFileCache fromSystemProperties() {
+        long budget = Long.getLong("peerlink.cache.budgetMB", 64) * 1024 * 1024;
+        long maxFile = Long.getLong("peerlink.cache.maxFileMB", 4) * 1024 * 1024;
+        return new HotFileCache(budget, maxFile);
+    }
+
+    /**
+     * Cached contents of {@code share}, loading them if the file is popular
+     * enough to be admitted. Returns null if the share should be read from disk.
+     */
+    public Entry get(ShareRegistry.Share share) throws IOException {
+        if (budgetBytes <= 0 || share.blob == null || share.size > maxEntryBytes || share.size > budgetBytes) {
+            return null;
+        }
+        sketch.increment(share.code);
+        Entry entry = entries.get(share.code);
+        // Codes are reused once a share is gone, so check it is the same content
+        if (entry != null && entry.digest.equals(share.blob.digest)) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        if (!admissible(share.code, share.size)) {
+            rejections.increment();
+            return null;
+        }
+        // Read outside the lock so slow disks don't stall other admissions
+        Entry loaded = load(share);
+        return admit(share.code, loaded);
+    }
+
+    public synchronized void invalidate(int code) {
+        Entry entry = entries.remove(code);
+        if (entry != null) {
+            usedBytes -= entry.size;
+        }
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long admissions() {
+        return admissions.sum();
+    }
+
+    public long rejections() {
+        return rejections.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private synchronized boolean admissible(int code, long size) {
+        if (usedBytes + size <= budgetBytes) {
+            return true;
+        }
+        int frequency = sketch.frequency(code);
+        long freed = 0;
+        for (Map.Entry<Integer, Entry> candidate : entries.entrySet()) {
+            if (sketch.frequency(candidate.getKey()) < frequency) {
+                freed += candidate.getValue().size;
+                if (usedBytes - freed + size <= budgetBytes) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private synchronized Entry admit(int code, Entry loaded) {
+        Entry existing = entries.get(code);
+        if (existing != null && existing.digest.equals(loaded.digest)) {
+            return existing;
+        }
+        invalidate(code);
+        int frequency = sketch.frequency(code);
+        while (usedBytes + loaded.size > budgetBytes) {
+            Integer victim = coldestEntry();
+            if (victim == null || sketch.frequency(victim) >= frequency) {
+                // Still worth serving once from the buffer we already read
+                rejections.increment();
+                return loaded;
+            }
+            usedBytes -= entries.remove(victim).size;
+            evictions.increment();
+        }
+        entries.put(code, loaded);
+        usedBytes += loaded.size;
+        admissions.increment();
+        return loaded;
+    }
+
+    private Integer coldestEntry() {
+        Integer coldest = null;
+        int lowest = Integer.MAX_VALUE;
+        for (Integer code : entries.keySet()) {
+            int frequency = sketch.frequency(code);
+            if (frequency < lowest) {
+                lowest = frequency;
+                coldest = code;
+            }
+        }
+        return coldest;
+    }
+
+    private static Entry load(ShareRegistry.Share share) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(share.filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+            while (content.hasRemaining()) {
+                if (channel.read(content) < 0) {
+                    throw new IOException("File shrank while caching: " + share.filePath);
+                }
+            }
+            content.flip();
+            return new Entry(share.blob.digest, content.asReadOnlyBuffer(), size, new File(share.filePath).lastModified());
+        }
+    }
+
+    /**
+     * A cached file. Senders must work on {@link #content()}, which hands out an
+     * independent view of the shared buffer.
+     */
+    public static final class Entry {
+
+        private final ByteBuffer content;
+        public final String digest;
+        public final long size;
+        public final long modified;
+
+        Entry(String digest, ByteBuffer content, long size, long modified) {
+            this.digest = digest;
+            this.content = content;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public ByteBuffer content() {
+            return content.duplicate();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A shared file that is still being uploaded. Bytes below the watermark are
+ * on disk and may be sent; readers past it park until the uploader advances
+ * it, completes or gives up, or until it has sent nothing for a while.
+ *
+ * The staged file itself is the buffer between the uploader and any number
+ * of downloaders: a slow downloader never holds the upload back, and each
+ * downloader is paced by its own socket. All readers share one read channel,
+ * which stays open until the source is retired and the last reader has
+ * released it, so the file may be moved into the blob store underneath them.
+ *
+ * A lock and condition are used rather than monitors so that parked virtual
+ * threads release their carrier.
+ */
+public class LiveSource {
+
+    public final Path file;
+    public final long size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition advanced = lock.newCondition();
+    private final FileChannel channel;
+    private long watermark;
+    private String failure;
+    private int readers;
+    private boolean retired;
+    private Runnable onFailure;
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+
+    public LiveSource(Path file, long size) throws IOException {
+        this.file = file;
+        this.size = size;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    public long watermark() {
+        lock.lock();
+        try {
+            return watermark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks everything below {@code position} as written.
+     */
+    public void advanceTo(long position) {
+        touch();
+        lock.lock();
+        try {
+            if (position > watermark) {
+                watermark = Math.min(position, size);
+                advanced.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the uploader is still at work, even if what it sent has
+     * not moved the watermark.
+     */
+    public void touch() {
+        lastActivityMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Wakes every reader with an error; the upload will not complete.
+     */
+    public void fail(String reason) {
+        Runnable callback;
+        lock.lock();
+        try {
+            if (failure != null) {
+                return;
+            }
+            failure = reason;
+            callback = onFailure;
+            advanced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (callback != null) {
+            callback.run();
+        }
+        retire();
+    }
+
+    void onFailure(Runnable callback) {
+        lock.lock();
+        try {
+            onFailure = callback;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until bytes at {@code position} are available and returns the
+     * watermark, which is then greater than {@code position}.
+     *
+     * @throws IOException if the upload failed or nothing arrived in time
+     */
+    public long awaitBeyond(long position, long timeoutMillis) throws IOException {
+        return awaitBeyond(position, timeoutMillis, timeoutMillis);
+    }
+
+    /**
+     * Like {@link #awaitBeyond(long, long)}, giving up sooner, once the
+     * uploader has sent nothing at all for {@code idleMillis}.
+     */
+    public long awaitBeyond(long position, long timeoutMillis, long idleMillis) throws IOException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (watermark <= position && failure == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Upload stalled at byte " + watermark);
+                }
+                long idle = System.currentTimeMillis() - lastActivityMillis;
+                if (idle >= idleMillis) {
+                    throw new IOException("Upload idle for " + idle / 1000 + " s at byte " + watermark);
+                }
+                advanced.awaitNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(idleMillis - idle)));
+            }
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+            return watermark;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for upload", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Registers a reader of the shared channel; pair with {@link #release()}.
+     *
+     * @throws IOException if the source was already retired and closed
+     */
+    public FileChannel acquire() throws IOException {
+        lock.lock();
+        try {
+            if (!channel.isOpen()) {
+                throw new IOException("Upload is no longer live");
+            }
+            readers++;
+            return channel;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release() {
+        lock.lock();
+        try {
+            readers--;
+            closeIfUnused();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No new readers are expected; the channel closes when the last one is done.
+     */
+    public void retire() {
+        lock.lock();
+        try {
+            retired = true;
+            closeIfUnused();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeIfUnused() {
+        if (retired && readers == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Read-only channel, nothing to lose
+            }
+        }
+    }
+}
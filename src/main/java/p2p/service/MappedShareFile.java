@@ -0,0 +1,87 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A shared file mapped read-only into memory once and sent by every concurrent
+ * sender of the share. All senders read the same page-cache pages through
+ * their own views of the mapping, so no per-connection copy buffers are needed.
+ *
+ * A single MappedByteBuffer cannot exceed 2 GB, so larger files are mapped as
+ * consecutive segments. The mapping is created on the first send and dropped
+ * when the share is stopped; the JDK unmaps it once the last in-flight sender
+ * lets go of it.
+ */
+public final class MappedShareFile {
+
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final Path path;
+    private final long segmentSize;
+    private MappedByteBuffer[] segments;
+    private boolean closed;
+
+    public MappedShareFile(Path path) {
+        this(path, SEGMENT_SIZE);
+    }
+
+    MappedShareFile(Path path, long segmentSize) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Writes {@code count} bytes starting at {@code position} to the channel.
+     */
+    public long writeTo(WritableByteChannel channel, long position, long count) throws IOException {
+        MappedByteBuffer[] mapped = segments();
+        long end = position + count;
+        long written = 0;
+        while (position < end) {
+            int index = (int) (position / segmentSize);
+            int offset = (int) (position % segmentSize);
+            ByteBuffer view = mapped[index].duplicate();
+            view.position(offset).limit((int) Math.min(view.capacity(), offset + (end - position)));
+            int length = view.remaining();
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+            position += length;
+            written += length;
+        }
+        return written;
+    }
+
+    /**
+     * Drops the mapping. Senders already holding it finish normally.
+     */
+    public synchronized void close() {
+        closed = true;
+        segments = null;
+    }
+
+    private synchronized MappedByteBuffer[] segments() throws IOException {
+        if (closed) {
+            throw new IOException("Share was stopped");
+        }
+        if (segments == null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                int count = (int) ((size + segmentSize - 1) / segmentSize);
+                MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    long start = i * segmentSize;
+                    mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+                }
+                segments = mapped;
+            }
+        }
+        return segments;
+    }
+}
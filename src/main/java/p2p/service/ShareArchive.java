@@ -0,0 +1,345 @@
+package p2p.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import p2p.utils.Compression;
+import p2p.utils.ZipLayout;
+
+/**
+ * Several stored blobs shared under one code and downloaded as a single zip
+ * archive. The archive is laid out by {@link ZipLayout} and sent piece by
+ * piece from the member blobs, so it has a fixed length, a strong validator
+ * and byte ranges, and is never written out anywhere.
+ *
+ * An archive is created with every member stored as is, using the CRC-32
+ * each blob got while it was uploaded, so sharing it costs no pass over
+ * the data. {@link #compressed()} derives the version to switch to once
+ * gzip copies exist: members worth compressing become deflated entries
+ * whose data is the raw deflate stream inside the blob's gzip copy, and
+ * everything else, including media that is compressed already, stays
+ * stored.
+ *
+ * The member list is kept as a small manifest blob, which is what the
+ * share index records for an archive share.
+ */
+public final class ShareArchive {
+
+    private static final int MANIFEST_MAGIC = 0x504c4152; // "PLAR"
+    private static final int MANIFEST_VERSION = 1;
+
+    private static final class Member {
+
+        final BlobStore.Blob blob;
+        final ZipLayout.Entry entry;
+        // Where the entry data starts in the blob's gzip copy; 0 for stored entries
+        final long dataOffset;
+
+        Member(BlobStore.Blob blob, ZipLayout.Entry entry, long dataOffset) {
+            this.blob = blob;
+            this.entry = entry;
+            this.dataOffset = dataOffset;
+        }
+    }
+
+    public final BlobStore.Blob manifest;
+    public final long createdMillis;
+    private final BlobStore store;
+    private final List<Member> members;
+    private final ZipLayout layout;
+
+    private ShareArchive(BlobStore store, BlobStore.Blob manifest, long createdMillis, List<Member> members) {
+        this.store = store;
+        this.manifest = manifest;
+        this.createdMillis = createdMillis;
+        this.members = members;
+        List<ZipLayout.Entry> entries = new ArrayList<>(members.size());
+        for (Member member : members) {
+            entries.add(member.entry);
+        }
+        this.layout = new ZipLayout(entries, createdMillis);
+    }
+
+    /**
+     * Builds an archive of {@code blobs} under the relative {@code paths}
+     * they were uploaded with, every member stored. On success the archive
+     * owns the blob references.
+     */
+    public static ShareArchive create(BlobStore store, List<String> paths, List<BlobStore.Blob> blobs) throws IOException {
+        Set<String> used = new HashSet<>();
+        List<Member> members = new ArrayList<>(blobs.size());
+        for (int i = 0; i < blobs.size(); i++) {
+            String name = uniqueName(paths.get(i), used);
+            BlobStore.Blob blob = blobs.get(i);
+            long crc = blob.crc32 >= 0 ? blob.crc32 : crc32(blob.path);
+            members.add(new Member(blob, new ZipLayout.Entry(name, ZipLayout.STORED, blob.size, blob.size, crc), 0));
+        }
+        return write(store, System.currentTimeMillis(), members);
+    }
+
+    /**
+     * True if {@link #compressed()} has members it could deflate.
+     */
+    public boolean hasCompressibleMembers() {
+        for (Member member : members) {
+            if (isCompressible(member)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This archive with the members worth compressing deflated, from gzip
+     * copies of their blobs that are made here if needed; slow, so it runs
+     * off the request path. Returns null if no member got smaller. The new
+     * archive takes references of its own and this one is left as it is.
+     */
+    public ShareArchive compressed() throws IOException {
+        List<Member> described = new ArrayList<>(members.size());
+        boolean changed = false;
+        for (Member member : members) {
+            Member deflated = isCompressible(member) ? deflated(member) : null;
+            described.add(deflated != null ? deflated : member);
+            changed |= deflated != null;
+        }
+        if (!changed) {
+            return null;
+        }
+        List<Member> retained = new ArrayList<>(described.size());
+        try {
+            for (Member member : described) {
+                retained.add(new Member(member.blob.retain(), member.entry, member.dataOffset));
+            }
+            return write(store, System.currentTimeMillis(), retained);
+        } catch (IOException e) {
+            for (Member member : retained) {
+                member.blob.release();
+            }
+            throw e;
+        }
+    }
+
+    private static ShareArchive write(BlobStore store, long now, List<Member> members) throws IOException {
+        BlobStore.BlobWriter writer = store.newWriter();
+        try (DataOutputStream out = new DataOutputStream(writer)) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeInt(MANIFEST_VERSION);
+            out.writeLong(now);
+            out.writeInt(members.size());
+            for (Member member : members) {
+                out.writeUTF(member.entry.name);
+                out.writeUTF(member.blob.digest);
+                out.writeLong(member.blob.size);
+                out.writeByte(member.entry.method);
+                out.writeLong(member.entry.compressedSize);
+                out.writeLong(member.dataOffset);
+                out.writeInt((int) member.entry.crc32);
+            }
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        return new ShareArchive(store, writer.commit(), now, members);
+    }
+
+    /**
+     * Brings back an archive recorded before a restart, taking references
+     * to the manifest and every member.
+     */
+    public static ShareArchive restore(BlobStore store, String manifestDigest) throws IOException {
+        BlobStore.Blob manifest = store.restore(manifestDigest);
+        List<Member> members = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(manifest.path)))) {
+            if (in.readInt() != MANIFEST_MAGIC || in.readInt() != MANIFEST_VERSION) {
+                throw new IOException("Not an archive manifest: " + manifestDigest);
+            }
+            long created = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String digest = in.readUTF();
+                long size = in.readLong();
+                int method = in.readByte();
+                long compressedSize = in.readLong();
+                long dataOffset = in.readLong();
+                long crc = in.readInt() & 0xFFFFFFFFL;
+                members.add(new Member(store.restore(digest, size),
+                        new ZipLayout.Entry(name, method, size, compressedSize, crc), dataOffset));
+            }
+            return new ShareArchive(store, manifest, created, members);
+        } catch (IOException | IllegalArgumentException e) {
+            for (Member member : members) {
+                member.blob.release();
+            }
+            manifest.release();
+            throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+        }
+    }
+
+    public long size() {
+        return layout.length();
+    }
+
+    /**
+     * Size of every blob the archive keeps on disk, the manifest included,
+     * by digest. Members that are also shared on their own appear under the
+     * same digest as those shares.
+     */
+    public Map<String, Long> storedBlobs() {
+        Map<String, Long> blobs = new LinkedHashMap<>();
+        blobs.put(manifest.digest, manifest.size);
+        for (Member member : members) {
+            blobs.put(member.blob.digest, member.blob.size);
+        }
+        return blobs;
+    }
+
+    public int entryCount() {
+        return members.size();
+    }
+
+    public ZipLayout layout() {
+        return layout;
+    }
+
+    /**
+     * The file holding entry {@code index}'s data: the blob itself, or its
+     * gzip copy for a deflated entry.
+     */
+    public Path source(int index) throws IOException {
+        Member member = members.get(index);
+        if (member.entry.method == ZipLayout.STORED) {
+            return member.blob.path;
+        }
+        Path variant = member.blob.gzipVariant();
+        if (variant == null) {
+            throw new IOException("Compressed copy of " + member.entry.name + " is missing");
+        }
+        return variant;
+    }
+
+    /**
+     * Where entry {@code index}'s data starts in its {@link #source(int)}.
+     */
+    public long sourceOffset(int index) {
+        return members.get(index).dataOffset;
+    }
+
+    public void release() {
+        for (Member member : members) {
+            member.blob.release();
+        }
+        manifest.release();
+    }
+
+    private static boolean isCompressible(Member member) {
+        return member.entry.method == ZipLayout.STORED && member.blob.size <= FileSharer.PRECOMPRESS_MAX_SIZE
+                && Compression.isWorthCompressing(member.entry.name, member.blob.size);
+    }
+
+    // The member as a deflated entry read from the blob's gzip copy, or null if that is no smaller
+    private static Member deflated(Member member) throws IOException {
+        member.blob.createGzipVariant();
+        Path variant = member.blob.gzipVariant();
+        if (variant == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(variant, StandardOpenOption.READ)) {
+            long dataOffset = gzipDataOffset(channel);
+            long deflated = channel.size() - 8 - dataOffset;
+            if (deflated >= member.blob.size) {
+                return null;
+            }
+            ZipLayout.Entry entry = member.entry;
+            return new Member(member.blob, new ZipLayout.Entry(entry.name, ZipLayout.DEFLATED, entry.size, deflated,
+                    entry.crc32), dataOffset);
+        }
+    }
+
+    /**
+     * Length of the gzip member header (RFC 1952), after which the raw
+     * deflate stream starts.
+     */
+    static long gzipDataOffset(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(10).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if ((header.getShort(0) & 0xFFFF) != 0x8b1f || header.get(2) != 8) {
+            throw new IOException("Not a gzip file");
+        }
+        int flags = header.get(3);
+        long position = 10;
+        if ((flags & 4) != 0) {
+            ByteBuffer extra = ByteBuffer.allocate(2).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, extra, position);
+            position += 2 + (extra.getShort(0) & 0xFFFF);
+        }
+        for (int flag : new int[] { 8, 16 }) {
+            // Zero-terminated name and comment
+            if ((flags & flag) != 0) {
+                ByteBuffer one = ByteBuffer.allocate(1);
+                do {
+                    one.clear();
+                    readFully(channel, one, position++);
+                } while (one.get(0) != 0);
+            }
+        }
+        if ((flags & 2) != 0) {
+            position += 2;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of gzip file");
+            }
+        }
+    }
+
+    private static long crc32(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[256 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, bytesRead);
+            }
+        }
+        return crc.getValue();
+    }
+
+    // Two uploads of "a.txt" become "a.txt" and "a (2).txt"
+    private static String uniqueName(String path, Set<String> used) {
+        String name = path == null || path.isEmpty() ? "unnamed-file" : path;
+        if (used.add(name)) {
+            return name;
+        }
+        int slash = name.lastIndexOf('/');
+        int dot = name.lastIndexOf('.');
+        int split = dot > slash + 1 ? dot : name.length();
+        for (int n = 2; ; n++) {
+            String candidate = name.substring(0, split) + " (" + n + ")" + name.substring(split);
+            if (used.add(candidate)) {
+                return candidate;
+            }
+        }
+    }
+}
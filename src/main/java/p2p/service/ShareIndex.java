@@ -0,0 +1,455 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+import p2p.utils.Log;
+
+/**
+ * Durable record of the blob-backed shares, so invite codes survive a
+ * restart. Changes are appended to {@code shares.log}; once the log has
+ * grown well past the live entries it is compacted into
+ * {@code shares.snapshot} and started afresh.
+ *
+ * Both files are read through a mapping on open, so replaying tens of
+ * thousands of shares takes milliseconds. A torn record at the end of the
+ * log, left by a crash mid-write, is detected by its CRC32C and cut off.
+ *
+ * {@link #put} and {@link #remove} only queue the change. One writer thread
+ * appends everything queued in a single write and fsync, so uploads never
+ * wait on the disk and a burst of them costs one sync.
+ */
+public class ShareIndex implements AutoCloseable {
+
+    static final String LOG_FILE = "shares.log";
+    static final String SNAPSHOT_FILE = "shares.snapshot";
+
+    private static final int SNAPSHOT_MAGIC = 0x504c5349; // "PLSI"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    // Same fields as PUT; the digest names an archive manifest
+    private static final byte PUT_ARCHIVE = 3;
+    // Compact once the log is this much larger than a snapshot would be
+    private static final int COMPACT_RATIO = 4;
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+    private static final int MAX_BATCH = 4096;
+    // Queued by close(); the writer finishes the batch it is in and exits
+    private static final Object STOP = new Object();
+
+    /**
+     * A persisted share. The blob's path follows from its digest; for an
+     * archive share it is the manifest listing the member blobs.
+     */
+    public static final class Entry {
+
+        public final int code;
+        public final String digest;
+        public final String originalFilename;
+        public final long size;
+        public final long expiresAtMillis;
+        public final int maxDownloads;
+        public final boolean archive;
+
+        public Entry(int code, String digest, String originalFilename, long size, long expiresAtMillis, int maxDownloads) {
+            this(code, digest, originalFilename, size, expiresAtMillis, maxDownloads, false);
+        }
+
+        public Entry(int code, String digest, String originalFilename, long size, long expiresAtMillis, int maxDownloads,
+                boolean archive) {
+            this.code = code;
+            this.digest = digest;
+            this.originalFilename = originalFilename;
+            this.size = size;
+            this.expiresAtMillis = expiresAtMillis;
+            this.maxDownloads = maxDownloads;
+            this.archive = archive;
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expiresAtMillis;
+        }
+    }
+
+    private final Path dir;
+    private final FileChannel log;
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    // Owned by the writer thread once open() has returned
+    private final Map<Integer, Entry> entries;
+    private final Thread writer;
+    private long snapshotBytes;
+    // Writer thread only: a failed batch is missing from the log, or partly in it
+    private boolean behind;
+
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+
+    private ShareIndex(Path dir, FileChannel log, Map<Integer, Entry> entries, long snapshotBytes) {
+        this.dir = dir;
+        this.log = log;
+        this.entries = entries;
+        this.snapshotBytes = snapshotBytes;
+        this.writer = new Thread(this::writeLoop, "peerlink-index-writer");
+        writer.setDaemon(true);
+    }
+
+    /**
+     * Replays the index in {@code dir}, creating it if needed, and starts
+     * the writer.
+     */
+    public static ShareIndex open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        long started = System.nanoTime();
+        Map<Integer, Entry> entries = new HashMap<>();
+
+        FileChannel log = FileChannel.open(dir.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long snapshotBytes = 0;
+        try {
+            // Held until the log is closed; a second node on the same directory runs without an index
+            if (tryLock(log) == null) {
+                throw new IOException("Share index is in use: " + dir);
+            }
+
+            Path snapshot = dir.resolve(SNAPSHOT_FILE);
+            if (Files.exists(snapshot)) {
+                try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                    snapshotBytes = channel.size();
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, snapshotBytes);
+                    if (snapshotBytes < 8 || mapped.getInt() != SNAPSHOT_MAGIC || mapped.getInt() != SNAPSHOT_VERSION) {
+                        throw new IOException("Not a share index snapshot: " + snapshot);
+                    }
+                    if (replay(mapped, entries) != snapshotBytes) {
+                        throw new IOException("Share index snapshot is damaged: " + snapshot);
+                    }
+                }
+            }
+
+            long logBytes = log.size();
+            long valid = logBytes == 0 ? 0 : replay(log.map(FileChannel.MapMode.READ_ONLY, 0, logBytes), entries);
+            if (valid < logBytes) {
+                Log.warn("index.log.truncated", "validBytes", valid, "droppedBytes", logBytes - valid);
+                log.truncate(valid);
+            }
+            log.position(valid);
+        } catch (IOException e) {
+            log.close();
+            throw e;
+        }
+
+        ShareIndex index = new ShareIndex(dir, log, entries, snapshotBytes);
+        index.writer.start();
+        Log.info("index.opened", "entries", entries.size(), "ms", (System.nanoTime() - started) / 1_000_000);
+        return index;
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Already open in this JVM
+            return null;
+        }
+    }
+
+    /**
+     * The shares replayed on open. Only meaningful before the first change.
+     */
+    public Collection<Entry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    public void put(Entry entry) {
+        queue.add(entry);
+    }
+
+    public void remove(int code) {
+        queue.add(code);
+    }
+
+    /**
+     * Blocks until every change queued so far is on disk.
+     */
+    public void flush() throws InterruptedException {
+        if (!writer.isAlive()) {
+            return;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        queue.add(done);
+        done.await();
+    }
+
+    public long commitCount() {
+        return commits.get();
+    }
+
+    public long recordCount() {
+        return records.get();
+    }
+
+    /**
+     * Writes out everything queued and closes the log.
+     */
+    @Override
+    public void close() {
+        // Not interrupted: an interrupt during file I/O would close the log under the writer
+        queue.add(STOP);
+        try {
+            writer.join();
+            log.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            Log.warn("index.close.failed", "error", e);
+        }
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            stopping = batch.contains(STOP);
+            try {
+                commit(batch);
+            } catch (IOException e) {
+                // The batch stays in memory; the next commit compacts it into a snapshot
+                Log.error("index.write.failed", "records", batch.size(), "error", e);
+            }
+            for (Object item : batch) {
+                if (item instanceof CountDownLatch) {
+                    ((CountDownLatch) item).countDown();
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void commit(List<Object> batch) throws IOException {
+        if (behind) {
+            compact();
+            behind = false;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        int written;
+        long start = log.position();
+        try {
+            written = append(batch, buffer);
+            if (written == 0) {
+                return;
+            }
+            log.force(false);
+        } catch (IOException e) {
+            rewind(start, e);
+            throw e;
+        }
+        commits.incrementAndGet();
+        records.addAndGet(written);
+
+        if (log.size() > Math.max(COMPACT_MIN_BYTES, COMPACT_RATIO * Math.max(snapshotBytes, estimateSnapshotBytes()))) {
+            compact();
+        }
+    }
+
+    private int append(List<Object> batch, ByteBuffer buffer) throws IOException {
+        int written = 0;
+        for (Object item : batch) {
+            byte[] record;
+            if (item instanceof Entry) {
+                Entry entry = (Entry) item;
+                entries.put(entry.code, entry);
+                record = encodePut(entry);
+            } else if (item instanceof Integer) {
+                int code = (Integer) item;
+                if (entries.remove(code) == null) {
+                    continue;
+                }
+                record = encodeRemove(code);
+            } else {
+                continue;
+            }
+            if (buffer.remaining() < record.length) {
+                buffer = flushBuffer(buffer, record.length);
+            }
+            buffer.put(record);
+            written++;
+        }
+        if (written > 0) {
+            flushBuffer(buffer, 0);
+        }
+        return written;
+    }
+
+    /**
+     * Cuts off whatever part of a failed batch reached the log. Replay stops
+     * at the first bad record, so a partial one left in place would hide
+     * every share appended after it.
+     */
+    private void rewind(long position, IOException cause) {
+        behind = true;
+        try {
+            log.truncate(position);
+            log.position(position);
+        } catch (IOException e) {
+            // The compaction on the next commit empties the log anyway
+            cause.addSuppressed(e);
+        }
+    }
+
+    private ByteBuffer flushBuffer(ByteBuffer buffer, int nextRecord) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            log.write(buffer);
+        }
+        return buffer.capacity() >= nextRecord ? buffer.clear() : ByteBuffer.allocate(nextRecord);
+    }
+
+    private long estimateSnapshotBytes() {
+        // Records average well under 128 bytes with typical filenames
+        return 8 + 128L * entries.size();
+    }
+
+    /**
+     * Writes the live entries to a new snapshot and empties the log. Replay
+     * of the old log over the new snapshot is harmless, so a crash between
+     * the two steps loses nothing.
+     */
+    private void compact() throws IOException {
+        Path snapshot = dir.resolve(SNAPSHOT_FILE);
+        Path staged = dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel out = FileChannel.open(staged, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION);
+            for (Entry entry : entries.values()) {
+                byte[] record = encodePut(entry);
+                if (buffer.remaining() < record.length) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer = buffer.capacity() >= record.length ? buffer.clear() : ByteBuffer.allocate(record.length);
+                }
+                buffer.put(record);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+            snapshotBytes = out.size();
+        }
+        try {
+            Files.move(staged, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        }
+        log.truncate(0);
+        log.position(0);
+        log.force(true);
+        Log.info("index.compacted", "entries", entries.size(), "snapshotBytes", snapshotBytes);
+    }
+
+    /**
+     * Applies records from the buffer's position on and returns the end of
+     * the last intact one.
+     */
+    private static long replay(ByteBuffer buffer, Map<Integer, Entry> entries) {
+        CRC32C crc = new CRC32C();
+        long valid = buffer.position();
+        try {
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 1 || length + 4 > buffer.remaining()) {
+                    break;
+                }
+                int start = buffer.position();
+                crc.reset();
+                crc.update(buffer.slice(start, length));
+                buffer.position(start + length);
+                if ((int) crc.getValue() != buffer.getInt()) {
+                    break;
+                }
+                ByteBuffer record = buffer.slice(start, length);
+                byte type = record.get();
+                if (type == PUT || type == PUT_ARCHIVE) {
+                    Entry entry = decodePut(record, type == PUT_ARCHIVE);
+                    entries.put(entry.code, entry);
+                } else if (type == REMOVE) {
+                    entries.remove(record.getInt());
+                } else {
+                    break;
+                }
+                valid = buffer.position();
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // A record whose fields don't add up; treat it as the torn end
+        }
+        return valid;
+    }
+
+    // [length][type, fields][crc32c of type and fields]
+    private static byte[] encodePut(Entry entry) {
+        byte[] name = entry.originalFilename.getBytes(StandardCharsets.UTF_8);
+        byte[] digest = HexFormat.of().parseHex(entry.digest);
+        int length = 1 + 4 + 8 + 8 + 4 + 1 + digest.length + 4 + name.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4);
+        buffer.putInt(length).put(entry.archive ? PUT_ARCHIVE : PUT).putInt(entry.code).putLong(entry.size).putLong(entry.expiresAtMillis)
+                .putInt(entry.maxDownloads).put((byte) digest.length).put(digest).putInt(name.length).put(name);
+        return sealed(buffer, length);
+    }
+
+    private static byte[] encodeRemove(int code) {
+        int length = 1 + 4;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4);
+        buffer.putInt(length).put(REMOVE).putInt(code);
+        return sealed(buffer, length);
+    }
+
+    private static byte[] sealed(ByteBuffer buffer, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 4, length);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static Entry decodePut(ByteBuffer record, boolean archive) {
+        int code = record.getInt();
+        long size = record.getLong();
+        long expiresAt = record.getLong();
+        int maxDownloads = record.getInt();
+        byte[] digest = new byte[record.get() & 0xff];
+        record.get(digest);
+        byte[] name = new byte[record.getInt()];
+        record.get(name);
+        return new Entry(code, HexFormat.of().formatHex(digest), new String(name, StandardCharsets.UTF_8), size, expiresAt,
+                maxDownloads, archive);
+    }
+}
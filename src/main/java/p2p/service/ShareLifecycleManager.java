@@ -0,0 +1,183 @@
+package p2p.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+import p2p.utils.Log;
+
+/**
+ * Retires shares in the background. A sweep stops shares whose TTL has passed
+ * or whose download quota is used up, then evicts shares in the order given by
+ * the {@link EvictionPolicy} until the stored files fit the disk budget.
+ *
+ * The sweeper only reads the registry's immutable records and atomic counters,
+ * so it never blocks a download in progress. Other periodic cleanup, such as
+ * expiring idle upload sessions, can run on the same schedule.
+ */
+public class ShareLifecycleManager {
+
+    // Range and segment requests of the last permitted download may still be
+    // arriving, so an exhausted share stays until it has been idle this long
+    static final long EXHAUSTED_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ShareRegistry shares;
+    private final IntConsumer retire;
+    private final EvictionPolicy policy;
+    private final long diskBudgetBytes;
+    private final long sweepIntervalMillis;
+    private ScheduledExecutorService sweeper;
+    private final List<Runnable> sweepTasks = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    /**
+     * @param retire stops the share with the given code and frees its file
+     * @param diskBudgetBytes total size of shared files to keep, 0 for no limit
+     */
+    public ShareLifecycleManager(ShareRegistry shares, IntConsumer retire, EvictionPolicy policy,
+            long diskBudgetBytes, long sweepIntervalMillis) {
+        this.shares = shares;
+        this.retire = retire;
+        this.policy = policy;
+        this.diskBudgetBytes = diskBudgetBytes;
+        this.sweepIntervalMillis = sweepIntervalMillis;
+    }
+
+    /**
+     * Configured by {@code peerlink.storage.budgetMB} (0 = unlimited),
+     * {@code peerlink.eviction} ({@code lru}, {@code lfu} or a class name) and
+     * {@code peerlink.sweep.seconds}.
+     */
+    public static ShareLifecycleManager fromSystemProperties(ShareRegistry shares, IntConsumer retire) {
+        long budgetBytes = Long.getLong("peerlink.storage.budgetMB", 0) * 1024 * 1024;
+        EvictionPolicy policy = EvictionPolicy.forName(System.getProperty("peerlink.eviction", "lru"));
+        long interval = TimeUnit.SECONDS.toMillis(Long.getLong("peerlink.sweep.seconds", 30));
+        return new ShareLifecycleManager(shares, retire, policy, budgetBytes, interval);
+    }
+
+    public synchronized void start() {
+        if (sweeper != null) {
+            return;
+        }
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "peerlink-share-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch (RuntimeException e) {
+                Log.error("share.sweep.failed", "error", e);
+            }
+        }, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs {@code task} after every sweep.
+     */
+    public void onSweep(Runnable task) {
+        sweepTasks.add(task);
+    }
+
+    public synchronized void shutdown() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+            sweeper = null;
+        }
+    }
+
+    public long expiredCount() {
+        return expired.get();
+    }
+
+    public long exhaustedCount() {
+        return exhausted.get();
+    }
+
+    public long evictedCount() {
+        return evicted.get();
+    }
+
+    void sweep() {
+        long now = System.currentTimeMillis();
+        List<ShareRegistry.Share> remaining = new ArrayList<>();
+        // Shares restored after a restart expire and take up disk whether or not they were woken
+        List<ShareRegistry.Share> candidates = new ArrayList<>(shares.shares());
+        candidates.addAll(shares.dormantShares());
+        for (ShareRegistry.Share share : candidates) {
+            if (share.isExpired(now)) {
+                Log.info("share.expired", "code", share.code);
+                expired.incrementAndGet();
+                retire.accept(share.code);
+            } else if (share.isExhausted() && now - share.usage.lastAccessMillis() >= EXHAUSTED_GRACE_MILLIS) {
+                Log.info("share.exhausted", "code", share.code, "downloads", share.usage.downloads());
+                exhausted.incrementAndGet();
+                retire.accept(share.code);
+            } else {
+                remaining.add(share);
+            }
+        }
+        if (diskBudgetBytes > 0) {
+            enforceBudget(remaining);
+        }
+        for (Runnable task : sweepTasks) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("share.sweep.task.failed", "error", e);
+            }
+        }
+    }
+
+    private void enforceBudget(List<ShareRegistry.Share> remaining) {
+        // Deduplicated blobs occupy disk once, however many shares and archives use them
+        Map<Object, long[]> files = new HashMap<>();
+        long used = 0;
+        for (ShareRegistry.Share share : remaining) {
+            for (Map.Entry<Object, Long> stored : storage(share).entrySet()) {
+                long[] entry = files.computeIfAbsent(stored.getKey(), key -> new long[] { stored.getValue(), 0 });
+                if (entry[1]++ == 0) {
+                    used += entry[0];
+                }
+            }
+        }
+        if (used <= diskBudgetBytes) {
+            return;
+        }
+
+        remaining.sort(policy);
+        for (ShareRegistry.Share share : remaining) {
+            if (used <= diskBudgetBytes) {
+                break;
+            }
+            Log.info("share.evicted", "code", share.code, "usedBytes", used, "budgetBytes", diskBudgetBytes);
+            evicted.incrementAndGet();
+            retire.accept(share.code);
+            for (Object key : storage(share).keySet()) {
+                long[] entry = files.get(key);
+                if (--entry[1] == 0) {
+                    used -= entry[0];
+                }
+            }
+        }
+    }
+
+    // The files a share keeps on disk and their sizes, keyed so that shared content matches
+    private static Map<Object, Long> storage(ShareRegistry.Share share) {
+        if (share.archive != null) {
+            return new HashMap<>(share.archive.storedBlobs());
+        }
+        return Map.of(share.blob != null ? share.blob.digest : share.filePath, share.size);
+    }
+}
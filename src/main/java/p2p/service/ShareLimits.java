@@ -0,0 +1,47 @@
+package p2p.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a share lives and how often it may be downloaded. Zero means no
+ * limit for either.
+ */
+public final class ShareLimits {
+
+    public static final ShareLimits UNLIMITED = new ShareLimits(0, 0);
+
+    public final long ttlMillis;
+    public final int maxDownloads;
+
+    public ShareLimits(long ttlMillis, int maxDownloads) {
+        if (ttlMillis < 0 || maxDownloads < 0) {
+            throw new IllegalArgumentException("Share limits must not be negative");
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxDownloads = maxDownloads;
+    }
+
+    /**
+     * Node-wide defaults: {@code peerlink.share.ttlMinutes} (24 hours unless
+     * set) and {@code peerlink.share.maxDownloads} (unlimited unless set).
+     */
+    public static ShareLimits fromSystemProperties() {
+        long ttlMinutes = Long.getLong("peerlink.share.ttlMinutes", TimeUnit.DAYS.toMinutes(1));
+        return new ShareLimits(TimeUnit.MINUTES.toMillis(ttlMinutes), Integer.getInteger("peerlink.share.maxDownloads", 0));
+    }
+
+    /**
+     * Applies limits asked for by an uploader. They can only tighten these
+     * limits, so a client cannot keep a file around longer than the node allows.
+     */
+    public ShareLimits restrict(long ttlMillis, int maxDownloads) {
+        return new ShareLimits(tighter(this.ttlMillis, ttlMillis), (int) tighter(this.maxDownloads, maxDownloads));
+    }
+
+    private static long tighter(long current, long requested) {
+        if (requested <= 0) {
+            return current;
+        }
+        return current == 0 ? requested : Math.min(current, requested);
+    }
+}
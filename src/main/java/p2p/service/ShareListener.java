@@ -0,0 +1,203 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import p2p.utils.Log;
+import p2p.utils.TransferHeader;
+
+/**
+ * Single non-blocking listener for every share. One selector thread accepts
+ * connections and reads each client's request preamble; only once a complete
+ * request has arrived is the connection handed to the dispatcher, so idle or
+ * slow clients cost a selector registration rather than a thread.
+ */
+class ShareListener implements Runnable {
+
+    interface Dispatcher {
+
+        /**
+         * Called with the connection switched back to blocking mode and its
+         * selector registration dropped.
+         */
+        void dispatch(SocketChannel channel, TransferHeader request);
+    }
+
+    private static final int PREAMBLE_BUFFER_SIZE = 8 * 1024;
+    private static final long PREAMBLE_TIMEOUT_MILLIS = 30_000;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Dispatcher dispatcher;
+    private volatile boolean running = true;
+
+    ShareListener(int port, Dispatcher dispatcher) throws IOException {
+        this.dispatcher = dispatcher;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        List<Pending> ready = new ArrayList<>();
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (running) {
+                selector.select(1000);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        readPreamble(key, ready);
+                    }
+                }
+
+                if (!ready.isEmpty()) {
+                    // Flush the cancelled keys so the channels can go back to blocking mode
+                    selector.selectNow();
+                    selector.selectedKeys().clear();
+                    for (Pending pending : ready) {
+                        handOff(pending);
+                    }
+                    ready.clear();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= 1000) {
+                    closeStalled(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                Log.error("share.listener.failed", "error", e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client;
+        while ((client = serverChannel.accept()) != null) {
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ, new Preamble());
+        }
+    }
+
+    private void readPreamble(SelectionKey key, List<Pending> ready) {
+        SocketChannel client = (SocketChannel) key.channel();
+        Preamble preamble = (Preamble) key.attachment();
+        try {
+            if (client.read(preamble.buffer) == -1) {
+                closeQuietly(key);
+                return;
+            }
+            preamble.buffer.flip();
+            TransferHeader request = TransferHeader.parse(preamble.buffer);
+            preamble.buffer.compact();
+            if (request != null) {
+                key.cancel();
+                ready.add(new Pending(client, request));
+            } else if (!preamble.buffer.hasRemaining()) {
+                throw new IOException("Request preamble too large");
+            }
+        } catch (IOException e) {
+            Log.warn("share.request.invalid", "error", e);
+            closeQuietly(key);
+        }
+    }
+
+    private void handOff(Pending pending) {
+        try {
+            pending.channel.configureBlocking(true);
+            dispatcher.dispatch(pending.channel, pending.request);
+        } catch (Exception e) {
+            Log.warn("share.dispatch.failed", "error", e);
+            try {
+                pending.channel.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+        }
+    }
+
+    private void closeStalled(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Preamble && now - ((Preamble) key.attachment()).createdAt > PREAMBLE_TIMEOUT_MILLIS) {
+                closeQuietly(key);
+            }
+        }
+    }
+
+    private void closeAll() {
+        try {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly(key);
+            }
+            selector.close();
+        } catch (IOException | ClosedSelectorException e) {
+            Log.warn("share.listener.close.failed", "error", e);
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            Log.warn("share.connection.close.failed", "error", e);
+        }
+    }
+
+    private static class Preamble {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(PREAMBLE_BUFFER_SIZE);
+        final long createdAt = System.currentTimeMillis();
+    }
+
+    private static class Pending {
+
+        final SocketChannel channel;
+        final TransferHeader request;
+
+        Pending(SocketChannel channel, TransferHeader request) {
+            this.channel = channel;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package p2p.service;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import p2p.utils.UploadUtils;
+
+/**
+ * All shares known to this node, keyed by invite code. Each code maps to one
+ * immutable {@link Share}; state changes swap in a new record atomically, so
+ * lookups on the download path never lock and never see a half-updated share.
+ */
+public class ShareRegistry {
+
+    // Collisions are rare in a code space this large, and a cluster node only
+    // keeps about one code in N; give up rather than spin if the filter
+    // rejects nearly everything
+    private static final int MAX_CODE_ATTEMPTS = 1000;
+
+    private final Map<Integer, Share> shares = new ConcurrentHashMap<>();
+    // Restored from the share index at startup and moved into shares when
+    // first asked for, so a restart does no per-share work beyond the replay
+    private final Map<Integer, Share> dormant = new ConcurrentHashMap<>();
+    private volatile IntPredicate codeFilter = code -> true;
+
+    /**
+     * Registers a new, not yet active share under a fresh code.
+     *
+     * @throws IllegalStateException if no free code could be found
+     */
+    public Share reserve(String filePath, String originalFilename, BlobStore.Blob blob, ShareLimits limits) {
+        long size = blob != null ? blob.size : new File(filePath).length();
+        return reserve(filePath, originalFilename, blob, null, null, size, limits);
+    }
+
+    /**
+     * Registers a share for a file that is still being uploaded.
+     */
+    public Share reserveLive(LiveSource live, String originalFilename, ShareLimits limits) {
+        return reserve(live.file.toString(), originalFilename, null, live, null, live.size, limits);
+    }
+
+    /**
+     * Registers a share of several files downloaded as one archive.
+     */
+    public Share reserveArchive(ShareArchive archive, String archiveName, ShareLimits limits) {
+        return reserve(archive.manifest.path.toString(), archiveName, null, null, archive, archive.size(), limits);
+    }
+
+    private Share reserve(String filePath, String originalFilename, BlobStore.Blob blob, LiveSource live,
+            ShareArchive archive, long size, ShareLimits limits) {
+        long now = System.currentTimeMillis();
+        long expiresAt = limits.ttlMillis > 0 ? now + limits.ttlMillis : Long.MAX_VALUE;
+        for (int attempt = 0; attempt < MAX_CODE_ATTEMPTS; attempt++) {
+            int code = UploadUtils.generateCode();
+            if (!codeFilter.test(code)) {
+                continue;
+            }
+            Share share = new Share(code, filePath, originalFilename, blob, size,
+                    expiresAt, limits.maxDownloads, new Usage(now), new MappedShareFile(Paths.get(filePath)), live, archive,
+                    false);
+            if (!dormant.containsKey(share.code) && shares.putIfAbsent(share.code, share) == null) {
+                return share;
+            }
+        }
+        throw new IllegalStateException("No free share codes");
+    }
+
+    /**
+     * Limits new codes to those the filter accepts.
+     */
+    public void setCodeFilter(IntPredicate filter) {
+        this.codeFilter = filter;
+    }
+
+    /**
+     * Registers a share under a code chosen elsewhere: persisted before a
+     * restart, or owned by another node that this one holds a replica for.
+     * It is activated when first asked for.
+     */
+    public void restore(int code, String originalFilename, BlobStore.Blob blob, long expiresAtMillis, int maxDownloads) {
+        dormant.put(code, new Share(code, blob.path.toString(), originalFilename, blob, blob.size, expiresAtMillis,
+                maxDownloads, new Usage(System.currentTimeMillis()), new MappedShareFile(blob.path), null, null, true));
+    }
+
+    /**
+     * Like {@link #restore(int, String, BlobStore.Blob, long, int)} for an archive share.
+     */
+    public void restoreArchive(int code, String archiveName, ShareArchive archive, long expiresAtMillis, int maxDownloads) {
+        Path manifest = archive.manifest.path;
+        dormant.put(code, new Share(code, manifest.toString(), archiveName, null, archive.size(), expiresAtMillis,
+                maxDownloads, new Usage(System.currentTimeMillis()), new MappedShareFile(manifest), null, archive, true));
+    }
+
+    public Share get(int code) {
+        Share share = shares.get(code);
+        return share != null || dormant.isEmpty() ? share : wake(code);
+    }
+
+    /**
+     * The share for {@code code} if it is currently being served and has
+     * not expired.
+     */
+    public Share getActive(int code) {
+        Share share = get(code);
+        return share != null && share.active && !share.isExpired(System.currentTimeMillis()) ? share : null;
+    }
+
+    /**
+     * Marks a share as served. Returns the updated share, or null if the code
+     * is unknown.
+     */
+    public Share activate(int code) {
+        return shares.computeIfPresent(code, (key, share) -> share.active ? share : share.withActive(true));
+    }
+
+    /**
+     * Points a live share at its finished blob. Returns the previous record,
+     * or null if the share is gone (the caller still owns the blob then).
+     */
+    public Share completeLive(int code, BlobStore.Blob blob) {
+        Share[] previous = new Share[1];
+        shares.computeIfPresent(code, (key, share) -> {
+            if (share.live == null) {
+                return share;
+            }
+            previous[0] = share;
+            return share.withBlob(blob);
+        });
+        return previous[0];
+    }
+
+    /**
+     * Switches an archive share from {@code previous} to {@code next}.
+     * Returns false if the share is gone or no longer serves
+     * {@code previous}; the caller still owns {@code next} then.
+     */
+    public boolean replaceArchive(int code, ShareArchive previous, ShareArchive next) {
+        boolean[] replaced = new boolean[1];
+        shares.computeIfPresent(code, (key, share) -> {
+            if (share.archive != previous) {
+                return share;
+            }
+            replaced[0] = true;
+            return share.withArchive(next);
+        });
+        return replaced[0];
+    }
+
+    /**
+     * Removes a share. Only the caller that actually removed it gets the
+     * record back, so cleanup such as releasing the blob happens once.
+     */
+    public Share remove(int code) {
+        // Dormant first: a concurrent wake has moved the share by the time it returns
+        Share share = dormant.remove(code);
+        return share != null ? share : shares.remove(code);
+    }
+
+    public Collection<Share> shares() {
+        return shares.values();
+    }
+
+    /**
+     * Restored shares that have not been asked for since the restart.
+     */
+    public Collection<Share> dormantShares() {
+        return dormant.values();
+    }
+
+    public int size() {
+        return shares.size();
+    }
+
+    public int dormantCount() {
+        return dormant.size();
+    }
+
+    public void clear() {
+        shares.clear();
+        dormant.clear();
+    }
+
+    private Share wake(int code) {
+        dormant.computeIfPresent(code, (key, share) -> {
+            shares.putIfAbsent(key, share);
+            return null;
+        });
+        return shares.get(code);
+    }
+
+    public static final class Share {
+
+        public final int code;
+        public final String filePath;
+        public final String originalFilename;
+        // Null for files that are shared in place rather than from the blob store
+        public final BlobStore.Blob blob;
+        public final long size;
+        public final long expiresAtMillis;
+        public final int maxDownloads;
+        // Mutable counters shared by every version of this share's record
+        public final Usage usage;
+        // Mapped on first use in mmap serving mode, shared like usage
+        public final MappedShareFile mapping;
+        // Set while the file is still being uploaded
+        public final LiveSource live;
+        // Set for a share of several files, which are sent as one zip archive
+        public final ShareArchive archive;
+        public final boolean active;
+
+        Share(int code, String filePath, String originalFilename, BlobStore.Blob blob, long size,
+                long expiresAtMillis, int maxDownloads, Usage usage, MappedShareFile mapping, LiveSource live,
+                ShareArchive archive, boolean active) {
+            this.code = code;
+            this.filePath = filePath;
+            this.originalFilename = originalFilename;
+            this.blob = blob;
+            this.size = size;
+            this.expiresAtMillis = expiresAtMillis;
+            this.maxDownloads = maxDownloads;
+            this.usage = usage;
+            this.mapping = mapping;
+            this.live = live;
+            this.archive = archive;
+            this.active = active;
+        }
+
+        Share withActive(boolean active) {
+            return new Share(code, filePath, originalFilename, blob, size, expiresAtMillis, maxDownloads, usage, mapping,
+                    live, archive, active);
+        }
+
+        Share withBlob(BlobStore.Blob blob) {
+            return new Share(code, blob.path.toString(), originalFilename, blob, blob.size, expiresAtMillis, maxDownloads,
+                    usage, new MappedShareFile(blob.path), null, null, active);
+        }
+
+        Share withArchive(ShareArchive archive) {
+            Path manifest = archive.manifest.path;
+            return new Share(code, manifest.toString(), originalFilename, null, archive.size(), expiresAtMillis,
+                    maxDownloads, usage, new MappedShareFile(manifest), null, archive, active);
+        }
+
+        public boolean isExpired(long now) {
+            return now >= expiresAtMillis;
+        }
+
+        public boolean isExhausted() {
+            return maxDownloads > 0 && usage.downloads() >= maxDownloads;
+        }
+    }
+
+    /**
+     * Access statistics of a share, updated on the download path with plain
+     * atomic operations.
+     */
+    public static final class Usage {
+
+        private final AtomicInteger downloads = new AtomicInteger();
+        private volatile long lastAccessMillis;
+
+        Usage(long now) {
+            this.lastAccessMillis = now;
+        }
+
+        public int downloads() {
+            return downloads.get();
+        }
+
+        public long lastAccessMillis() {
+            return lastAccessMillis;
+        }
+
+        void touch(long now) {
+            lastAccessMillis = now;
+        }
+
+        /**
+         * Counts a new download unless {@code maxDownloads} (if positive) has
+         * been reached.
+         */
+        boolean tryStartDownload(int maxDownloads) {
+            while (true) {
+                int current = downloads.get();
+                if (maxDownloads > 0 && current >= maxDownloads) {
+                    return false;
+                }
+                if (downloads.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package p2p.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Direct buffers of one size, recycled rather than allocated per use.
+ * Allocating direct memory is slow and it is only reclaimed by GC, so
+ * buffers that carry request and response bodies come from here and go back
+ * when they have been written or read.
+ *
+ * At most {@code maxPooled} idle buffers are kept; any beyond that are left
+ * to the collector. A buffer must not be touched after it is released.
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final LongAdder allocated = new LongAdder();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled < 0) {
+            throw new IllegalArgumentException("Invalid buffer pool size");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * A cleared buffer of {@link #bufferSize()} bytes.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.increment();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        pooled.decrementAndGet();
+        return buffer.clear();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Idle buffers waiting to be reused.
+     */
+    public int pooledCount() {
+        return pooled.get();
+    }
+
+    /**
+     * Buffers allocated since the pool was created.
+     */
+    public long allocatedCount() {
+        return allocated.sum();
+    }
+}
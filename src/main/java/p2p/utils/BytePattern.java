@@ -0,0 +1,75 @@
+package p2p.utils;
+
+/**
+ * A fixed byte sequence searched for with Boyer-Moore-Horspool: the byte under
+ * the end of the pattern decides how far to shift, so on file data a long
+ * multipart delimiter is usually found by looking at one byte in every
+ * pattern-length stretch instead of every byte.
+ *
+ * Searches work on one buffer at a time. For streamed input,
+ * {@link #partialMatchStart(byte[], int, int)} tells how much of a buffer's
+ * tail has to be kept for a match that continues in the next one.
+ */
+public final class BytePattern {
+
+    private final byte[] pattern;
+    private final int[] shift = new int[256];
+
+    public BytePattern(byte[] pattern) {
+        if (pattern.length == 0) {
+            throw new IllegalArgumentException("pattern must not be empty");
+        }
+        this.pattern = pattern.clone();
+        int last = pattern.length - 1;
+        for (int i = 0; i < shift.length; i++) {
+            shift[i] = pattern.length;
+        }
+        for (int i = 0; i < last; i++) {
+            shift[pattern[i] & 0xff] = last - i;
+        }
+    }
+
+    public int length() {
+        return pattern.length;
+    }
+
+    /**
+     * Index of the first occurrence in {@code data[from, to)}, or -1.
+     */
+    public int indexOf(byte[] data, int from, int to) {
+        int last = pattern.length - 1;
+        byte lastByte = pattern[last];
+        for (int i = from; i <= to - pattern.length;) {
+            byte b = data[i + last];
+            if (b == lastByte && matchesAt(data, i, last)) {
+                return i;
+            }
+            i += shift[b & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * Start of the longest tail of {@code data[from, to)} that is a proper
+     * prefix of the pattern, or {@code to} if there is none. Everything
+     * before it can be released once {@link #indexOf} found no match.
+     */
+    public int partialMatchStart(byte[] data, int from, int to) {
+        for (int k = Math.min(pattern.length - 1, to - from); k > 0; k--) {
+            if (data[to - k] == pattern[0] && matchesAt(data, to - k, k)) {
+                return to - k;
+            }
+        }
+        return to;
+    }
+
+    // Compares the first count bytes of the pattern
+    private boolean matchesAt(byte[] data, int at, int count) {
+        for (int j = 0; j < count; j++) {
+            if (data[at + j] != pattern[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,75 @@
+package p2p.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A resolved, inclusive byte range of an HTTP Range request (RFC 9110).
+ */
+public class ByteRange {
+
+    // More ranges than this is more likely abuse than a real client
+    private static final int MAX_RANGES = 32;
+
+    public final long first;
+    public final long last;
+
+    public ByteRange(long first, long last) {
+        this.first = first;
+        this.last = last;
+    }
+
+    public long length() {
+        return last - first + 1;
+    }
+
+    public String contentRange(long size) {
+        return "bytes " + first + "-" + last + "/" + size;
+    }
+
+    /**
+     * Resolves a Range header against a representation of {@code size} bytes.
+     * Returns null when the header should be ignored (not a bytes range, bad
+     * syntax, too many ranges), and an empty list when no range is satisfiable.
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String rawSpec : specs) {
+            String spec = rawSpec.trim();
+            int dash = spec.indexOf('-');
+            if (dash == -1) {
+                return null;
+            }
+            try {
+                String firstPart = spec.substring(0, dash).trim();
+                String lastPart = spec.substring(dash + 1).trim();
+                if (firstPart.isEmpty()) {
+                    // Suffix range: the final N bytes
+                    long suffix = Long.parseLong(lastPart);
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                    continue;
+                }
+                long first = Long.parseLong(firstPart);
+                long last = lastPart.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPart);
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < size) {
+                    ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,173 @@
+package p2p.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C of every fixed-size chunk of a file, so a byte range can be checked
+ * without hashing the whole file. The last chunk may be shorter.
+ *
+ * Over the peer protocol the checksums of the chunks that lie entirely inside
+ * a requested range travel in one header value:
+ * {@code <chunk size> <first chunk index> <crc>,<crc>,...} with the CRCs in hex.
+ */
+public class ChunkChecksums {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    // Keeps the header well below the protocol's header size limit
+    private static final int MAX_HEADER_CHUNKS = 256;
+
+    private final int chunkSize;
+    private final int firstChunk;
+    private final int[] crcs;
+
+    public ChunkChecksums(int chunkSize, int firstChunk, int[] crcs) {
+        this.chunkSize = chunkSize;
+        this.firstChunk = firstChunk;
+        this.crcs = crcs;
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    public int firstChunk() {
+        return firstChunk;
+    }
+
+    public int chunkCount() {
+        return crcs.length;
+    }
+
+    public int crc(int chunk) {
+        return crcs[chunk - firstChunk];
+    }
+
+    /**
+     * Header value covering the whole chunks inside {@code [offset, offset + length)}
+     * of a file of {@code size} bytes, or null if there are none or too many.
+     */
+    public String toHeader(long offset, long length, long size) {
+        long end = offset + length;
+        int first = (int) ((offset + chunkSize - 1) / chunkSize);
+        int last = first - 1;
+        while (last + 1 < firstChunk + crcs.length && Math.min((long) (last + 2) * chunkSize, size) <= end) {
+            last++;
+        }
+        if (first < firstChunk || last < first || last - first + 1 > MAX_HEADER_CHUNKS) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder().append(chunkSize).append(' ').append(first).append(' ');
+        for (int chunk = first; chunk <= last; chunk++) {
+            if (chunk > first) {
+                value.append(',');
+            }
+            value.append(Integer.toHexString(crc(chunk)));
+        }
+        return value.toString();
+    }
+
+    public static ChunkChecksums fromHeader(String value) throws IOException {
+        try {
+            String[] parts = value.trim().split(" ");
+            String[] hex = parts[2].split(",");
+            int[] crcs = new int[hex.length];
+            for (int i = 0; i < hex.length; i++) {
+                crcs[i] = Integer.parseUnsignedInt(hex[i], 16);
+            }
+            return new ChunkChecksums(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), crcs);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed chunk checksums: " + value);
+        }
+    }
+
+    public void writeTo(Path file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + crcs.length * 4);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(chunkSize);
+            out.writeInt(crcs.length);
+            for (int crc : crcs) {
+                out.writeInt(crc);
+            }
+        }
+        Files.write(file, bytes.toByteArray());
+    }
+
+    public static ChunkChecksums readFrom(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            int chunkSize = in.readInt();
+            int[] crcs = new int[in.readInt()];
+            for (int i = 0; i < crcs.length; i++) {
+                crcs[i] = in.readInt();
+            }
+            return new ChunkChecksums(chunkSize, 0, crcs);
+        }
+    }
+
+    /**
+     * Computes the checksums incrementally as file bytes stream past, so they
+     * come for free with the write or hash pass that already reads the data.
+     */
+    public static class Builder extends OutputStream {
+
+        private final int chunkSize;
+        private final CRC32C crc = new CRC32C();
+        private int[] crcs = new int[16];
+        private int count;
+        private int inChunk;
+
+        public Builder() {
+            this(DEFAULT_CHUNK_SIZE);
+        }
+
+        public Builder(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public void write(int b) {
+            crc.update(b);
+            if (++inChunk == chunkSize) {
+                finishChunk();
+            }
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            while (length > 0) {
+                int take = Math.min(length, chunkSize - inChunk);
+                crc.update(data, offset, take);
+                inChunk += take;
+                offset += take;
+                length -= take;
+                if (inChunk == chunkSize) {
+                    finishChunk();
+                }
+            }
+        }
+
+        public ChunkChecksums build() {
+            if (inChunk > 0) {
+                finishChunk();
+            }
+            return new ChunkChecksums(chunkSize, 0, Arrays.copyOf(crcs, count));
+        }
+
+        private void finishChunk() {
+            if (count == crcs.length) {
+                crcs = Arrays.copyOf(crcs, count * 2);
+            }
+            crcs[count++] = (int) crc.getValue();
+            crc.reset();
+            inChunk = 0;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content codings used on the peer socket and over HTTP. {@code gzip} is the
+ * default; {@code deflate} (zlib) runs at the fastest level and trades some
+ * ratio for CPU on fast links.
+ */
+public class Compression {
+
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    // Smaller files gain less than the codec framing and setup cost
+    private static final long MIN_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Picks a coding from an Accept-Encoding list for the given file, or null
+     * to send it as is. Quality values are honoured; ties go to gzip.
+     */
+    public static String negotiate(String acceptEncoding, String filename, long length) {
+        if (acceptEncoding == null || !isWorthCompressing(filename, length)) {
+            return null;
+        }
+        String best = null;
+        double bestQuality = 0;
+        for (String entry : acceptEncoding.split(",")) {
+            String[] parts = entry.trim().split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            if (!coding.equals(GZIP) && !coding.equals(DEFLATE)) {
+                continue;
+            }
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (quality > bestQuality || (quality == bestQuality && quality > 0 && coding.equals(GZIP))) {
+                best = coding;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Whether a file of this name and length should be compressed at all; a
+     * negative length means unknown.
+     */
+    public static boolean isWorthCompressing(String filename, long length) {
+        return (length < 0 || length >= MIN_SIZE) && ContentTypes.isCompressible(ContentTypes.forFilename(filename));
+    }
+
+    /**
+     * Wraps {@code out} so that bytes written are encoded; closing the
+     * returned stream finishes the coding and closes {@code out}.
+     */
+    public static OutputStream encoder(String coding, OutputStream out) throws IOException {
+        switch (coding) {
+            case GZIP:
+                return new GZIPOutputStream(out, BUFFER_SIZE);
+            case DEFLATE:
+                return new DeflaterOutputStream(out, new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unsupported coding: " + coding);
+        }
+    }
+
+    public static InputStream decoder(String coding, InputStream in) throws IOException {
+        switch (coding) {
+            case GZIP:
+                return new GZIPInputStream(in, BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(in);
+            default:
+                throw new IOException("Unsupported coding: " + coding);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package p2p.utils;
+
+public class ContentTypes {
+
+    public static String forFilename(String filename) {
+        if (filename == null) {
+            return "application/octet-stream";
+        }
+
+        String extension = "";
+        int lastDotIndex = filename.lastIndexOf('.');
+        if (lastDotIndex > 0 && lastDotIndex < filename.length() - 1) {
+            extension = filename.substring(lastDotIndex + 1).toLowerCase();
+        }
+
+        switch (extension) {
+            case "pdf":
+                return "application/pdf";
+            case "txt":
+            case "log":
+            case "md":
+                return "text/plain";
+            case "csv":
+                return "text/csv";
+            case "doc":
+                return "application/msword";
+            case "docx":
+                return "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+            case "xls":
+                return "application/vnd.ms-excel";
+            case "xlsx":
+                return "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+            case "ppt":
+                return "application/vnd.ms-powerpoint";
+            case "pptx":
+                return "application/vnd.openxmlformats-officedocument.presentationml.presentation";
+            case "jpg":
+            case "jpeg":
+                return "image/jpeg";
+            case "png":
+                return "image/png";
+            case "gif":
+                return "image/gif";
+            case "svg":
+                return "image/svg+xml";
+            case "zip":
+                return "application/zip";
+            case "rar":
+                return "application/x-rar-compressed";
+            case "mp3":
+                return "audio/mpeg";
+            case "mp4":
+                return "video/mp4";
+            case "avi":
+                return "video/x-msvideo";
+            case "json":
+                return "application/json";
+            case "xml":
+                return "application/xml";
+            case "html":
+                return "text/html";
+            case "css":
+                return "text/css";
+            case "js":
+                return "application/javascript";
+            default:
+                return "application/octet-stream";
+        }
+    }
+
+    /**
+     * Whether compressing a file of this type is likely to pay off. Images,
+     * audio, video, archives and the zip-based office formats are already
+     * compressed; unknown binaries are left alone as well.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType.startsWith("text/")) {
+            return true;
+        }
+        switch (contentType) {
+            case "application/json":
+            case "application/xml":
+            case "application/javascript":
+            case "image/svg+xml":
+            case "application/msword":
+            case "application/vnd.ms-excel":
+            case "application/vnd.ms-powerpoint":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
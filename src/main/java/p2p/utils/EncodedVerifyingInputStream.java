@@ -0,0 +1,225 @@
+package p2p.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Relays a gzip or deflate body unchanged while inflating a copy of it, so
+ * the checks of a {@link VerifyingInputStream} cover encoded transfers too.
+ *
+ * The read that reaches the end of the coding also checks the gzip trailer,
+ * the decoded length and the encoded length when it is known, and throws
+ * before those last bytes are handed out. A stream that ends before the
+ * coding does fails instead of looking complete.
+ */
+class EncodedVerifyingInputStream extends FilterInputStream {
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int TRAILER = 8;
+    private static final int MAX_HEADER = 64 * 1024;
+
+    private final String coding;
+    private final boolean gzip;
+    private final long encodedLength;
+    private final VerifyingInputStream checks;
+    private final Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] decoded = new byte[64 * 1024];
+    private long encodedRead;
+    private long decodedCount;
+
+    // Gzip framing, gathered across reads
+    private byte[] header = new byte[64];
+    private int headerFill;
+    private boolean headerDone;
+    private final byte[] trailer = new byte[TRAILER];
+    private int trailerFill;
+
+    private boolean done;
+
+    EncodedVerifyingInputStream(InputStream in, String coding, long encodedLength, VerifyingInputStream checks) {
+        super(in);
+        this.coding = coding;
+        this.gzip = coding.equals(Compression.GZIP);
+        if (!gzip && !coding.equals(Compression.DEFLATE)) {
+            throw new IllegalArgumentException("Unsupported coding: " + coding);
+        }
+        this.encodedLength = encodedLength;
+        this.checks = checks;
+        // Gzip's own header and trailer are handled here, zlib's by the inflater
+        this.inflater = new Inflater(gzip);
+        this.headerDone = !gzip;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (done) {
+            return -1;
+        }
+        if (encodedLength >= 0) {
+            length = (int) Math.min(length, encodedLength - encodedRead);
+        }
+        int n = in.read(buffer, offset, length);
+        if (n == -1) {
+            throw new IOException("Stream ended after " + encodedRead + " encoded bytes, before the end of the "
+                    + coding + " data");
+        }
+        encodedRead += n;
+        decode(buffer, offset, n);
+        if (!done && encodedRead == encodedLength) {
+            throw new IOException(coding + " data continues past the " + encodedLength + " encoded bytes");
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        throw new IOException("Skipping would bypass verification");
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        super.close();
+    }
+
+    private void decode(byte[] buffer, int offset, int n) throws IOException {
+        if (!headerDone) {
+            int before = headerFill;
+            int take = Math.min(n, MAX_HEADER - headerFill);
+            if (headerFill + take > header.length) {
+                header = Arrays.copyOf(header, Math.max(header.length * 2, headerFill + take));
+            }
+            System.arraycopy(buffer, offset, header, headerFill, take);
+            headerFill += take;
+            int headerLength = gzipHeaderLength(header, headerFill);
+            if (headerLength < 0) {
+                if (take < n) {
+                    throw new ZipException("gzip header too long");
+                }
+                return;
+            }
+            headerDone = true;
+            offset += headerLength - before;
+            n -= headerLength - before;
+        }
+        if (!inflater.finished()) {
+            inflater.setInput(buffer, offset, n);
+            inflate();
+            if (!inflater.finished()) {
+                return;
+            }
+            int remaining = inflater.getRemaining();
+            offset += n - remaining;
+            n = remaining;
+            if (!gzip) {
+                // The inflater has checked zlib's Adler-32 trailer
+                if (n > 0) {
+                    throw new ZipException("Data after the end of the deflate stream");
+                }
+                finish();
+                return;
+            }
+        }
+        if (n > TRAILER - trailerFill) {
+            throw new ZipException("Data after the end of the gzip stream");
+        }
+        System.arraycopy(buffer, offset, trailer, trailerFill, n);
+        trailerFill += n;
+        if (trailerFill == TRAILER) {
+            if (littleEndianInt(trailer, 0) != (int) crc.getValue()) {
+                throw new ZipException("gzip CRC-32 mismatch");
+            }
+            if (littleEndianInt(trailer, 4) != (int) decodedCount) {
+                throw new ZipException("gzip length mismatch");
+            }
+            finish();
+        }
+    }
+
+    private void inflate() throws IOException {
+        try {
+            int n;
+            do {
+                n = inflater.inflate(decoded);
+                if (n > 0) {
+                    checks.verify(decoded, 0, n);
+                    crc.update(decoded, 0, n);
+                    decodedCount += n;
+                }
+            } while (n > 0 && !inflater.finished());
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupt " + coding + " data: " + e.getMessage());
+        }
+        if (inflater.needsDictionary()) {
+            throw new ZipException("Preset dictionaries are not supported");
+        }
+    }
+
+    private void finish() throws IOException {
+        if (!checks.complete()) {
+            throw new IOException("Decoded to " + checks.verified() + " bytes, less than expected");
+        }
+        if (encodedLength >= 0 && encodedRead != encodedLength) {
+            throw new IOException("Coding ended after " + encodedRead + " of " + encodedLength + " encoded bytes");
+        }
+        done = true;
+    }
+
+    // Length of the gzip header (RFC 1952) at the start of the bytes, or -1 if more are needed
+    private static int gzipHeaderLength(byte[] bytes, int n) throws IOException {
+        if (n < 10) {
+            return -1;
+        }
+        if ((bytes[0] & 0xff) != 0x1f || (bytes[1] & 0xff) != 0x8b || bytes[2] != 8) {
+            throw new ZipException("Not in gzip format");
+        }
+        int flags = bytes[3] & 0xff;
+        int at = 10;
+        if ((flags & FEXTRA) != 0) {
+            if (n < at + 2) {
+                return -1;
+            }
+            at += 2 + ((bytes[at] & 0xff) | (bytes[at + 1] & 0xff) << 8);
+        }
+        for (int field : new int[] { FNAME, FCOMMENT }) {
+            if ((flags & field) != 0) {
+                while (at < n && bytes[at] != 0) {
+                    at++;
+                }
+                if (at >= n) {
+                    return -1;
+                }
+                at++;
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            at += 2;
+        }
+        return at <= n ? at : -1;
+    }
+
+    private static int littleEndianInt(byte[] bytes, int at) {
+        return (bytes[at] & 0xff) | (bytes[at + 1] & 0xff) << 8 | (bytes[at + 2] & 0xff) << 16 | (bytes[at + 3] & 0xff) << 24;
+    }
+}
@@ -0,0 +1,63 @@
+package p2p.utils;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How blocking work (HTTP handlers, share senders) is run. Transfers spend
+ * nearly all their time blocked on sockets, so the default is one virtual
+ * thread per task; {@link #PLATFORM} falls back to bounded pools of platform
+ * threads.
+ *
+ * Selected with -Dpeerlink.threads=virtual|platform.
+ */
+public enum ExecutionMode {
+
+    VIRTUAL,
+    PLATFORM;
+
+    public static ExecutionMode fromSystemProperties() {
+        String mode = System.getProperty("peerlink.threads", "virtual");
+        try {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            Log.warn("config.invalid", "property", "peerlink.threads", "value", mode, "using", "virtual");
+            return VIRTUAL;
+        }
+    }
+
+    /**
+     * Creates an executor for the named workload. {@code platformThreads} is
+     * only used in {@link #PLATFORM} mode; virtual threads are unbounded.
+     */
+    public ExecutorService newExecutor(String name, int platformThreads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return new ThreadPoolExecutor(platformThreads, platformThreads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory(name));
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, name + "-" + counter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
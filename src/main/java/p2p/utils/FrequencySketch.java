@@ -0,0 +1,71 @@
+package p2p.utils;
+
+/**
+ * Approximate access counts for TinyLFU admission: a count-min sketch of four
+ * rows of small saturating counters. Once {@code 10 * width} accesses have been
+ * recorded every counter is halved, so old popularity fades and a file that
+ * was hot yesterday does not keep its place forever.
+ *
+ * Updates are not synchronized. A lost increment under contention only makes
+ * an estimate slightly low, which is fine for an admission heuristic.
+ */
+public class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long[] SEEDS = {
+        0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L
+    };
+
+    private final int[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedItems roughly how many distinct keys compete for admission
+     */
+    public FrequencySketch(int expectedItems) {
+        int width = Integer.highestOneBit(Math.max(64, expectedItems * 4) - 1) << 1;
+        this.counters = new int[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    public void increment(long key) {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(key, row);
+            if (counters[row][index] < MAX_COUNT) {
+                counters[row][index]++;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    public int frequency(long key) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[row][index(key, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int[] row : counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>>= 1;
+            }
+        }
+        additions = 0;
+    }
+
+    private int index(long key, int row) {
+        long hash = (key + SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        hash ^= hash >>> 32;
+        return (int) hash & mask;
+    }
+}
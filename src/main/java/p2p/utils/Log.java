@@ -0,0 +1,109 @@
+package p2p.utils;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * Minimal structured logger: one {@code key=value} line per event, e.g.
+ *
+ * <pre>
+ * ts=2024-05-01T10:00:00.123Z level=INFO event=share.started code=51234 file="report 2.pdf"
+ * </pre>
+ *
+ * The level check comes first, so disabled events cost no formatting. Set the
+ * threshold with {@code -Dpeerlink.log.level=DEBUG|INFO|WARN|ERROR}.
+ */
+public class Log {
+
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static volatile Level threshold = parseLevel(System.getProperty("peerlink.log.level", "INFO"));
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    public static void debug(String event, Object... fields) {
+        if (isEnabled(Level.DEBUG)) {
+            write(Level.DEBUG, event, fields);
+        }
+    }
+
+    public static void info(String event, Object... fields) {
+        if (isEnabled(Level.INFO)) {
+            write(Level.INFO, event, fields);
+        }
+    }
+
+    public static void warn(String event, Object... fields) {
+        if (isEnabled(Level.WARN)) {
+            write(Level.WARN, event, fields);
+        }
+    }
+
+    public static void error(String event, Object... fields) {
+        if (isEnabled(Level.ERROR)) {
+            write(Level.ERROR, event, fields);
+        }
+    }
+
+    /**
+     * Formats one event; {@code fields} alternate between names and values.
+     */
+    static String format(Level level, String event, Object... fields) {
+        StringBuilder line = new StringBuilder(96);
+        line.append("ts=").append(Instant.now()).append(" level=").append(level).append(" event=").append(event);
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            line.append(' ').append(fields[i]).append('=');
+            appendValue(line, fields[i + 1]);
+        }
+        return line.toString();
+    }
+
+    private static void write(Level level, String event, Object... fields) {
+        PrintStream out = level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+        out.println(format(level, event, fields));
+    }
+
+    private static void appendValue(StringBuilder line, Object value) {
+        String text = value instanceof Throwable ? describe((Throwable) value) : String.valueOf(value);
+        boolean quote = text.isEmpty();
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c < 0x20;
+        }
+        if (!quote) {
+            line.append(text);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c >= 0x20) {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private static String describe(Throwable error) {
+        return error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package p2p.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide transfer metrics, rendered in the Prometheus text format.
+ *
+ * Transfers are counted per direction: {@code upload} (HTTP uploads into the
+ * server), {@code download} (HTTP downloads relayed to browsers) and
+ * {@code send} (peer socket transfers). Recording only touches adders, atomics
+ * and histogram buckets, so it allocates nothing. Byte counters are totals;
+ * bytes per second is {@code rate(peerlink_transfer_bytes_total[1m])}.
+ *
+ * Values owned by other components (share count, executor queues, cache hit
+ * counts) are registered as suppliers and read when scraped.
+ */
+public final class Metrics {
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    public static final Transfers UPLOADS = new Transfers("upload");
+    public static final Transfers DOWNLOADS = new Transfers("download");
+    public static final Transfers SENDS = new Transfers("send");
+
+    private static final Transfers[] DIRECTIONS = { UPLOADS, DOWNLOADS, SENDS };
+
+    // Keyed by series, e.g. peerlink_executor_queue_depth{pool="http"}; sorted
+    // so the series of one family are written together
+    private static final Map<String, Series> SERIES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a gauge, replacing any earlier one with the same series name.
+     */
+    public static void gauge(String series, String help, LongSupplier value) {
+        SERIES.put(series, new Series("gauge", help, value));
+    }
+
+    /**
+     * Registers a monotonically increasing counter owned by another component.
+     */
+    public static void counter(String series, String help, LongSupplier value) {
+        SERIES.put(series, new Series("counter", help, value));
+    }
+
+    /**
+     * Exports the queue depth of a bounded pool. Virtual thread executors
+     * start every task at once and have no queue, so nothing is registered.
+     */
+    public static void executorQueue(String pool, ExecutorService executor) {
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pooled = (ThreadPoolExecutor) executor;
+            gauge("peerlink_executor_queue_depth{pool=\"" + pool + "\"}", "Tasks waiting for a pool thread.",
+                    () -> pooled.getQueue().size());
+            gauge("peerlink_executor_active_threads{pool=\"" + pool + "\"}", "Pool threads running a task.",
+                    pooled::getActiveCount);
+        }
+    }
+
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "peerlink_transfer_bytes_total", "counter", "Bytes transferred, by direction.");
+        for (Transfers t : DIRECTIONS) {
+            out.append("peerlink_transfer_bytes_total{direction=\"").append(t.direction).append("\"} ")
+                    .append(t.bytes.sum()).append('\n');
+        }
+        header(out, "peerlink_transfers_active", "gauge", "Transfers in progress, by direction.");
+        for (Transfers t : DIRECTIONS) {
+            out.append("peerlink_transfers_active{direction=\"").append(t.direction).append("\"} ")
+                    .append(t.active.get()).append('\n');
+        }
+        header(out, "peerlink_transfers_total", "counter", "Finished transfers, by direction and outcome.");
+        for (Transfers t : DIRECTIONS) {
+            out.append("peerlink_transfers_total{direction=\"").append(t.direction).append("\",result=\"ok\"} ")
+                    .append(t.completed.sum()).append('\n');
+            out.append("peerlink_transfers_total{direction=\"").append(t.direction).append("\",result=\"error\"} ")
+                    .append(t.failed.sum()).append('\n');
+        }
+        header(out, "peerlink_transfer_duration_seconds", "summary", "Transfer duration, by direction.");
+        for (Transfers t : DIRECTIONS) {
+            for (double q : QUANTILES) {
+                out.append("peerlink_transfer_duration_seconds{direction=\"").append(t.direction)
+                        .append("\",quantile=\"").append(q).append("\"} ")
+                        .append(t.latency.quantileMicros(q) / 1e6).append('\n');
+            }
+            out.append("peerlink_transfer_duration_seconds_sum{direction=\"").append(t.direction).append("\"} ")
+                    .append(t.latency.sumMicros() / 1e6).append('\n');
+            out.append("peerlink_transfer_duration_seconds_count{direction=\"").append(t.direction).append("\"} ")
+                    .append(t.latency.count()).append('\n');
+        }
+
+        String family = null;
+        for (Map.Entry<String, Series> entry : SERIES.entrySet()) {
+            String name = entry.getKey();
+            int brace = name.indexOf('{');
+            String entryFamily = brace == -1 ? name : name.substring(0, brace);
+            if (!entryFamily.equals(family)) {
+                family = entryFamily;
+                header(out, family, entry.getValue().type, entry.getValue().help);
+            }
+            out.append(name).append(' ').append(entry.getValue().value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String family, String type, String help) {
+        out.append("# HELP ").append(family).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(family).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Counters and a latency histogram for one transfer direction.
+     */
+    public static final class Transfers {
+
+        final String direction;
+        final LongAdder bytes = new LongAdder();
+        final AtomicLong active = new AtomicLong();
+        final LongAdder completed = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Transfers(String direction) {
+            this.direction = direction;
+        }
+
+        /**
+         * Marks a transfer as started and returns the timestamp to pass to
+         * {@link #finish(long, boolean)}.
+         */
+        public long start() {
+            active.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        public void addBytes(long count) {
+            bytes.add(count);
+        }
+
+        public void finish(long startNanos, boolean succeeded) {
+            active.decrementAndGet();
+            latency.recordNanos(System.nanoTime() - startNanos);
+            (succeeded ? completed : failed).increment();
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        public long active() {
+            return active.get();
+        }
+
+        public LatencyHistogram latency() {
+            return latency;
+        }
+    }
+
+    private static final class Series {
+
+        final String type;
+        final String help;
+        final LongSupplier value;
+
+        Series(String type, String help, LongSupplier value) {
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming multipart/form-data parser.
+ *
+ * Bytes are pushed in with {@link #feed(byte[], int, int)} (or pulled from an
+ * InputStream with {@link #parse(InputStream)}) and every part is handed to a
+ * {@link PartHandler} as it is found. The parser only ever holds one fixed-size
+ * window of the body, so the heap used per request does not depend on the
+ * size of the uploaded files.
+ */
+public class MultipartParser {
+
+    private static final int WINDOW_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+    private static final BytePattern HEADER_END = new BytePattern(new byte[] {'\r', '\n', '\r', '\n'});
+
+    private enum State {
+        PREAMBLE, AFTER_BOUNDARY, HEADERS, BODY, EPILOGUE
+    }
+
+    private final PartHandler handler;
+    // "--boundary" for the first delimiter, "\r\n--boundary" for every other one
+    private final BytePattern firstDelimiter;
+    private final BytePattern delimiter;
+
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private int start;
+    private int end;
+    private State state = State.PREAMBLE;
+
+    public MultipartParser(String boundary, PartHandler handler) {
+        if (boundary == null || boundary.isEmpty()) {
+            throw new IllegalArgumentException("boundary must not be empty");
+        }
+        this.handler = handler;
+        this.firstDelimiter = new BytePattern(("--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+        this.delimiter = new BytePattern(("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Extracts the boundary parameter from a multipart Content-Type header, or
+     * returns null if there is none.
+     */
+    public static String extractBoundary(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        for (String param : contentType.split(";")) {
+            String trimmed = param.trim();
+            if (trimmed.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String value = trimmed.substring(9).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value.isEmpty() ? null : value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the whole stream through the parser and checks that the closing
+     * boundary was seen.
+     */
+    public void parse(InputStream in) throws IOException {
+        byte[] buffer = new byte[WINDOW_SIZE];
+        int bytesRead;
+        while ((bytesRead = in.read(buffer)) != -1) {
+            feed(buffer, 0, bytesRead);
+        }
+        finish();
+    }
+
+    public void feed(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            compact();
+            int n = Math.min(length, window.length - end);
+            System.arraycopy(data, offset, window, end, n);
+            end += n;
+            offset += n;
+            length -= n;
+            process();
+        }
+    }
+
+    /**
+     * Signals the end of the body. Fails if the input stopped before the
+     * closing boundary.
+     */
+    public void finish() throws IOException {
+        if (state != State.EPILOGUE) {
+            throw new MultipartException("Unexpected end of multipart body");
+        }
+    }
+
+    private void process() throws IOException {
+        boolean progress = true;
+        while (progress) {
+            switch (state) {
+                case PREAMBLE:
+                    progress = processPreamble();
+                    break;
+                case AFTER_BOUNDARY:
+                    progress = processAfterBoundary();
+                    break;
+                case HEADERS:
+                    progress = processHeaders();
+                    break;
+                case BODY:
+                    progress = processBody();
+                    break;
+                default:
+                    // Anything after the closing boundary is ignored
+                    start = end;
+                    progress = false;
+            }
+        }
+    }
+
+    private boolean processPreamble() {
+        // The first delimiter may appear at the very start without a leading CRLF
+        int pos = firstDelimiter.indexOf(window, start, end);
+        if (pos == -1) {
+            start = firstDelimiter.partialMatchStart(window, start, end);
+            return false;
+        }
+        start = pos + firstDelimiter.length();
+        state = State.AFTER_BOUNDARY;
+        return true;
+    }
+
+    private boolean processAfterBoundary() throws IOException {
+        // Skip transport padding (RFC 2046) up to "--" or CRLF
+        while (start < end && (window[start] == ' ' || window[start] == '\t')) {
+            start++;
+        }
+        if (end - start < 2) {
+            return false;
+        }
+        if (window[start] == '-' && window[start + 1] == '-') {
+            start += 2;
+            state = State.EPILOGUE;
+            return true;
+        }
+        if (window[start] == '\r' && window[start + 1] == '\n') {
+            start += 2;
+            state = State.HEADERS;
+            return true;
+        }
+        throw new MultipartException("Malformed boundary line");
+    }
+
+    private boolean processHeaders() throws IOException {
+        if (end - start < 2) {
+            return false;
+        }
+        // An empty header block is just a bare CRLF
+        if (window[start] == '\r' && window[start + 1] == '\n') {
+            start += 2;
+            handler.startPart(new Part(Collections.emptyMap()));
+            state = State.BODY;
+            return true;
+        }
+        int pos = HEADER_END.indexOf(window, start, end);
+        if (pos == -1) {
+            if (end - start > MAX_HEADER_SIZE) {
+                throw new MultipartException("Part headers too large");
+            }
+            return false;
+        }
+        Part part = new Part(parseHeaders(window, start, pos));
+        start = pos + HEADER_END.length();
+        handler.startPart(part);
+        state = State.BODY;
+        return true;
+    }
+
+    private boolean processBody() throws IOException {
+        int pos = delimiter.indexOf(window, start, end);
+        if (pos != -1) {
+            if (pos > start) {
+                handler.partData(window, start, pos - start);
+            }
+            start = pos + delimiter.length();
+            handler.endPart();
+            state = State.AFTER_BOUNDARY;
+            return true;
+        }
+        // Only a tail that could be the start of a delimiter straddling two
+        // reads is held back; everything before it is file data
+        int safe = delimiter.partialMatchStart(window, start, end);
+        if (safe > start) {
+            handler.partData(window, start, safe - start);
+            start = safe;
+        }
+        return false;
+    }
+
+    private void compact() {
+        if (start == 0) {
+            return;
+        }
+        int remaining = end - start;
+        if (remaining > 0) {
+            System.arraycopy(window, start, window, 0, remaining);
+        }
+        start = 0;
+        end = remaining;
+    }
+
+    /**
+     * Splits a header block into lines and names from the raw bytes; only
+     * header values are decoded.
+     */
+    private static Map<String, String> parseHeaders(byte[] data, int from, int to) {
+        Map<String, String> headers = new LinkedHashMap<>();
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = lineStart;
+            while (lineEnd < to && !(data[lineEnd] == '\r' && lineEnd + 1 < to && data[lineEnd + 1] == '\n')) {
+                lineEnd++;
+            }
+            int colon = lineStart;
+            while (colon < lineEnd && data[colon] != ':') {
+                colon++;
+            }
+            if (colon > lineStart && colon < lineEnd) {
+                String name = new String(data, lineStart, colon - lineStart, StandardCharsets.US_ASCII);
+                // Browsers send raw UTF-8 in header values such as filename="..."
+                String value = new String(data, colon + 1, lineEnd - colon - 1, StandardCharsets.UTF_8);
+                headers.put(name.trim().toLowerCase(Locale.ROOT), value.trim());
+            }
+            lineStart = lineEnd + 2;
+        }
+        return headers;
+    }
+
+    public interface PartHandler {
+
+        void startPart(Part part) throws IOException;
+
+        void partData(byte[] data, int offset, int length) throws IOException;
+
+        void endPart() throws IOException;
+    }
+
+    public static class Part {
+
+        public final Map<String, String> headers;
+        public final String name;
+        public final String filename;
+        // The filename with any relative directories kept, as sent by folder uploads
+        public final String path;
+        public final String contentType;
+
+        public Part(Map<String, String> headers) {
+            this.headers = headers;
+            String disposition = headers.get("content-disposition");
+            this.name = dispositionParam(disposition, "name");
+            String sent = dispositionParam(disposition, "filename");
+            this.filename = baseName(sent);
+            this.path = relativePath(sent);
+            String type = headers.get("content-type");
+            this.contentType = type != null ? type : "application/octet-stream";
+        }
+
+        public boolean isFile() {
+            return filename != null;
+        }
+
+        private static String dispositionParam(String disposition, String param) {
+            if (disposition == null) {
+                return null;
+            }
+            int i = 0;
+            int length = disposition.length();
+            while (i < length) {
+                int semicolon = disposition.indexOf(';', i);
+                if (semicolon == -1) {
+                    return null;
+                }
+                i = semicolon + 1;
+                while (i < length && disposition.charAt(i) == ' ') {
+                    i++;
+                }
+                int equals = disposition.indexOf('=', i);
+                if (equals == -1) {
+                    return null;
+                }
+                String key = disposition.substring(i, equals).trim();
+                i = equals + 1;
+                String value;
+                if (i < length && disposition.charAt(i) == '"') {
+                    // Quoted value, may contain ';'. Browsers percent-encode '"' and
+                    // send '\\' raw, so backslashes are not treated as escapes.
+                    int close = disposition.indexOf('"', i + 1);
+                    if (close == -1) {
+                        close = length;
+                    }
+                    value = disposition.substring(i + 1, close);
+                    i = close + 1;
+                } else {
+                    int next = disposition.indexOf(';', i);
+                    value = disposition.substring(i, next == -1 ? length : next).trim();
+                    i = next == -1 ? length : next;
+                }
+                if (key.equalsIgnoreCase(param)) {
+                    return value;
+                }
+            }
+            return null;
+        }
+
+        private static String baseName(String filename) {
+            if (filename == null) {
+                return null;
+            }
+            // Some browsers send the full client-side path
+            int slash = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\'));
+            return slash >= 0 ? filename.substring(slash + 1) : filename;
+        }
+
+        /**
+         * The sent filename as a relative path with '/' separators. Empty,
+         * "." and ".." segments and drive letters are dropped, so the path
+         * cannot point outside wherever it is extracted.
+         */
+        private static String relativePath(String filename) {
+            if (filename == null) {
+                return null;
+            }
+            StringBuilder path = new StringBuilder();
+            for (String segment : filename.replace('\\', '/').split("/")) {
+                if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.endsWith(":")) {
+                    continue;
+                }
+                if (path.length() > 0) {
+                    path.append('/');
+                }
+                path.append(segment);
+            }
+            return path.toString();
+        }
+    }
+
+    public static class MultipartException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public MultipartException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies a transfer body from a source to a sink through one bounded buffer,
+ * without staging it anywhere else.
+ */
+public final class StreamRelay {
+
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    private StreamRelay() {
+    }
+
+    /**
+     * Copies up to {@code length} bytes (or until end of stream when length is
+     * negative) and returns the number of bytes copied.
+     */
+    public static long relay(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        while (length < 0 || total < length) {
+            int toRead = length < 0 ? buffer.length : (int) Math.min(buffer.length, length - total);
+            int bytesRead = in.read(buffer, 0, toRead);
+            if (bytesRead == -1) {
+                break;
+            }
+            out.write(buffer, 0, bytesRead);
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    /**
+     * Copies up to {@code length} bytes into the file at {@code position} with
+     * positional writes, so several relays can fill one file concurrently.
+     */
+    public static long relay(InputStream in, FileChannel out, long position, long length) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        long total = 0;
+        while (total < length) {
+            int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, length - total));
+            if (bytesRead == -1) {
+                break;
+            }
+            wrapper.clear().limit(bytesRead);
+            while (wrapper.hasRemaining()) {
+                out.write(wrapper, position + total + wrapper.position());
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,109 @@
+package p2p.utils;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A byte-rate limit that callers reserve from rather than wait on. A
+ * reservation always succeeds and may leave the bucket in debt; the caller
+ * is told how long to pause until that debt is paid off. Because every
+ * reservation lines up behind the debt of the ones before it, transfers
+ * that reserve in similar quanta are served in turn, and one reserving
+ * twice the quantum gets twice the bandwidth.
+ *
+ * A rate of zero means unlimited. The rate may be changed at any time;
+ * reservations made afterwards use the new rate.
+ */
+public final class TokenBucket {
+
+    // Reservations are sized so a limited transfer sends about this often
+    private static final int QUANTA_PER_SECOND = 20;
+    private static final long MIN_QUANTUM = 4 * 1024;
+    private static final long MAX_QUANTUM = 1024 * 1024;
+    // Idle time banks at most this much of a second's worth of bytes
+    private static final int BURST_FRACTION = 10;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile long rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the limit, 0 for unlimited
+     */
+    public TokenBucket(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public long rate() {
+        return rate;
+    }
+
+    public void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("rate must not be negative");
+        }
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            long previous = rate;
+            rate = bytesPerSecond;
+            if (bytesPerSecond == 0) {
+                tokens = 0;
+            } else if (previous == 0) {
+                // A new limit starts with a full burst
+                tokens = burst(bytesPerSecond);
+            } else {
+                // Debt run up under the old rate is forgiven; banked tokens are capped
+                tokens = Math.max(0, Math.min(tokens, burst(bytesPerSecond)));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * How much to reserve at a time so that limited transfers interleave
+     * finely; {@link Long#MAX_VALUE} when unlimited.
+     */
+    public long quantum() {
+        long r = rate;
+        if (r == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, r / QUANTA_PER_SECOND));
+    }
+
+    /**
+     * Takes {@code bytes} from the bucket and returns how many nanoseconds
+     * the caller should pause before sending more, 0 if none.
+     */
+    public long reserve(long bytes) {
+        if (rate == 0) {
+            return 0;
+        }
+        lock.lock();
+        try {
+            long r = rate;
+            if (r == 0) {
+                return 0;
+            }
+            refill(System.nanoTime());
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000d / r);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long now) {
+        long r = rate;
+        if (r > 0) {
+            tokens = Math.min(burst(r), tokens + (now - lastRefill) * (double) r / 1_000_000_000d);
+        }
+        lastRefill = now;
+    }
+
+    private static double burst(long rate) {
+        return Math.max(MIN_QUANTUM, rate / BURST_FRACTION);
+    }
+}
@@ -0,0 +1,169 @@
+package p2p.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Header block of the peer socket protocol: "Name: value" lines terminated by
+ * an empty line, UTF-8 encoded. The client opens with a request block naming
+ * the share and optionally a byte range, the server answers with a response
+ * block followed by exactly Length bytes of the file, starting at Offset.
+ *
+ * <pre>
+ * Code: 51234
+ * Offset: 524288
+ *
+ * Filename: report.pdf
+ * Size: 1048576
+ * Offset: 524288
+ * Length: 524288
+ * ETag: "100000-18b2c1f0a3e"
+ * Modified: 1697500000000
+ *
+ * &lt;file bytes&gt;
+ * </pre>
+ */
+public class TransferHeader {
+
+    public static final String CODE = "Code";
+    public static final String FILENAME = "Filename";
+    public static final String SIZE = "Size";
+    public static final String OFFSET = "Offset";
+    public static final String LENGTH = "Length";
+    public static final String ETAG = "ETag";
+    public static final String MODIFIED = "Modified";
+    public static final String ERROR = "Error";
+    // Request: codings the client can decode. Response: the coding applied to
+    // the body, which then runs until the connection closes; Length stays the
+    // decoded length and Encoded-Length is sent when known in advance.
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String ENCODING = "Encoding";
+    public static final String ENCODED_LENGTH = "Encoded-Length";
+    // SHA-256 of the whole file as "sha-256=<base64>", and the CRC32C of the
+    // chunks that lie entirely inside the range (see ChunkChecksums)
+    public static final String DIGEST = "Digest";
+    public static final String CHUNK_CRC32C = "Chunk-CRC32C";
+    // Share limits, sent when set, so another node can hold a faithful replica
+    public static final String EXPIRES = "Expires";
+    public static final String MAX_DOWNLOADS = "Max-Downloads";
+    // "true" while the file is still uploading: the body follows the uploader
+    // and may pause for as long as it does
+    public static final String LIVE = "Live";
+
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
+
+    private final Map<String, String> fields = new LinkedHashMap<>();
+
+    public TransferHeader set(String name, Object value) {
+        // Values are single lines; anything else would end the header early
+        fields.put(name, String.valueOf(value).replace('\r', ' ').replace('\n', ' '));
+        return this;
+    }
+
+    public String get(String name) {
+        return fields.get(name);
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = fields.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            sb.append(field.getKey()).append(": ").append(field.getValue()).append('\n');
+        }
+        sb.append('\n');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(toBytes());
+    }
+
+    /**
+     * Reads a header block from the stream, leaving the stream positioned at the
+     * first body byte. The stream should be buffered since it is read one byte
+     * at a time.
+     */
+    public static TransferHeader readFrom(InputStream in) throws IOException {
+        TransferHeader header = new TransferHeader();
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int total = 0;
+        int b;
+        while ((b = in.read()) != -1) {
+            if (++total > MAX_HEADER_SIZE) {
+                throw new IOException("Transfer header too large");
+            }
+            if (b == '\r') {
+                continue;
+            }
+            if (b != '\n') {
+                line.write(b);
+                continue;
+            }
+            if (line.size() == 0) {
+                return header;
+            }
+            header.parseLine(line.toString(StandardCharsets.UTF_8));
+            line.reset();
+        }
+        throw new EOFException("Connection closed before end of transfer header");
+    }
+
+    /**
+     * Parses a header block from the bytes between the buffer's position and
+     * limit. Returns null and leaves the buffer untouched if the block is not
+     * complete yet; otherwise advances the position past the empty line.
+     */
+    public static TransferHeader parse(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int lineStart = start;
+        for (int i = start; i < buffer.limit(); i++) {
+            if (buffer.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = i;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+            if (lineEnd == lineStart) {
+                TransferHeader header = new TransferHeader();
+                byte[] block = new byte[lineStart - start];
+                buffer.get(start, block);
+                for (String line : new String(block, StandardCharsets.UTF_8).split("\r?\n")) {
+                    header.parseLine(line);
+                }
+                buffer.position(i + 1);
+                return header;
+            }
+            lineStart = i + 1;
+        }
+        if (buffer.limit() - start > MAX_HEADER_SIZE) {
+            throw new IOException("Transfer header too large");
+        }
+        return null;
+    }
+
+    private void parseLine(String line) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+            fields.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+    }
+}
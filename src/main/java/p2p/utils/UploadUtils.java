@@ -1,15 +1,17 @@
 package p2p.utils;
 
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class UploadUtils {
 
-    public static Integer generateCode(){
-        int DYNAMIC_STARTING_PORT = 49152;
-        int DYNAMIC_ENDING_PORT = 65535;
+    // Ten-digit codes: over a billion of them, so a node holding many
+    // thousands of shares, or only its slice of a cluster's codes, rarely
+    // draws one that is taken. Codes handed out before were five digits
+    // and still resolve.
+    public static final int MIN_CODE = 1_000_000_000;
 
-        Random random = new Random();
-        return random.nextInt(DYNAMIC_ENDING_PORT-DYNAMIC_STARTING_PORT) + DYNAMIC_STARTING_PORT;
+    public static Integer generateCode(){
+        return ThreadLocalRandom.current().nextInt(MIN_CODE, Integer.MAX_VALUE);
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,145 @@
+package p2p.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32C;
+
+/**
+ * Checks bytes {@code [offset, offset + length)} of a file while they are
+ * relayed, so verification needs no extra pass over the data.
+ *
+ * A stream that ends early fails instead of looking like a short file. A
+ * chunk whose CRC32C does not match fails the read that completes it, and the
+ * SHA-256 of a whole-file transfer is checked before the final bytes are
+ * handed out, so a corrupted file is never delivered in full.
+ */
+public class VerifyingInputStream extends FilterInputStream {
+
+    private final long start;
+    private final long end;
+    private final long size;
+    private long position;
+
+    private ChunkChecksums chunks;
+    private final CRC32C crc = new CRC32C();
+
+    private MessageDigest sha256;
+    private byte[] expectedSha256;
+
+    public VerifyingInputStream(InputStream in, long offset, long length, long size) {
+        super(in);
+        this.start = offset;
+        this.position = offset;
+        this.end = offset + length;
+        this.size = size;
+    }
+
+    /**
+     * Checks the chunks that lie entirely inside the stream's range.
+     */
+    public VerifyingInputStream expectChunks(ChunkChecksums chunks) {
+        this.chunks = chunks;
+        return this;
+    }
+
+    /**
+     * Checks the SHA-256 of the whole file; only meaningful when the stream
+     * carries all of it.
+     */
+    public VerifyingInputStream expectSha256(byte[] digest) {
+        if (start == 0 && end == size) {
+            try {
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+            this.expectedSha256 = digest;
+        }
+        return this;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (position >= end) {
+            return -1;
+        }
+        int n = in.read(buffer, offset, (int) Math.min(length, end - position));
+        if (n == -1) {
+            throw new IOException("Stream ended after " + (position - start) + " of " + (end - start) + " bytes");
+        }
+        verify(buffer, offset, n);
+        return n;
+    }
+
+    /**
+     * Reads the source as a body in {@code coding} instead: the encoded bytes
+     * are returned as they are, and this stream's checks apply to the bytes
+     * they decode to. {@code encodedLength} is -1 if unknown.
+     */
+    public InputStream encodedAs(String coding, long encodedLength) {
+        return new EncodedVerifyingInputStream(in, coding, encodedLength, this);
+    }
+
+    // Checks the next n bytes of the range
+    void verify(byte[] buffer, int offset, int n) throws IOException {
+        if (n > end - position) {
+            throw new IOException("More than the expected " + (end - start) + " bytes");
+        }
+        if (chunks != null) {
+            checkChunks(buffer, offset, n);
+        }
+        position += n;
+        if (sha256 != null) {
+            sha256.update(buffer, offset, n);
+            if (position == end && !MessageDigest.isEqual(sha256.digest(), expectedSha256)) {
+                throw new IOException("SHA-256 mismatch");
+            }
+        }
+    }
+
+    long verified() {
+        return position - start;
+    }
+
+    boolean complete() {
+        return position == end;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        throw new IOException("Skipping would bypass verification");
+    }
+
+    private void checkChunks(byte[] buffer, int offset, int n) throws IOException {
+        int chunkSize = chunks.chunkSize();
+        long at = position;
+        for (int done = 0; done < n;) {
+            int chunk = (int) (at / chunkSize);
+            long chunkStart = (long) chunk * chunkSize;
+            long chunkEnd = Math.min(chunkStart + chunkSize, size);
+            int take = (int) Math.min(n - done, chunkEnd - at);
+            boolean tracked = chunkStart >= start && chunk >= chunks.firstChunk()
+                    && chunk < chunks.firstChunk() + chunks.chunkCount();
+            if (tracked) {
+                crc.update(buffer, offset + done, take);
+            }
+            at += take;
+            done += take;
+            if (at == chunkEnd) {
+                if (tracked && (int) crc.getValue() != chunks.crc(chunk)) {
+                    throw new IOException("Checksum mismatch in chunk " + chunk);
+                }
+                crc.reset();
+            }
+        }
+    }
+}
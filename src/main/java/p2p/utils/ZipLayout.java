@@ -0,0 +1,297 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The byte layout of a zip archive whose entries are known in full before
+ * it is written: name, method, both sizes and CRC-32. Nothing is
+ * compressed here; an entry's data is either stored or already deflated,
+ * so the archive length is known up front and any byte range of it can be
+ * produced on its own.
+ *
+ * {@link #write} walks a range and hands the generated headers and the
+ * spans of entry data to a {@link Sink}; the archive itself is never held
+ * anywhere. Zip64 records are added for entries of 4GB or more, offsets
+ * past 4GB and archives of 65535 entries or more.
+ */
+public final class ZipLayout {
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int ZIP64_END = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int END = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int END_SIZE = 22;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+    // Names are UTF-8
+    private static final int FLAGS = 0x0800;
+    private static final int ZIP64_VERSION = 45;
+
+    public static final class Entry {
+
+        public final String name;
+        public final int method;
+        public final long size;
+        public final long compressedSize;
+        public final long crc32;
+        final byte[] nameBytes;
+
+        public Entry(String name, int method, long size, long compressedSize, long crc32) {
+            if (method != STORED && method != DEFLATED) {
+                throw new IllegalArgumentException("Unsupported zip method " + method);
+            }
+            if (method == STORED && size != compressedSize) {
+                throw new IllegalArgumentException("Stored entry sizes differ: " + name);
+            }
+            this.name = name;
+            this.method = method;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.crc32 = crc32;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > MAX_16) {
+                throw new IllegalArgumentException("Zip entry name too long: " + name);
+            }
+        }
+
+        boolean zip64Sizes() {
+            return size >= MAX_32 || compressedSize >= MAX_32;
+        }
+    }
+
+    /**
+     * Receives an archive range in order.
+     */
+    public interface Sink {
+
+        /**
+         * Generated header bytes; the buffer is not used after the call.
+         */
+        void header(ByteBuffer bytes) throws IOException;
+
+        /**
+         * {@code count} bytes of entry {@code entry}'s data from {@code position}.
+         */
+        void data(int entry, long position, long count) throws IOException;
+    }
+
+    private final List<Entry> entries;
+    private final int dosTime;
+    private final int dosDate;
+    private final long[] localOffsets;
+    private final long[] dataOffsets;
+    private final long[] centralOffsets;
+    private final long centralStart;
+    private final long centralEnd;
+    private final boolean zip64End;
+    private final long length;
+
+    /**
+     * @param modifiedMillis the modification time recorded for every entry
+     */
+    public ZipLayout(List<Entry> entries, long modifiedMillis) {
+        this.entries = List.copyOf(entries);
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(modifiedMillis), ZoneOffset.UTC);
+        if (time.getYear() < 1980) {
+            time = LocalDateTime.of(1980, 1, 1, 0, 0);
+        }
+        this.dosTime = (time.getHour() << 11) | (time.getMinute() << 5) | (time.getSecond() / 2);
+        this.dosDate = ((time.getYear() - 1980) << 9) | (time.getMonthValue() << 5) | time.getDayOfMonth();
+
+        int count = this.entries.size();
+        localOffsets = new long[count];
+        dataOffsets = new long[count];
+        centralOffsets = new long[count];
+        long position = 0;
+        for (int i = 0; i < count; i++) {
+            Entry entry = this.entries.get(i);
+            localOffsets[i] = position;
+            dataOffsets[i] = position + localHeaderLength(entry);
+            position = dataOffsets[i] + entry.compressedSize;
+        }
+        centralStart = position;
+        for (int i = 0; i < count; i++) {
+            centralOffsets[i] = position;
+            position += centralHeaderLength(i);
+        }
+        centralEnd = position;
+        zip64End = count >= MAX_16 || centralStart >= MAX_32 || centralEnd - centralStart >= MAX_32;
+        length = centralEnd + (zip64End ? ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE : 0) + END_SIZE;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public List<Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Produces bytes {@code start} (inclusive) to {@code end} (exclusive).
+     */
+    public void write(long start, long end, Sink sink) throws IOException {
+        if (start < 0 || end > length || start > end) {
+            throw new IllegalArgumentException("Range " + start + "-" + end + " outside archive of " + length);
+        }
+        long position = start;
+        int count = entries.size();
+        for (int i = indexAt(localOffsets, position); i < count && position < end && position < centralStart; i++) {
+            if (position < dataOffsets[i]) {
+                position = emit(localHeader(i), localOffsets[i], position, end, sink);
+            }
+            long dataEnd = dataOffsets[i] + entries.get(i).compressedSize;
+            if (position < end && position < dataEnd) {
+                long stop = Math.min(end, dataEnd);
+                sink.data(i, position - dataOffsets[i], stop - position);
+                position = stop;
+            }
+        }
+        for (int i = indexAt(centralOffsets, position); i < count && position < end && position < centralEnd; i++) {
+            position = emit(centralHeader(i), centralOffsets[i], position, end, sink);
+        }
+        if (position < end) {
+            emit(endRecords(), centralEnd, position, end, sink);
+        }
+    }
+
+    private static int indexAt(long[] offsets, long position) {
+        int index = Arrays.binarySearch(offsets, position);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    // Passes on the part of a generated block that falls in the range
+    private static long emit(ByteBuffer block, long blockStart, long position, long end, Sink sink) throws IOException {
+        long blockEnd = blockStart + block.limit();
+        if (position >= blockEnd) {
+            return position;
+        }
+        long stop = Math.min(end, blockEnd);
+        block.position((int) (position - blockStart)).limit((int) (stop - blockStart));
+        sink.header(block);
+        return stop;
+    }
+
+    private static int localHeaderLength(Entry entry) {
+        return LOCAL_HEADER_SIZE + entry.nameBytes.length + (entry.zip64Sizes() ? 20 : 0);
+    }
+
+    private int centralExtraLength(int i) {
+        Entry entry = entries.get(i);
+        int fields = (entry.zip64Sizes() ? 2 : 0) + (localOffsets[i] >= MAX_32 ? 1 : 0);
+        return fields == 0 ? 0 : 4 + 8 * fields;
+    }
+
+    private int centralHeaderLength(int i) {
+        return CENTRAL_HEADER_SIZE + entries.get(i).nameBytes.length + centralExtraLength(i);
+    }
+
+    private int versionNeeded(Entry entry, boolean zip64) {
+        return zip64 ? ZIP64_VERSION : entry.method == DEFLATED ? 20 : 10;
+    }
+
+    private ByteBuffer localHeader(int i) {
+        Entry entry = entries.get(i);
+        boolean zip64 = entry.zip64Sizes();
+        ByteBuffer buffer = ByteBuffer.allocate(localHeaderLength(entry)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(LOCAL_HEADER)
+                .putShort((short) versionNeeded(entry, zip64))
+                .putShort((short) FLAGS)
+                .putShort((short) entry.method)
+                .putShort((short) dosTime)
+                .putShort((short) dosDate)
+                .putInt((int) entry.crc32)
+                .putInt((int) (zip64 ? MAX_32 : entry.compressedSize))
+                .putInt((int) (zip64 ? MAX_32 : entry.size))
+                .putShort((short) entry.nameBytes.length)
+                .putShort((short) (zip64 ? 20 : 0))
+                .put(entry.nameBytes);
+        if (zip64) {
+            buffer.putShort((short) 1).putShort((short) 16).putLong(entry.size).putLong(entry.compressedSize);
+        }
+        return buffer.flip();
+    }
+
+    private ByteBuffer centralHeader(int i) {
+        Entry entry = entries.get(i);
+        boolean zip64Sizes = entry.zip64Sizes();
+        boolean zip64Offset = localOffsets[i] >= MAX_32;
+        int extra = centralExtraLength(i);
+        ByteBuffer buffer = ByteBuffer.allocate(centralHeaderLength(i)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(CENTRAL_HEADER)
+                .putShort((short) ZIP64_VERSION)
+                .putShort((short) versionNeeded(entry, zip64Sizes || zip64Offset))
+                .putShort((short) FLAGS)
+                .putShort((short) entry.method)
+                .putShort((short) dosTime)
+                .putShort((short) dosDate)
+                .putInt((int) entry.crc32)
+                .putInt((int) (zip64Sizes ? MAX_32 : entry.compressedSize))
+                .putInt((int) (zip64Sizes ? MAX_32 : entry.size))
+                .putShort((short) entry.nameBytes.length)
+                .putShort((short) extra)
+                .putShort((short) 0) // comment
+                .putShort((short) 0) // disk
+                .putShort((short) 0) // internal attributes
+                .putInt(0) // external attributes
+                .putInt((int) (zip64Offset ? MAX_32 : localOffsets[i]))
+                .put(entry.nameBytes);
+        if (extra > 0) {
+            buffer.putShort((short) 1).putShort((short) (extra - 4));
+            if (zip64Sizes) {
+                buffer.putLong(entry.size).putLong(entry.compressedSize);
+            }
+            if (zip64Offset) {
+                buffer.putLong(localOffsets[i]);
+            }
+        }
+        return buffer.flip();
+    }
+
+    private ByteBuffer endRecords() {
+        int count = entries.size();
+        long centralSize = centralEnd - centralStart;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (length - centralEnd)).order(ByteOrder.LITTLE_ENDIAN);
+        if (zip64End) {
+            buffer.putInt(ZIP64_END)
+                    .putLong(ZIP64_END_SIZE - 12)
+                    .putShort((short) ZIP64_VERSION)
+                    .putShort((short) ZIP64_VERSION)
+                    .putInt(0) // this disk
+                    .putInt(0) // central directory disk
+                    .putLong(count)
+                    .putLong(count)
+                    .putLong(centralSize)
+                    .putLong(centralStart);
+            buffer.putInt(ZIP64_LOCATOR)
+                    .putInt(0)
+                    .putLong(centralEnd)
+                    .putInt(1);
+        }
+        buffer.putInt(END)
+                .putShort((short) 0)
+                .putShort((short) 0)
+                .putShort((short) Math.min(count, MAX_16))
+                .putShort((short) Math.min(count, MAX_16))
+                .putInt((int) Math.min(centralSize, MAX_32))
+                .putInt((int) Math.min(centralStart, MAX_32))
+                .putShort((short) 0); // comment
+        return buffer.flip();
+    }
+}
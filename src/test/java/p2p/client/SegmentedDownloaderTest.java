@@ -0,0 +1,108 @@
+package p2p.client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.service.FileSharer;
+import p2p.utils.ExecutionMode;
+
+public class SegmentedDownloaderTest {
+
+    @TempDir
+    Path tempDir;
+
+    private FileSharer fileSharer;
+
+    @BeforeEach
+    public void startSharer() throws IOException {
+        fileSharer = new FileSharer(0, ExecutionMode.VIRTUAL);
+        fileSharer.start();
+    }
+
+    @AfterEach
+    public void stopSharer() {
+        fileSharer.shutdown();
+    }
+
+    @Test
+    public void reassemblesFileFromSegments() throws IOException {
+        byte[] content = new byte[1_000_003];
+        new Random(7).nextBytes(content);
+        Path source = tempDir.resolve("source.bin");
+        Files.write(source, content);
+        int code = share(source);
+
+        Path target = tempDir.resolve("target.bin");
+        SegmentedDownloader.Result result = new SegmentedDownloader("localhost", fileSharer.getPort(), 4, 64 * 1024)
+                .download(code, target);
+
+        assertEquals("source.bin", result.filename);
+        assertEquals(content.length, result.size);
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void downloadsEmptyFile() throws IOException {
+        Path source = tempDir.resolve("empty.txt");
+        Files.createFile(source);
+        int code = share(source);
+
+        Path target = tempDir.resolve("target.txt");
+        new SegmentedDownloader("localhost", fileSharer.getPort()).download(code, target);
+
+        assertEquals(0, Files.size(target));
+    }
+
+    /**
+     * Segmented versus single-connection download of the same file. Loopback
+     * has no latency, so the gain here understates what a long link shows;
+     * run with {@code -Dpeerlink.bench=true [-Dpeerlink.bench.size=...]}.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "peerlink.bench", matches = "true")
+    public void compareWithSingleConnection() throws IOException {
+        long size = Long.getLong("peerlink.bench.size", 512L * 1024 * 1024);
+        Path source = tempDir.resolve("bench.bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try (var out = Files.newOutputStream(source)) {
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+        int code = share(source);
+
+        for (int round = 1; round <= 3; round++) {
+            long start = System.nanoTime();
+            try (ShareConnection connection = ShareConnection.open("localhost", fileSharer.getPort(), code, 0, -1);
+                    InputStream in = connection.input();
+                    var out = Files.newOutputStream(tempDir.resolve("single.bin"))) {
+                in.transferTo(out);
+            }
+            double single = (size / (1024.0 * 1024.0)) / ((System.nanoTime() - start) / 1e9);
+
+            SegmentedDownloader.Result result = new SegmentedDownloader("localhost", fileSharer.getPort())
+                    .download(code, tempDir.resolve("segmented.bin"));
+            System.out.printf("round %d: single %.1f MB/s, segmented %.1f MB/s over %d connections (%.2fx)%n",
+                    round, single, result.megabytesPerSecond(), result.connections, result.megabytesPerSecond() / single);
+        }
+    }
+
+    private int share(Path file) {
+        int code = fileSharer.offerFile(file.toString());
+        fileSharer.startFileServer(code);
+        return code;
+    }
+}
@@ -0,0 +1,127 @@
+package p2p.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.client.ShareConnection;
+import p2p.controller.FileController;
+
+/**
+ * Three nodes on loopback in one JVM, as they would run in three.
+ */
+public class ClusterLoopbackTest {
+
+    private static final String BOUNDARY = "clustertestboundary";
+
+    @TempDir
+    Path tempDir;
+
+    private final List<FileController> controllers = new ArrayList<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @AfterEach
+    public void stopNodes() {
+        for (FileController controller : controllers) {
+            controller.stop();
+        }
+    }
+
+    @Test
+    public void anyNodeServesAnyCodeAndReplicasOutliveTheOwner() throws Exception {
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            nodes.add(new ClusterNode("127.0.0.1", freePort(), freePort()));
+        }
+        ClusterRing ring = new ClusterRing(nodes);
+        for (int i = 0; i < 3; i++) {
+            ClusterNode node = nodes.get(i);
+            // Only the second node keeps copies of what it relays
+            Cluster cluster = new Cluster(ring, node, Cluster.Routing.PROXY, i == 1 ? 1 : 0);
+            FileController controller = new FileController(node.httpPort, node.sharePort,
+                    tempDir.resolve("node" + i).toString(), cluster);
+            controller.start();
+            controllers.add(controller);
+        }
+
+        byte[] content = new byte[300_000];
+        new Random(9).nextBytes(content);
+        int code = upload(nodes.get(0), content);
+        assertEquals(nodes.get(0), ring.owner(code));
+
+        for (ClusterNode node : nodes) {
+            HttpResponse<byte[]> response = download(node, code);
+            assertEquals(200, response.statusCode());
+            assertArrayEquals(content, response.body());
+        }
+
+        // The relayed download made the second node fetch a replica in the background;
+        // the owner may only stop once that copy is served from the second node itself
+        assertTrue(awaitLocalShare(nodes.get(1), code, 10_000), "No replica on the second node");
+        controllers.get(0).stop();
+        HttpResponse<byte[]> fromReplica = download(nodes.get(1), code);
+        assertEquals(200, fromReplica.statusCode());
+        assertArrayEquals(content, fromReplica.body());
+        assertTrue(download(nodes.get(2), code).statusCode() >= 500);
+    }
+
+    private int upload(ClusterNode node, byte[] content) throws IOException, InterruptedException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(node.httpUrl("/upload")))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray()))
+                .build(), HttpResponse.BodyHandlers.ofString());
+        Matcher port = Pattern.compile("\"port\": (\\d+)").matcher(response.body());
+        assertTrue(response.statusCode() == 200 && port.find(), response.body());
+        return Integer.parseInt(port.group(1));
+    }
+
+    private HttpResponse<byte[]> download(ClusterNode node, int code) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(URI.create(node.httpUrl("/download/" + code))).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    // Whether the node's own share server answers for the code within the time
+    private static boolean awaitLocalShare(ClusterNode node, int code, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            try (ShareConnection probe = ShareConnection.open(node.host, node.sharePort, code, 0, 0)) {
+                return true;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    return false;
+                }
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
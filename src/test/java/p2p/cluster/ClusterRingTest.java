@@ -0,0 +1,57 @@
+package p2p.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class ClusterRingTest {
+
+    private static final int FIRST_CODE = 49152;
+    private static final int LAST_CODE = 65535;
+
+    private static final ClusterNode A = ClusterNode.parse("10.0.0.1:8080:9000");
+    private static final ClusterNode B = ClusterNode.parse("10.0.0.2:8080:9000");
+    private static final ClusterNode C = ClusterNode.parse("10.0.0.3:8080:9000");
+
+    @Test
+    public void nodesAgreeWhateverTheListOrder() {
+        ClusterRing one = new ClusterRing(List.of(A, B, C));
+        ClusterRing other = new ClusterRing(List.of(C, A, B));
+
+        for (int code = FIRST_CODE; code <= LAST_CODE; code++) {
+            assertEquals(one.owner(code), other.owner(code));
+        }
+    }
+
+    @Test
+    public void spreadsCodesEvenly() {
+        ClusterRing ring = new ClusterRing(List.of(A, B, C));
+        Map<ClusterNode, Integer> counts = new HashMap<>();
+        for (int code = FIRST_CODE; code <= LAST_CODE; code++) {
+            counts.merge(ring.owner(code), 1, Integer::sum);
+        }
+
+        int total = LAST_CODE - FIRST_CODE + 1;
+        for (ClusterNode node : List.of(A, B, C)) {
+            double share = counts.getOrDefault(node, 0) / (double) total;
+            assertTrue(share > 0.25 && share < 0.42, node + " owns " + share);
+        }
+    }
+
+    @Test
+    public void removingANodeOnlyMovesItsCodes() {
+        ClusterRing before = new ClusterRing(List.of(A, B, C));
+        ClusterRing after = new ClusterRing(List.of(A, B));
+
+        for (int code = FIRST_CODE; code <= LAST_CODE; code++) {
+            if (!before.owner(code).equals(C)) {
+                assertEquals(before.owner(code), after.owner(code));
+            }
+        }
+    }
+}
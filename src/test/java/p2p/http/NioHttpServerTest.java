@@ -0,0 +1,173 @@
+package p2p.http;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.controller.FileController;
+
+public class NioHttpServerTest {
+
+    private static final String BOUNDARY = "niotestboundary";
+
+    @TempDir
+    Path tempDir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private NioHttpServer server;
+    private FileController controller;
+
+    @AfterEach
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (controller != null) {
+            controller.stop();
+        }
+    }
+
+    private URI startEchoServer() throws IOException {
+        // Small buffers so bodies span many of them
+        server = new NioHttpServer(2, 4096, 16, 5000, 0, 0);
+        server.bind(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/echo", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            boolean chunked = exchange.getRequestURI().getQuery() != null;
+            exchange.sendResponseHeaders(200, chunked ? 0 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort());
+    }
+
+    @Test
+    public void echoesFixedAndChunkedBodiesOverOneConnection() throws Exception {
+        URI base = startEchoServer();
+        byte[] content = new byte[100_000];
+        new Random(1).nextBytes(content);
+
+        HttpResponse<byte[]> fixed = client.send(HttpRequest.newBuilder(base.resolve("/echo"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(content)).build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, fixed.statusCode());
+        assertArrayEquals(content, fixed.body());
+
+        // A body of unknown length is sent chunked, and answered chunked
+        HttpResponse<byte[]> chunked = client.send(HttpRequest.newBuilder(base.resolve("/echo?chunked"))
+                .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(content))).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, chunked.statusCode());
+        assertEquals("chunked", chunked.headers().firstValue("Transfer-encoding").orElse(""));
+        assertArrayEquals(content, chunked.body());
+
+        assertEquals(404, client.send(HttpRequest.newBuilder(base.resolve("/other")).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode());
+        assertTrue(server.pool().allocatedCount() > 0);
+    }
+
+    @Test
+    public void answersPipelinedRequestsInOrderAndRejectsMalformedOnes() throws Exception {
+        URI base = startEchoServer();
+        String pipelined = "POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nfirst"
+                + "POST /echo HTTP/1.1\r\nHost: x\r\nContent-Length: 6\r\nConnection: close\r\n\r\nsecond";
+        String responses = exchangeRaw(base, pipelined);
+        assertEquals(2, responses.split("HTTP/1.1 200 OK", -1).length - 1, responses);
+        assertTrue(responses.indexOf("first") < responses.indexOf("second"), responses);
+
+        assertTrue(exchangeRaw(base, "GARBAGE\r\n\r\n").startsWith("HTTP/1.1 400 "));
+        assertTrue(exchangeRaw(base, "GET /echo HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n").startsWith("HTTP/1.1 501 "));
+    }
+
+    @Test
+    public void leavesTheBodyOfAFailedHandlerUnterminated() throws Exception {
+        URI base = startEchoServer();
+        server.createContext("/broken", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            exchange.getResponseBody().write("partial".getBytes(StandardCharsets.US_ASCII));
+            exchange.getResponseBody().flush();
+            throw new IOException("Relay failed");
+        });
+        String response = exchangeRaw(base, "GET /broken HTTP/1.1\r\nHost: x\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 200 ") && response.contains("partial"), response);
+        assertFalse(response.endsWith("0\r\n\r\n"), response);
+    }
+
+    @Test
+    public void servesTheFileApiUnchanged() throws Exception {
+        controller = new FileController(0, freePort(), tempDir.toString(), null, HttpFrontEnd.NIO);
+        controller.start();
+        URI base = URI.create("http://127.0.0.1:" + controller.getPort());
+        byte[] content = new byte[300_000];
+        new Random(2).nextBytes(content);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        HttpResponse<String> uploaded = client.send(HttpRequest.newBuilder(base.resolve("/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body.toByteArray())).build(),
+                HttpResponse.BodyHandlers.ofString());
+        Matcher port = Pattern.compile("\"port\": (\\d+)").matcher(uploaded.body());
+        assertTrue(uploaded.statusCode() == 200 && port.find(), uploaded.body());
+
+        HttpResponse<byte[]> whole = client.send(HttpRequest.newBuilder(base.resolve("/download/" + port.group(1))).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, whole.statusCode());
+        assertArrayEquals(content, whole.body());
+
+        HttpResponse<byte[]> range = client.send(HttpRequest.newBuilder(base.resolve("/download/" + port.group(1)))
+                .header("Range", "bytes=1000-1999").build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(206, range.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), range.body());
+
+        // Preflight requests get the CORS headers
+        HttpResponse<Void> preflight = client.send(HttpRequest.newBuilder(base.resolve("/"))
+                .method("OPTIONS", HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
+        assertEquals(204, preflight.statusCode());
+        assertEquals("*", preflight.headers().firstValue("Access-Control-Allow-Origin").orElse(""));
+    }
+
+    // Writes a raw request and reads until the server closes the connection
+    private static String exchangeRaw(URI base, String request) throws IOException {
+        try (Socket socket = new Socket(base.getHost(), base.getPort())) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = socket.getInputStream();
+            return new String(in.readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import p2p.service.AdmissionControl.Direction;
+import p2p.service.AdmissionControl.Reason;
+import p2p.service.AdmissionControl.RejectedException;
+
+public class AdmissionControlTest {
+
+    @Test
+    public void queuesTransfersBeyondTheLimitAndRejectsTheOverflow() throws Exception {
+        AdmissionControl admission = new AdmissionControl(1, 0, 0, 1, 5000);
+        AdmissionControl.Ticket first = admission.admit(Direction.UPLOAD, 10);
+
+        CompletableFuture<AdmissionControl.Ticket> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return admission.admit(Direction.UPLOAD, 10);
+            } catch (RejectedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (admission.queued(Direction.UPLOAD) == 0) {
+            Thread.onSpinWait();
+        }
+        RejectedException overflow = assertThrows(RejectedException.class, () -> admission.admit(Direction.UPLOAD, 10));
+        assertEquals(Reason.BUSY, overflow.reason);
+        // Downloads have a lane of their own
+        admission.admit(Direction.DOWNLOAD, -1).close();
+
+        first.close();
+        queued.get(2, TimeUnit.SECONDS).close();
+        assertEquals(0, admission.active(Direction.UPLOAD));
+        assertEquals(1, admission.rejected(Direction.UPLOAD, Reason.BUSY));
+    }
+
+    @Test
+    public void queuedTransferGivesUpWhenItsWaitRunsOut() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 0, 1, 4, 100);
+        try (AdmissionControl.Ticket running = admission.admit(Direction.DOWNLOAD, -1)) {
+            long started = System.nanoTime();
+            RejectedException e = assertThrows(RejectedException.class, () -> admission.admit(Direction.DOWNLOAD, -1));
+            assertEquals(Reason.BUSY, e.reason);
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(90));
+            assertEquals(0, admission.queued(Direction.DOWNLOAD));
+        }
+    }
+
+    @Test
+    public void limitsUploadBytesInFlight() throws Exception {
+        AdmissionControl admission = new AdmissionControl(0, 100, 0, 0, 0);
+        try (AdmissionControl.Ticket sixty = admission.admit(Direction.UPLOAD, 60)) {
+            admission.admit(Direction.UPLOAD, 40).close();
+            assertThrows(RejectedException.class, () -> admission.admit(Direction.UPLOAD, 41));
+            assertEquals(60, admission.uploadBytesInFlight());
+        }
+        // Larger than the whole budget, but alone
+        admission.admit(Direction.UPLOAD, 500).close();
+        assertEquals(0, admission.uploadBytesInFlight());
+    }
+
+    @Test
+    public void rejectsUploadsThatAreTooLargeOrWouldNotFit() throws Exception {
+        AdmissionControl admission = AdmissionControl.unlimited();
+        admission.setMaxRequestBytes(1000);
+        admission.setFreeSpace(() -> 500);
+
+        assertEquals(Reason.TOO_LARGE,
+                assertThrows(RejectedException.class, () -> admission.admit(Direction.UPLOAD, 1001)).reason);
+        assertEquals(Reason.INSUFFICIENT_STORAGE,
+                assertThrows(RejectedException.class, () -> admission.admit(Direction.UPLOAD, 501)).reason);
+        try (AdmissionControl.Ticket ticket = admission.admit(Direction.UPLOAD, 300)) {
+            // Space already promised to a running upload counts as used
+            assertThrows(RejectedException.class, () -> admission.admit(Direction.UPLOAD, 300));
+        }
+    }
+
+    @Test
+    public void abortsATransferBelowTheMinimumRate() throws Exception {
+        AdmissionControl admission = AdmissionControl.unlimited();
+        admission.setStallGuard(1024, 50);
+        PipedOutputStream client = new PipedOutputStream();
+        PipedInputStream socket = new PipedInputStream(client);
+
+        CompletableFuture<IOException> reader = CompletableFuture.supplyAsync(() -> {
+            try (AdmissionControl.Ticket ticket = admission.admit(Direction.UPLOAD, 1000);
+                    InputStream body = ticket.wrap(socket)) {
+                byte[] buffer = new byte[100];
+                while (body.read(buffer) != -1) {
+                    // A trickle is all that comes
+                }
+                return null;
+            } catch (RejectedException e) {
+                throw new IllegalStateException(e);
+            } catch (IOException e) {
+                return e;
+            }
+        });
+        client.write(new byte[10]);
+        Thread.sleep(100);
+
+        admission.abortStalled();
+        IOException failure = reader.get(2, TimeUnit.SECONDS);
+        assertTrue(failure != null, "stalled read should fail");
+        assertEquals(1, admission.stalledCount());
+        assertEquals(0, admission.active(Direction.UPLOAD));
+    }
+
+    @Test
+    public void leavesExemptTransfersAlone() throws Exception {
+        AdmissionControl admission = AdmissionControl.unlimited();
+        admission.setStallGuard(1024, 50);
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+        try (AdmissionControl.Ticket ticket = admission.admit(Direction.DOWNLOAD, -1);
+                OutputStream body = ticket.wrap(response)) {
+            assertSame(ticket, admission.current());
+            // A download following a live upload waits while the uploader pauses
+            admission.current().exempt();
+            body.write(new byte[10]);
+            Thread.sleep(100);
+            admission.abortStalled();
+            body.write(new byte[10]);
+        }
+        assertEquals(0, admission.stalledCount());
+        assertEquals(20, response.size());
+        assertNull(admission.current());
+    }
+}
@@ -0,0 +1,61 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+public class BandwidthShaperTest {
+
+    @Test
+    public void weightScalesTheQuantum() {
+        BandwidthShaper shaper = new BandwidthShaper(2_000_000, 0, 0, 0, 0);
+        shaper.setShareWeight(2, 3);
+
+        long plain = shaper.sending(1, 1L << 30).quantum();
+        assertEquals(100_000, plain);
+        assertEquals(3 * plain, shaper.sending(2, 1L << 30).quantum());
+        assertEquals(Long.MAX_VALUE, shaper.receiving(1L << 30).quantum());
+    }
+
+    @Test
+    public void smallTransfersSkipTheSharedQueue() throws Exception {
+        BandwidthShaper shaper = new BandwidthShaper(1_000_000, 0, 0, 0, 64 * 1024);
+        BandwidthShaper.Throttle large = shaper.sending(1, 1L << 30);
+        BandwidthShaper.Throttle small = shaper.sending(2, 10_000);
+
+        // Run the send bucket a second into debt
+        Thread sender = new Thread(() -> {
+            try {
+                large.consume(1_100_000);
+            } catch (IOException e) {
+                // Interrupted; nothing to check
+            }
+        });
+        sender.setDaemon(true);
+        sender.start();
+        while (shaper.pausedNanos() == 0) {
+            Thread.onSpinWait();
+        }
+
+        long started = System.nanoTime();
+        small.consume(10_000);
+        assertTrue(System.nanoTime() - started < 200_000_000L, "small transfer waited on the shared limit");
+    }
+
+    @Test
+    public void shareLimitsFollowTheDefaultUnlessOverridden() {
+        BandwidthShaper shaper = new BandwidthShaper(0, 0, 0, 500_000, 0);
+        shaper.sending(1, 100);
+        shaper.setShareRate(2, 100_000);
+
+        shaper.setShareRate(800_000);
+        assertEquals(800_000, shaper.shareRate(1));
+        assertEquals(100_000, shaper.shareRate(2));
+
+        shaper.setShareRate(2, -1);
+        assertEquals(800_000, shaper.shareRate(2));
+    }
+}
@@ -0,0 +1,83 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class BlobStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void storesIdenticalUploadsOnce() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        byte[] content = "same bytes".getBytes(StandardCharsets.UTF_8);
+
+        BlobStore.Blob first = TestBlobs.write(store, content);
+        BlobStore.Blob second = TestBlobs.write(store, content);
+
+        assertEquals(first.digest, second.digest);
+        assertEquals(first.path, second.path);
+        assertEquals(2, store.referenceCount(first.digest));
+        assertArrayEquals(content, Files.readAllBytes(first.path));
+        try (var staged = Files.list(tempDir.resolve("incoming"))) {
+            assertEquals(0, staged.count());
+        }
+    }
+
+    @Test
+    public void deletesBlobWithLastReference() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        byte[] content = "shared twice".getBytes(StandardCharsets.UTF_8);
+
+        BlobStore.Blob first = TestBlobs.write(store, content);
+        BlobStore.Blob second = TestBlobs.write(store, content);
+
+        first.release();
+        assertTrue(Files.exists(second.path));
+        second.release();
+        assertFalse(Files.exists(second.path));
+        assertEquals(0, store.referenceCount(second.digest));
+    }
+
+    @Test
+    public void importedFileMatchesStreamedDigest() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        byte[] content = "chunked upload".getBytes(StandardCharsets.UTF_8);
+
+        Path incoming = store.newIncomingFile();
+        Files.write(incoming, content);
+        BlobStore.Blob imported = store.importFile(incoming);
+        BlobStore.Blob streamed = TestBlobs.write(store, content);
+
+        assertEquals(streamed.digest, imported.digest);
+        assertEquals(content.length, imported.size);
+        assertFalse(Files.exists(incoming));
+    }
+
+    @Test
+    public void restoreRefusesMissingBlobs() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        BlobStore.Blob stored = TestBlobs.write(store, "kept".getBytes(StandardCharsets.UTF_8));
+
+        BlobStore.Blob restored = store.restore(stored.digest, stored.size);
+        assertEquals(stored.path, restored.path);
+        assertEquals(2, store.referenceCount(stored.digest));
+
+        String missing = "ab".repeat(32);
+        assertThrows(FileNotFoundException.class, () -> store.restore(missing, 10));
+        assertEquals(0, store.referenceCount(missing));
+    }
+
+}
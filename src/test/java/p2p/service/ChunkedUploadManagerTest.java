@@ -0,0 +1,187 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ChunkedUploadManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void acceptsChunksConcurrentlyAndOutOfOrder() throws Exception {
+        byte[] content = new byte[100_000];
+        new Random(3).nextBytes(content);
+        int chunkSize = 4096;
+
+        ChunkedUploadManager manager = new ChunkedUploadManager();
+        ChunkedUploadManager.UploadSession session = manager.create(tempDir.resolve("upload.bin"), "upload.bin", content.length, chunkSize);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < session.chunkCount; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(5));
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int index : order) {
+                futures.add(executor.submit(() -> {
+                    int offset = index * chunkSize;
+                    int length = (int) session.chunkLength(index);
+                    session.writeChunk(index, new ByteArrayInputStream(content, offset, length));
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(session.chunkCount, session.receivedCount());
+        manager.complete(session.id);
+        assertArrayEquals(content, Files.readAllBytes(session.file));
+    }
+
+    @Test
+    public void reportsMissingChunksAndRefusesEarlyCompletion() throws IOException {
+        ChunkedUploadManager manager = new ChunkedUploadManager();
+        ChunkedUploadManager.UploadSession session = manager.create(tempDir.resolve("partial.bin"), "partial.bin", 30, 10);
+
+        session.writeChunk(1, new ByteArrayInputStream(new byte[10]));
+
+        assertEquals(List.of(0, 2), session.missingChunks());
+        assertThrows(IllegalStateException.class, () -> manager.complete(session.id));
+        assertThrows(IOException.class, () -> session.writeChunk(2, new ByteArrayInputStream(new byte[3])));
+        assertFalse(session.isReceived(2));
+    }
+
+    @Test
+    public void completesAgainAfterAFailedImport() throws IOException {
+        ChunkedUploadManager manager = new ChunkedUploadManager();
+        ChunkedUploadManager.UploadSession session = manager.create(tempDir.resolve("retry.bin"), "retry.bin", 20, 10);
+        session.writeChunk(0, new ByteArrayInputStream(new byte[10]));
+        session.writeChunk(1, new ByteArrayInputStream(new byte[10]));
+
+        assertEquals(session, manager.complete(session.id));
+        assertNull(manager.complete(session.id));
+        assertEquals(0, manager.openCount());
+
+        // The file could not be stored; the client retries
+        manager.reinstate(session);
+        assertEquals(session, manager.complete(session.id));
+        assertTrue(Files.exists(session.file));
+        assertThrows(IllegalStateException.class, () -> session.writeChunk(0, new ByteArrayInputStream(new byte[10])));
+    }
+
+    @Test
+    public void liveWatermarkStopsAtTheFirstGap() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager();
+        ChunkedUploadManager.UploadSession session = manager.create(tempDir.resolve("live.bin"), "live.bin", 25, 10, true);
+        LiveSource live = session.live();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> reader = executor.submit(() -> live.awaitBeyond(0, 5000));
+            session.writeChunk(1, new ByteArrayInputStream(new byte[10]));
+            assertEquals(0, live.watermark());
+            assertFalse(reader.isDone());
+
+            session.writeChunk(0, new ByteArrayInputStream(new byte[10]));
+            assertEquals(20, reader.get(5, TimeUnit.SECONDS));
+            session.writeChunk(2, new ByteArrayInputStream(new byte[5]));
+            assertEquals(25, live.watermark());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void abortingALiveUploadWakesReaders() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager();
+        ChunkedUploadManager.UploadSession session = manager.create(tempDir.resolve("gone.bin"), "gone.bin", 20, 10, true);
+        LiveSource live = session.live();
+        boolean[] notified = new boolean[1];
+        live.onFailure(() -> notified[0] = true);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Long> reader = executor.submit(() -> live.awaitBeyond(0, 5000));
+            manager.abort(session.id);
+
+            Exception failure = assertThrows(Exception.class, () -> reader.get(5, TimeUnit.SECONDS));
+            assertTrue(failure.getCause() instanceof IOException);
+            assertTrue(notified[0]);
+            assertThrows(IOException.class, live::acquire);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sweepDropsIdleLiveUploadsSoonerAndQuietUploadersFailReaders() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager();
+        ChunkedUploadManager.UploadSession live = manager.create(tempDir.resolve("live.bin"), "live.bin", 20, 10, true);
+        ChunkedUploadManager.UploadSession plain = manager.create(tempDir.resolve("plain.bin"), "plain.bin", 20, 10);
+
+        // Nothing arrives, so the reader gives up long before its stall timeout
+        long started = System.nanoTime();
+        IOException idle = assertThrows(IOException.class, () -> live.live().awaitBeyond(0, 60_000, 100));
+        assertTrue(idle.getMessage().startsWith("Upload idle"), idle.getMessage());
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(30));
+
+        long now = System.currentTimeMillis();
+        manager.expireIdleSessions(now + TimeUnit.MINUTES.toMillis(11));
+        assertNull(manager.get(live.id));
+        assertFalse(Files.exists(live.file));
+        assertThrows(IOException.class, live.live()::acquire);
+        assertNotNull(manager.get(plain.id));
+
+        manager.expireIdleSessions(now + TimeUnit.HOURS.toMillis(2));
+        assertNull(manager.get(plain.id));
+    }
+
+    @Test
+    public void boundsChunkCountAndOpenSessions() throws Exception {
+        ChunkedUploadManager manager = new ChunkedUploadManager(2);
+        // One-byte chunks of a huge file would need a bitmap of hundreds of megabytes
+        assertThrows(IllegalArgumentException.class,
+                () -> manager.create(tempDir.resolve("huge.bin"), "huge.bin", Integer.MAX_VALUE, 1));
+        assertEquals(0, manager.openCount());
+
+        ChunkedUploadManager.UploadSession first = manager.create(tempDir.resolve("a.bin"), "a.bin", 20, 10);
+        assertNotNull(manager.create(tempDir.resolve("b.bin"), "b.bin", 20, 10));
+        assertNull(manager.create(tempDir.resolve("c.bin"), "c.bin", 20, 10));
+        assertFalse(Files.exists(tempDir.resolve("c.bin")));
+
+        manager.abort(first.id);
+        assertNotNull(manager.create(tempDir.resolve("c.bin"), "c.bin", 20, 10));
+        assertEquals(2, manager.openCount());
+        manager.shutdown();
+        assertEquals(0, manager.openCount());
+    }
+}
@@ -0,0 +1,94 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Send-throughput comparison of the transferTo sender against the buffered
+ * stream fallback over loopback. Skipped by default because it writes a 1 GB
+ * file; run with
+ *
+ * <pre>
+ * mvn test -Dtest=FileSenderThroughputTest -Dpeerlink.bench=true [-Dpeerlink.bench.size=1073741824]
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "peerlink.bench", matches = "true")
+public class FileSenderThroughputTest {
+
+    private static final int ROUNDS = 3;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void compareSendThroughput() throws Exception {
+        long size = Long.getLong("peerlink.bench.size", 1024L * 1024 * 1024);
+        Path file = tempDir.resolve("bench.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31);
+            }
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+
+        // Warm the page cache and the JIT before measuring either path
+        send(file, true);
+        send(file, false);
+
+        for (int round = 1; round <= ROUNDS; round++) {
+            double zeroCopy = send(file, true);
+            double streams = send(file, false);
+            System.out.printf("round %d: transferTo %.1f MB/s, streams %.1f MB/s (%.2fx)%n",
+                    round, zeroCopy, streams, zeroCopy / streams);
+        }
+        Files.delete(file);
+    }
+
+    private static double send(Path file, boolean zeroCopy) throws Exception {
+        long size = Files.size(file);
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            Thread sender = new Thread(() -> {
+                try {
+                    SocketChannel client = server.accept();
+                    new FileSharer.FileSenderHandler(client.socket(), file.toString(), "bench.bin", 0, -1, zeroCopy).run();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+
+            long start = System.nanoTime();
+            sender.start();
+            long received = 0;
+            try (SocketChannel receiver = SocketChannel.open(server.getLocalAddress())) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+                int n;
+                while ((n = receiver.read(buffer)) != -1) {
+                    received += n;
+                    buffer.clear();
+                }
+            }
+            sender.join();
+            long elapsed = System.nanoTime() - start;
+
+            // Header bytes come on top of the file content
+            assertTrue(received > size);
+            return (size / (1024.0 * 1024.0)) / (elapsed / 1e9);
+        }
+    }
+}
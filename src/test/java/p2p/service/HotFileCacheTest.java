@@ -0,0 +1,96 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class HotFileCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void servesRepeatedRequestsFromMemory() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share share = share(registry, store, 1000, 1);
+        HotFileCache cache = new HotFileCache(10_000, 4_000);
+
+        HotFileCache.Entry first = cache.get(share);
+        HotFileCache.Entry second = cache.get(share);
+
+        assertNotNull(first);
+        assertEquals(1000, second.size);
+        ByteBuffer content = second.content();
+        assertEquals(1000, content.remaining());
+        assertEquals(1, content.get(0));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+        assertEquals(1000, cache.usedBytes());
+    }
+
+    @Test
+    public void skipsFilesAboveTheEntryLimit() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        HotFileCache cache = new HotFileCache(10_000, 500);
+
+        assertNull(cache.get(share(registry, store, 1000, 1)));
+        assertEquals(0, cache.misses());
+    }
+
+    @Test
+    public void admitsOnlyFilesMorePopularThanTheVictim() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share popular = share(registry, store, 600, 1);
+        ShareRegistry.Share oneOff = share(registry, store, 600, 2);
+        ShareRegistry.Share rising = share(registry, store, 600, 3);
+        HotFileCache cache = new HotFileCache(1000, 1000);
+
+        for (int i = 0; i < 5; i++) {
+            cache.get(popular);
+        }
+        // Requested once: not worth pushing the popular file out
+        cache.get(oneOff);
+        assertEquals(1, cache.size());
+        assertEquals(4, cache.hits());
+
+        for (int i = 0; i < 8; i++) {
+            cache.get(rising);
+        }
+        // Now requested more often than the resident entry, so it replaces it
+        assertEquals(1, cache.size());
+        assertTrue(cache.evictions() >= 1);
+        assertTrue(cache.usedBytes() <= 1000);
+    }
+
+    @Test
+    public void invalidateFreesTheBudget() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share share = share(registry, store, 1000, 1);
+        HotFileCache cache = new HotFileCache(10_000, 4_000);
+
+        cache.get(share);
+        cache.invalidate(share.code);
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.usedBytes());
+    }
+
+    private static ShareRegistry.Share share(ShareRegistry registry, BlobStore store, int size, int fill) throws Exception {
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) fill);
+        BlobStore.Blob blob = TestBlobs.write(store, content);
+        return registry.reserve(blob.path.toString(), "file-" + fill, blob, ShareLimits.UNLIMITED);
+    }
+}
@@ -0,0 +1,141 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Many clients downloading one large file at once: the buffered stream
+ * sender, the transferTo sender and the shared mapping compared on aggregate
+ * throughput and peak heap use. Skipped by default because it writes a 4 GB
+ * file; run with
+ *
+ * <pre>
+ * mvn test -Dtest=MappedSenderBenchmarkTest -Dpeerlink.bench=true [-Dpeerlink.bench.size=4294967296] [-Dpeerlink.bench.clients=100]
+ * </pre>
+ */
+@EnabledIfSystemProperty(named = "peerlink.bench", matches = "true")
+public class MappedSenderBenchmarkTest {
+
+    private enum Mode { STREAMS, TRANSFER_TO, MAPPED }
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void compareConcurrentSenders() throws Exception {
+        long size = Long.getLong("peerlink.bench.size", 4L * 1024 * 1024 * 1024);
+        int clients = Integer.getInteger("peerlink.bench.clients", 100);
+        Path file = tempDir.resolve("bench.bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31);
+            }
+            for (long written = 0; written < size; written += block.length) {
+                raf.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+
+        // Warm the page cache and the JIT
+        run(file, Mode.TRANSFER_TO, Math.min(clients, 4));
+
+        for (Mode mode : Mode.values()) {
+            run(file, mode, clients);
+        }
+        Files.delete(file);
+    }
+
+    private static void run(Path file, Mode mode, int clients) throws Exception {
+        long size = Files.size(file);
+        MappedShareFile mapping = new MappedShareFile(file);
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long baseline = memory.getHeapMemoryUsage().getUsed();
+        AtomicLong peak = new AtomicLong(baseline);
+        AtomicBoolean sampling = new AtomicBoolean(true);
+        Thread sampler = new Thread(() -> {
+            while (sampling.get()) {
+                peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.start();
+
+        long received;
+        long start = System.nanoTime();
+        try (ServerSocketChannel server = ServerSocketChannel.open();
+                ExecutorService senders = Executors.newVirtualThreadPerTaskExecutor();
+                ExecutorService receivers = Executors.newVirtualThreadPerTaskExecutor()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0), clients);
+            List<Future<Long>> downloads = new ArrayList<>();
+            for (int i = 0; i < clients; i++) {
+                downloads.add(receivers.submit(() -> drain(server)));
+                SocketChannel client = server.accept();
+                senders.submit(handler(client, file, mode, mapping));
+            }
+            received = 0;
+            for (Future<Long> download : downloads) {
+                received += download.get();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        sampling.set(false);
+        sampler.join();
+        mapping.close();
+
+        // Each client gets a small header on top of the file
+        assertEquals(clients, received / size);
+        double total = (size / (1024.0 * 1024.0)) * clients;
+        System.out.printf("%-11s %d clients: %.1f MB/s aggregate, peak heap +%d MB%n",
+                mode, clients, total / (elapsed / 1e9), (peak.get() - baseline) / (1024 * 1024));
+    }
+
+    private static Runnable handler(SocketChannel client, Path file, Mode mode, MappedShareFile mapping) {
+        switch (mode) {
+            case STREAMS:
+                return new FileSharer.FileSenderHandler(client.socket(), file.toString(), "bench.bin", 0, -1, false);
+            case TRANSFER_TO:
+                return new FileSharer.FileSenderHandler(client.socket(), file.toString(), "bench.bin", 0, -1, true);
+            default:
+                return new FileSharer.FileSenderHandler(client.socket(), file.toString(), "bench.bin", 0, -1, mapping);
+        }
+    }
+
+    private static long drain(ServerSocketChannel server) throws IOException {
+        long received = 0;
+        try (SocketChannel receiver = SocketChannel.open(server.getLocalAddress())) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            int n;
+            while ((n = receiver.read(buffer)) != -1) {
+                received += n;
+                buffer.clear();
+            }
+        }
+        return received;
+    }
+}
@@ -0,0 +1,52 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedShareFileTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void readsAcrossSegmentBoundaries() throws Exception {
+        byte[] content = new byte[10_000];
+        new Random(13).nextBytes(content);
+        Path file = tempDir.resolve("mapped.bin");
+        Files.write(file, content);
+        MappedShareFile mapped = new MappedShareFile(file, 4096);
+
+        assertArrayEquals(content, read(mapped, 0, content.length));
+        assertArrayEquals(Arrays.copyOfRange(content, 4000, 8300), read(mapped, 4000, 4300));
+        assertArrayEquals(Arrays.copyOfRange(content, 8192, 10_000), read(mapped, 8192, 1808));
+    }
+
+    @Test
+    public void refusesToSendAfterClose() throws Exception {
+        Path file = tempDir.resolve("closed.bin");
+        Files.write(file, new byte[100]);
+        MappedShareFile mapped = new MappedShareFile(file);
+
+        assertEquals(100, read(mapped, 0, 100).length);
+        mapped.close();
+        assertThrows(IOException.class, () -> read(mapped, 0, 100));
+    }
+
+    private static byte[] read(MappedShareFile mapped, long position, long count) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(count, mapped.writeTo(Channels.newChannel(out), position, count));
+        return out.toByteArray();
+    }
+}
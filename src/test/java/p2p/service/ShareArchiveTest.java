@@ -0,0 +1,108 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.ZipLayout;
+
+public class ShareArchiveTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void storesFirstThenCompressesTextAndSurvivesARestart() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        byte[] text = "line of a log file\n".repeat(2000).getBytes(StandardCharsets.UTF_8);
+        byte[] image = new byte[40_000];
+        new Random(5).nextBytes(image);
+        List<BlobStore.Blob> blobs = List.of(TestBlobs.write(store, text), TestBlobs.write(store, image),
+                TestBlobs.write(store, text));
+
+        ShareArchive stored = ShareArchive.create(store, List.of("trip/notes.txt", "trip/photo.png", "trip/notes.txt"), blobs);
+        assertEquals(3, stored.entryCount());
+        // Nothing is compressed while the upload request waits
+        for (ZipLayout.Entry entry : stored.layout().entries()) {
+            assertEquals(ZipLayout.STORED, entry.method);
+        }
+        assertNull(blobs.get(0).gzipVariant());
+        assertTrue(stored.hasCompressibleMembers());
+        assertUnzipsTo(render(stored), text, image);
+
+        ShareArchive archive = stored.compressed();
+        List<ZipLayout.Entry> entries = archive.layout().entries();
+        assertEquals(ZipLayout.DEFLATED, entries.get(0).method);
+        assertEquals(ZipLayout.STORED, entries.get(1).method);
+        assertEquals("trip/notes (2).txt", entries.get(2).name);
+        assertTrue(archive.size() < stored.size());
+        assertFalse(archive.hasCompressibleMembers());
+        assertEquals(4, store.referenceCount(blobs.get(0).digest));
+        stored.release();
+        assertEquals(2, store.referenceCount(blobs.get(0).digest));
+
+        byte[] bytes = render(archive);
+        assertEquals(archive.size(), bytes.length);
+        assertUnzipsTo(bytes, text, image);
+
+        // A fresh store, as after a restart, rebuilds the same bytes from the manifest
+        BlobStore reopened = new BlobStore(tempDir);
+        ShareArchive restored = ShareArchive.restore(reopened, archive.manifest.digest);
+        assertArrayEquals(bytes, render(restored));
+        assertEquals(2, reopened.referenceCount(blobs.get(0).digest));
+
+        restored.release();
+        assertEquals(0, reopened.referenceCount(blobs.get(0).digest));
+    }
+
+    private static void assertUnzipsTo(byte[] bytes, byte[] text, byte[] image) throws IOException {
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(bytes))) {
+            ZipEntry entry = zip.getNextEntry();
+            assertEquals("trip/notes.txt", entry.getName());
+            assertArrayEquals(text, zip.readAllBytes());
+            zip.getNextEntry();
+            assertArrayEquals(image, zip.readAllBytes());
+            zip.getNextEntry();
+            assertArrayEquals(text, zip.readAllBytes());
+            assertNull(zip.getNextEntry());
+        }
+    }
+
+    private static byte[] render(ShareArchive archive) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        archive.layout().write(0, archive.size(), new ZipLayout.Sink() {
+            @Override
+            public void header(ByteBuffer bytes) {
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            }
+
+            @Override
+            public void data(int entry, long position, long count) throws IOException {
+                try (FileChannel source = FileChannel.open(archive.source(entry), StandardOpenOption.READ)) {
+                    ByteBuffer buffer = ByteBuffer.allocate((int) count);
+                    source.read(buffer, archive.sourceOffset(entry) + position);
+                    out.write(buffer.array(), 0, buffer.position());
+                }
+            }
+        });
+        return out.toByteArray();
+    }
+}
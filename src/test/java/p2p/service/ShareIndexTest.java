@@ -0,0 +1,145 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.ExecutionMode;
+
+public class ShareIndexTest {
+
+    private static final String DIGEST = "0123456789abcdef".repeat(4);
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void changesSurviveReopening() throws Exception {
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            index.put(entry(1, "a.txt"));
+            index.put(entry(2, "b.txt"));
+            index.put(entry(3, "ç.txt"));
+            index.remove(2);
+        }
+
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            Map<Integer, ShareIndex.Entry> entries = byCode(index);
+            assertEquals(2, entries.size());
+            assertEquals("ç.txt", entries.get(3).originalFilename);
+            assertEquals(DIGEST, entries.get(1).digest);
+            assertEquals(1000, entries.get(1).size);
+        }
+    }
+
+    @Test
+    public void tornTailIsCutOff() throws Exception {
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            index.put(entry(1, "a.txt"));
+        }
+        Path log = tempDir.resolve(ShareIndex.LOG_FILE);
+        long intact = Files.size(log);
+        // A record header promising more bytes than a crash left behind
+        Files.write(log, new byte[] { 0, 0, 0, 60, 1, 0, 0 }, StandardOpenOption.APPEND);
+
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            assertEquals(1, index.entries().size());
+            assertEquals(intact, Files.size(log));
+            index.put(entry(2, "b.txt"));
+        }
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            assertEquals(2, index.entries().size());
+        }
+    }
+
+    @Test
+    public void compactsIntoASnapshot() throws Exception {
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            // Rewriting the same few codes grows the log far past the live entries
+            for (int i = 0; i < 20_000; i++) {
+                index.put(entry(i % 10, "file-" + i));
+            }
+            index.flush();
+            assertTrue(index.commitCount() < 20_000, "puts were not grouped");
+        }
+        assertTrue(Files.exists(tempDir.resolve(ShareIndex.SNAPSHOT_FILE)));
+        assertTrue(Files.size(tempDir.resolve(ShareIndex.LOG_FILE)) < 1024 * 1024);
+
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            Map<Integer, ShareIndex.Entry> entries = byCode(index);
+            assertEquals(10, entries.size());
+            assertEquals("file-19999", entries.get(9).originalFilename);
+        }
+    }
+
+    @Test
+    public void refusesASecondWriter() throws Exception {
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            assertThrows(IOException.class, () -> ShareIndex.open(tempDir));
+        }
+    }
+
+    @Test
+    public void restoreDropsSharesWhoseBlobIsGone() throws Exception {
+        BlobStore store = new BlobStore(tempDir.resolve("blobs"));
+        String kept = TestBlobs.write(store, new byte[1000]).digest;
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            index.put(new ShareIndex.Entry(1, kept, "kept.bin", 1000, Long.MAX_VALUE, 0));
+            index.put(entry(2, "gone.bin"));
+        }
+
+        FileSharer sharer = new FileSharer(0, ExecutionMode.PLATFORM);
+        sharer.restore(ShareIndex.open(tempDir), store);
+        assertTrue(sharer.hasShare(1));
+        assertFalse(sharer.hasShare(2));
+        sharer.shutdown();
+
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            assertEquals(Set.of(1), byCode(index).keySet());
+        }
+    }
+
+    @Test
+    public void restoreDeletesBlobsNoShareHolds() throws Exception {
+        BlobStore store = new BlobStore(tempDir.resolve("blobs"));
+        BlobStore.Blob kept = TestBlobs.write(store, new byte[1000]);
+        BlobStore.Blob expired = TestBlobs.write(store, new byte[2000]);
+        Path leftover = store.newIncomingFile();
+        Files.write(leftover, new byte[10]);
+        try (ShareIndex index = ShareIndex.open(tempDir)) {
+            index.put(new ShareIndex.Entry(1, kept.digest, "kept.bin", 1000, Long.MAX_VALUE, 0));
+            index.put(new ShareIndex.Entry(2, expired.digest, "old.bin", 2000, 1, 0));
+        }
+
+        // A fresh store, as after a restart
+        BlobStore reopened = new BlobStore(tempDir.resolve("blobs"));
+        FileSharer sharer = new FileSharer(0, ExecutionMode.PLATFORM);
+        sharer.restore(ShareIndex.open(tempDir), reopened);
+        sharer.shutdown();
+
+        assertTrue(Files.exists(kept.path));
+        assertFalse(Files.exists(expired.path));
+        assertFalse(Files.exists(expired.path.resolveSibling(expired.digest + ".crc")));
+        assertFalse(Files.exists(leftover));
+    }
+
+    private static ShareIndex.Entry entry(int code, String name) {
+        return new ShareIndex.Entry(code, DIGEST, name, 1000, Long.MAX_VALUE, 0);
+    }
+
+    private static Map<Integer, ShareIndex.Entry> byCode(ShareIndex index) {
+        return index.entries().stream().collect(Collectors.toMap(entry -> entry.code, Function.identity()));
+    }
+}
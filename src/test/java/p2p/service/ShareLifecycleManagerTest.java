@@ -0,0 +1,142 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ShareLifecycleManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void retiresExpiredShares() throws Exception {
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share expiring = registry.reserve("/tmp/a", "a", null, new ShareLimits(1, 0));
+        ShareRegistry.Share lasting = registry.reserve("/tmp/b", "b", null, ShareLimits.UNLIMITED);
+        ShareLifecycleManager lifecycle = new ShareLifecycleManager(registry, registry::remove, EvictionPolicy.LRU, 0, 1000);
+        int[] tasks = new int[1];
+        lifecycle.onSweep(() -> tasks[0]++);
+
+        Thread.sleep(5);
+        lifecycle.sweep();
+
+        assertNull(registry.get(expiring.code));
+        assertNotNull(registry.get(lasting.code));
+        assertEquals(1, lifecycle.expiredCount());
+        assertEquals(1, tasks[0]);
+    }
+
+    @Test
+    public void downloadQuotaIsEnforcedAndRetiredAfterGrace() {
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share share = registry.reserve("/tmp/a", "a", null, new ShareLimits(0, 2));
+        ShareLifecycleManager lifecycle = new ShareLifecycleManager(registry, registry::remove, EvictionPolicy.LRU, 0, 1000);
+
+        assertTrue(share.usage.tryStartDownload(share.maxDownloads));
+        assertTrue(share.usage.tryStartDownload(share.maxDownloads));
+        assertFalse(share.usage.tryStartDownload(share.maxDownloads));
+        assertTrue(share.isExhausted());
+
+        // Recently used: the last download may still be fetching ranges
+        share.usage.touch(System.currentTimeMillis());
+        lifecycle.sweep();
+        assertNotNull(registry.get(share.code));
+
+        share.usage.touch(System.currentTimeMillis() - ShareLifecycleManager.EXHAUSTED_GRACE_MILLIS);
+        lifecycle.sweep();
+        assertNull(registry.get(share.code));
+        assertEquals(1, lifecycle.exhaustedCount());
+    }
+
+    @Test
+    public void lruEvictsLeastRecentlyUsedUntilWithinBudget() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share oldest = reserve(registry, store, 100, 1000);
+        ShareRegistry.Share middle = reserve(registry, store, 100, 2000);
+        ShareRegistry.Share newest = reserve(registry, store, 100, 3000);
+        ShareLifecycleManager lifecycle = new ShareLifecycleManager(registry, registry::remove, EvictionPolicy.LRU, 250, 1000);
+
+        lifecycle.sweep();
+
+        assertNull(registry.get(oldest.code));
+        assertNotNull(registry.get(middle.code));
+        assertNotNull(registry.get(newest.code));
+        assertEquals(1, lifecycle.evictedCount());
+    }
+
+    @Test
+    public void lfuEvictsLeastDownloadedFirst() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share popular = reserve(registry, store, 100, 1000);
+        ShareRegistry.Share unpopular = reserve(registry, store, 100, 3000);
+        for (int i = 0; i < 5; i++) {
+            popular.usage.tryStartDownload(0);
+        }
+        ShareLifecycleManager lifecycle = new ShareLifecycleManager(registry, registry::remove, EvictionPolicy.LFU, 150, 1000);
+
+        lifecycle.sweep();
+
+        assertNotNull(registry.get(popular.code));
+        assertNull(registry.get(unpopular.code));
+    }
+
+    @Test
+    public void deduplicatedBlobCountsOnceAgainstBudget() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        BlobStore.Blob blob = TestBlobs.write(store, new byte[100]);
+        ShareRegistry.Share first = registry.reserve(blob.path.toString(), "a", blob, ShareLimits.UNLIMITED);
+        ShareRegistry.Share second = registry.reserve(blob.path.toString(), "b", blob, ShareLimits.UNLIMITED);
+        ShareLifecycleManager lifecycle = new ShareLifecycleManager(registry, registry::remove, EvictionPolicy.LRU, 150, 1000);
+
+        lifecycle.sweep();
+
+        assertNotNull(registry.get(first.code));
+        assertNotNull(registry.get(second.code));
+    }
+
+    @Test
+    public void archiveCountsItsMembersOnceAgainstBudget() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        BlobStore.Blob shared = TestBlobs.write(store, new byte[1000]);
+        BlobStore.Blob other = TestBlobs.write(store, new byte[] { 1 });
+        ShareRegistry.Share alone = registry.reserve(shared.path.toString(), "a", shared.retain(), ShareLimits.UNLIMITED);
+        alone.usage.touch(1000);
+        ShareArchive archive = ShareArchive.create(store, List.of("a", "b"), List.of(shared, other));
+        ShareRegistry.Share bundle = registry.reserveArchive(archive, "both.zip", ShareLimits.UNLIMITED);
+        bundle.usage.touch(2000);
+        // The member shared on its own is on disk once, so both fit
+        long budget = 1000 + 1 + archive.manifest.size;
+        ShareLifecycleManager lifecycle = new ShareLifecycleManager(registry, registry::remove, EvictionPolicy.LRU, budget, 1000);
+
+        lifecycle.sweep();
+
+        assertNotNull(registry.get(alone.code));
+        assertNotNull(registry.get(bundle.code));
+        assertEquals(0, lifecycle.evictedCount());
+    }
+
+    private static ShareRegistry.Share reserve(ShareRegistry registry, BlobStore store, int size, long lastAccess) throws Exception {
+        byte[] content = new byte[size];
+        // Distinct content per share so nothing is deduplicated
+        content[0] = (byte) lastAccess;
+        content[1] = (byte) (lastAccess >> 8);
+        BlobStore.Blob blob = TestBlobs.write(store, content);
+        ShareRegistry.Share share = registry.reserve(blob.path.toString(), "file", blob, ShareLimits.UNLIMITED);
+        share.usage.touch(lastAccess);
+        return share;
+    }
+
+}
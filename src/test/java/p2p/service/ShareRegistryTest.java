@@ -0,0 +1,142 @@
+package p2p.service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.ExecutionMode;
+import p2p.utils.UploadUtils;
+
+public class ShareRegistryTest {
+
+    private static final int THREADS = 16;
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void concurrentReservationsNeverShareACode() throws Exception {
+        ShareRegistry registry = new ShareRegistry();
+        Set<Integer> codes = ConcurrentHashMap.newKeySet();
+        int perThread = 500;
+
+        runConcurrently(() -> {
+            for (int i = 0; i < perThread; i++) {
+                ShareRegistry.Share share = registry.reserve("/tmp/file", "file", null, ShareLimits.UNLIMITED);
+                assertTrue(codes.add(share.code), "Code handed out twice: " + share.code);
+            }
+        });
+
+        assertEquals(THREADS * perThread, codes.size());
+        assertEquals(THREADS * perThread, registry.size());
+    }
+
+    @Test
+    public void holdsTensOfThousandsOfSharesOnOneNodeOfACluster() {
+        ShareRegistry registry = new ShareRegistry();
+        // As on one of three cluster nodes, which only keeps the codes it owns
+        registry.setCodeFilter(code -> Math.floorMod(code, 3) == 0);
+        int count = 60_000;
+        for (int i = 0; i < count; i++) {
+            ShareRegistry.Share share = registry.reserve("/tmp/file", "file", null, ShareLimits.UNLIMITED);
+            assertTrue(share.code >= UploadUtils.MIN_CODE && share.code % 3 == 0, "Unexpected code " + share.code);
+        }
+        assertEquals(count, registry.size());
+    }
+
+    @Test
+    public void onlyActivatedSharesAreServed() {
+        ShareRegistry registry = new ShareRegistry();
+        ShareRegistry.Share share = registry.reserve("/tmp/file", "file", null, ShareLimits.UNLIMITED);
+
+        assertNull(registry.getActive(share.code));
+        assertTrue(registry.activate(share.code).active);
+        assertNotNull(registry.getActive(share.code));
+        assertNotNull(registry.remove(share.code));
+        assertNull(registry.remove(share.code));
+        assertNull(registry.activate(share.code));
+    }
+
+    @Test
+    public void restoredSharesWakeOnFirstLookup() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        ShareRegistry registry = new ShareRegistry();
+        String digest = TestBlobs.write(store, "0123456789".getBytes(StandardCharsets.UTF_8)).digest;
+        registry.restore(4242, "old.txt", store.restore(digest, 10), Long.MAX_VALUE, 0);
+
+        assertEquals(0, registry.size());
+        assertEquals(2, store.referenceCount(digest));
+        ShareRegistry.Share share = registry.getActive(4242);
+        assertNotNull(share);
+        assertEquals("old.txt", share.originalFilename);
+        assertEquals(1, registry.size());
+        assertEquals(0, registry.dormantCount());
+        assertTrue(registry.remove(4242) == share);
+    }
+
+    @Test
+    public void offerStartStopFromManyThreadsReleasesEachBlobOnce() throws Exception {
+        BlobStore store = new BlobStore(tempDir);
+        byte[] content = "stress".getBytes(StandardCharsets.UTF_8);
+        BlobStore.Blob pinned = TestBlobs.write(store, content);
+
+        FileSharer sharer = new FileSharer(0, ExecutionMode.PLATFORM);
+        try {
+            runConcurrently(() -> {
+                for (int i = 0; i < 200; i++) {
+                    int code = sharer.offerFile(TestBlobs.write(store, content), "stress.txt");
+                    sharer.startFileServer(code);
+                    // Stopping twice must not release the blob twice
+                    sharer.stopFileServer(code);
+                    sharer.stopFileServer(code);
+                }
+            });
+        } finally {
+            sharer.shutdown();
+        }
+
+        assertEquals(1, store.referenceCount(pinned.digest));
+        assertTrue(Files.exists(pinned.path));
+    }
+
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static void runConcurrently(Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                futures.add(executor.submit(() -> {
+                    barrier.await();
+                    task.run();
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
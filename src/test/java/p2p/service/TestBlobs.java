@@ -0,0 +1,21 @@
+package p2p.service;
+
+import java.io.IOException;
+
+/**
+ * Stores test content in a {@link BlobStore}.
+ */
+final class TestBlobs {
+
+    private TestBlobs() {
+    }
+
+    /**
+     * Writes {@code content} as a new upload; the blob carries one reference.
+     */
+    static BlobStore.Blob write(BlobStore store, byte[] content) throws IOException {
+        BlobStore.BlobWriter writer = store.newWriter();
+        writer.write(content, 0, content.length);
+        return writer.commit();
+    }
+}
@@ -0,0 +1,59 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BytePatternTest {
+
+    @Test
+    public void findsSameMatchesAsBruteForce() {
+        Random random = new Random(5);
+        for (int round = 0; round < 2000; round++) {
+            // A tiny alphabet makes near-misses and overlapping matches common
+            byte[] pattern = randomBytes(random, 1 + random.nextInt(6), 3);
+            byte[] data = randomBytes(random, random.nextInt(200), 3);
+            int from = data.length == 0 ? 0 : random.nextInt(data.length);
+            int to = from + random.nextInt(data.length - from + 1);
+
+            assertEquals(bruteForce(data, from, to, pattern), new BytePattern(pattern).indexOf(data, from, to));
+        }
+    }
+
+    @Test
+    public void holdsBackOnlyATailThatCouldStartAMatch() {
+        BytePattern delimiter = new BytePattern("\r\n--abc".getBytes(StandardCharsets.US_ASCII));
+        byte[] data = "xxxx\r\n--ab".getBytes(StandardCharsets.US_ASCII);
+
+        assertEquals(4, delimiter.partialMatchStart(data, 0, data.length));
+        assertEquals(4, delimiter.partialMatchStart(data, 0, 6));
+        assertEquals(4, delimiter.partialMatchStart(data, 0, 4));
+        // "\r\n-" followed by 'x' can never become a match
+        byte[] dead = "\r\n-x".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(dead.length, delimiter.partialMatchStart(dead, 0, dead.length));
+    }
+
+    private static int bruteForce(byte[] data, int from, int to, byte[] pattern) {
+        for (int i = from; i + pattern.length <= to; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] randomBytes(Random random, int length, int alphabet) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) ('a' + random.nextInt(alphabet));
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,46 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class ByteRangeTest {
+
+    @Test
+    public void resolvesClosedOpenAndSuffixRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=0-99, 900-, -50", 1000);
+
+        assertEquals(3, ranges.size());
+        assertEquals(0, ranges.get(0).first);
+        assertEquals(99, ranges.get(0).last);
+        assertEquals(900, ranges.get(1).first);
+        assertEquals(999, ranges.get(1).last);
+        assertEquals(950, ranges.get(2).first);
+        assertEquals(50, ranges.get(2).length());
+    }
+
+    @Test
+    public void clampsLastByteToSize() {
+        ByteRange range = ByteRange.parse("bytes=500-5000", 1000).get(0);
+
+        assertEquals(999, range.last);
+        assertEquals("bytes 500-999/1000", range.contentRange(1000));
+    }
+
+    @Test
+    public void returnsEmptyListWhenNothingIsSatisfiable() {
+        assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    }
+
+    @Test
+    public void ignoresInvalidHeaders() {
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=5-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc", 1000));
+    }
+}
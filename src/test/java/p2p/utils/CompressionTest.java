@@ -0,0 +1,50 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public class CompressionTest {
+
+    @Test
+    public void negotiatesByQualityPreferringGzipOnTies() {
+        assertEquals("gzip", Compression.negotiate("gzip, deflate, br", "notes.txt", 10_000));
+        assertEquals("gzip", Compression.negotiate("deflate, gzip", "notes.txt", 10_000));
+        assertEquals("deflate", Compression.negotiate("gzip;q=0.5, deflate", "data.csv", 10_000));
+        assertNull(Compression.negotiate("gzip;q=0, br", "data.json", 10_000));
+        assertNull(Compression.negotiate("br, zstd", "data.json", 10_000));
+    }
+
+    @Test
+    public void skipsCompressedTypesAndTinyFiles() {
+        assertNull(Compression.negotiate("gzip", "photo.jpg", 10_000));
+        assertNull(Compression.negotiate("gzip", "movie.mp4", 10_000));
+        assertNull(Compression.negotiate("gzip", "archive.zip", 10_000));
+        assertNull(Compression.negotiate("gzip", "notes.txt", 100));
+        assertNull(Compression.negotiate(null, "notes.txt", 10_000));
+    }
+
+    @Test
+    public void codingsRoundTrip() throws Exception {
+        byte[] content = "line of a log file\n".repeat(1000).getBytes(StandardCharsets.UTF_8);
+        for (String coding : new String[] { Compression.GZIP, Compression.DEFLATE }) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            try (OutputStream out = Compression.encoder(coding, encoded)) {
+                out.write(content);
+            }
+            assertTrue(encoded.size() < content.length / 10, coding + " should shrink repetitive text");
+            try (InputStream in = Compression.decoder(coding, new ByteArrayInputStream(encoded.toByteArray()))) {
+                assertArrayEquals(content, in.readAllBytes());
+            }
+        }
+    }
+}
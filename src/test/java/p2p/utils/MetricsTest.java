@@ -0,0 +1,56 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramIsExactForSmallValuesAndCloseForLargeOnes() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int micros = 1; micros <= 100; micros++) {
+            histogram.recordMicros(micros);
+        }
+        assertEquals(50, histogram.quantileMicros(0.5));
+        assertEquals(99, histogram.quantileMicros(0.99));
+        assertEquals(100, histogram.count());
+        assertEquals(5050, histogram.sumMicros());
+
+        histogram.recordMicros(3_000_000);
+        long max = histogram.quantileMicros(1.0);
+        assertTrue(max >= 3_000_000 && max < 3_000_000 * 1.02, "max " + max);
+    }
+
+    @Test
+    public void bucketBoundsCoverEveryValue() {
+        for (long value = 0; value < 1_000_000; value += 997) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.upperBound(index) >= value);
+            assertTrue(index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+        }
+    }
+
+    @Test
+    public void rendersTransfersAndRegisteredGauges() {
+        long started = Metrics.SENDS.start();
+        Metrics.SENDS.addBytes(4096);
+        Metrics.SENDS.finish(started, true);
+        Metrics.gauge("peerlink_test_gauge{pool=\"a\"}", "Test gauge.", () -> 7);
+        Metrics.gauge("peerlink_test_gauge{pool=\"b\"}", "Test gauge.", () -> 8);
+
+        String text = Metrics.toPrometheus();
+        assertTrue(text.contains("# TYPE peerlink_transfer_bytes_total counter\n"));
+        assertTrue(text.contains("peerlink_transfer_bytes_total{direction=\"send\"} " + Metrics.SENDS.bytes() + "\n"));
+        assertTrue(text.contains("peerlink_transfer_duration_seconds{direction=\"send\",quantile=\"0.99\"} "));
+        assertTrue(text.contains("# TYPE peerlink_test_gauge gauge\npeerlink_test_gauge{pool=\"a\"} 7\npeerlink_test_gauge{pool=\"b\"} 8\n"));
+    }
+
+    @Test
+    public void logQuotesValuesThatNeedIt() {
+        String line = Log.format(Log.Level.INFO, "share.started", "code", 51234, "file", "report 2.pdf",
+                "error", new java.io.IOException("Broken pipe"));
+        assertTrue(line.endsWith(" level=INFO event=share.started code=51234 file=\"report 2.pdf\" error=\"Broken pipe\""), line);
+    }
+}
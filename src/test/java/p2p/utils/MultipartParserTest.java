@@ -0,0 +1,159 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class MultipartParserTest {
+
+    private static final String BOUNDARY = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 7, 70, 4096, 1 << 20})
+    public void parsesSeveralFilesWithAnyChunking(int chunkSize) throws IOException {
+        byte[] first = randomBytes(200_000, 1);
+        byte[] second = randomBytes(3, 2);
+        byte[] body = new Body()
+                .field("comment", "hello")
+                .file("a.bin", "application/octet-stream", first)
+                .file("b.txt", "text/plain", second)
+                .close();
+
+        CollectingHandler handler = new CollectingHandler();
+        MultipartParser parser = new MultipartParser(BOUNDARY, handler);
+        for (int i = 0; i < body.length; i += chunkSize) {
+            parser.feed(body, i, Math.min(chunkSize, body.length - i));
+        }
+        parser.finish();
+
+        assertEquals(3, handler.parts.size());
+        assertEquals("comment", handler.parts.get(0).name);
+        assertNull(handler.parts.get(0).filename);
+        assertEquals("a.bin", handler.parts.get(1).filename);
+        assertEquals("b.txt", handler.parts.get(2).filename);
+        assertEquals("text/plain", handler.parts.get(2).contentType);
+        assertArrayEquals("hello".getBytes(StandardCharsets.UTF_8), handler.contents.get(0).toByteArray());
+        assertArrayEquals(first, handler.contents.get(1).toByteArray());
+        assertArrayEquals(second, handler.contents.get(2).toByteArray());
+    }
+
+    @Test
+    public void keepsBytesThatOnlyResembleTheDelimiter() throws IOException {
+        byte[] content = ("\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1) + "x\r\n--").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] body = new Body().file("tricky.bin", "application/octet-stream", content).close();
+
+        CollectingHandler handler = new CollectingHandler();
+        new MultipartParser(BOUNDARY, handler).parse(new ByteArrayInputStream(body));
+
+        assertArrayEquals(content, handler.contents.get(0).toByteArray());
+    }
+
+    @Test
+    public void decodesUtf8FilenamesAndStripsPaths() throws IOException {
+        byte[] body = new Body().file("C:\\Users\\me\\résumé.pdf", "application/pdf", new byte[] {1}).close();
+
+        CollectingHandler handler = new CollectingHandler();
+        new MultipartParser(BOUNDARY, handler).parse(new ByteArrayInputStream(body));
+
+        assertEquals("résumé.pdf", handler.parts.get(0).filename);
+    }
+
+    @Test
+    public void keepsFolderPathsWithoutEscapingTheFolder() throws IOException {
+        byte[] body = new Body().file("trip/../../etc/./passwd", "text/plain", new byte[] {1})
+                .file("C:\\Users\\me\\trip\\a.txt", "text/plain", new byte[] {2}).close();
+
+        CollectingHandler handler = new CollectingHandler();
+        new MultipartParser(BOUNDARY, handler).parse(new ByteArrayInputStream(body));
+
+        assertEquals("trip/etc/passwd", handler.parts.get(0).path);
+        assertEquals("passwd", handler.parts.get(0).filename);
+        assertEquals("Users/me/trip/a.txt", handler.parts.get(1).path);
+    }
+
+    @Test
+    public void rejectsTruncatedBody() {
+        byte[] body = new Body().file("a.bin", "application/octet-stream", new byte[100]).close();
+        byte[] truncated = new byte[body.length - 20];
+        System.arraycopy(body, 0, truncated, 0, truncated.length);
+
+        assertThrows(MultipartParser.MultipartException.class,
+                () -> new MultipartParser(BOUNDARY, new CollectingHandler()).parse(new ByteArrayInputStream(truncated)));
+    }
+
+    @Test
+    public void extractsQuotedBoundary() {
+        assertEquals("abc", MultipartParser.extractBoundary("multipart/form-data; boundary=\"abc\""));
+        assertEquals("xyz", MultipartParser.extractBoundary("multipart/form-data;boundary=xyz"));
+        assertNull(MultipartParser.extractBoundary("multipart/form-data"));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static class Body {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Body field(String name, String value) {
+            write("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+            write(value);
+            write("\r\n");
+            return this;
+        }
+
+        Body file(String filename, String contentType, byte[] content) {
+            write("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"" + filename
+                    + "\"\r\nContent-Type: " + contentType + "\r\n\r\n");
+            out.writeBytes(content);
+            write("\r\n");
+            return this;
+        }
+
+        byte[] close() {
+            write("--" + BOUNDARY + "--\r\n");
+            return out.toByteArray();
+        }
+
+        private void write(String s) {
+            out.writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static class CollectingHandler implements MultipartParser.PartHandler {
+
+        final List<MultipartParser.Part> parts = new ArrayList<>();
+        final List<ByteArrayOutputStream> contents = new ArrayList<>();
+
+        @Override
+        public void startPart(MultipartParser.Part part) {
+            parts.add(part);
+            contents.add(new ByteArrayOutputStream());
+        }
+
+        @Override
+        public void partData(byte[] data, int offset, int length) {
+            contents.get(contents.size() - 1).write(data, offset, length);
+        }
+
+        @Override
+        public void endPart() {
+        }
+    }
+}
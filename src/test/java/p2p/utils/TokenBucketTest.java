@@ -0,0 +1,50 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest {
+
+    @Test
+    public void unlimitedNeverPauses() {
+        TokenBucket bucket = new TokenBucket(0);
+
+        assertEquals(0, bucket.reserve(1L << 40));
+        assertEquals(Long.MAX_VALUE, bucket.quantum());
+    }
+
+    @Test
+    public void reservationsQueueBehindEachOthersDebt() {
+        // 1 MB/s with a 100 KB burst
+        TokenBucket bucket = new TokenBucket(1_000_000);
+
+        assertEquals(0, bucket.reserve(100_000));
+        long first = bucket.reserve(100_000);
+        long second = bucket.reserve(100_000);
+
+        assertNear(TimeUnit.MILLISECONDS.toNanos(100), first);
+        assertNear(TimeUnit.MILLISECONDS.toNanos(200), second);
+        assertEquals(50_000, bucket.quantum());
+    }
+
+    @Test
+    public void changingTheRateForgivesDebt() {
+        TokenBucket bucket = new TokenBucket(1_000_000);
+        bucket.reserve(10_000_000);
+
+        bucket.setRate(0);
+        assertEquals(0, bucket.reserve(1_000_000));
+        // Starts again with a full 200 KB burst
+        bucket.setRate(2_000_000);
+        assertNear(TimeUnit.MILLISECONDS.toNanos(400), bucket.reserve(1_000_000));
+    }
+
+    // Refill between calls makes the exact figure drift by a few microseconds
+    private static void assertNear(long expected, long actual) {
+        assertTrue(Math.abs(expected - actual) < TimeUnit.MILLISECONDS.toNanos(5), "expected ~" + expected + " but was " + actual);
+    }
+}
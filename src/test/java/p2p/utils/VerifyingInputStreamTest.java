@@ -0,0 +1,171 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class VerifyingInputStreamTest {
+
+    private static final int CHUNK = 1000;
+
+    private final byte[] content = new byte[10_500];
+    private final ChunkChecksums checksums;
+    private final byte[] sha256;
+
+    public VerifyingInputStreamTest() throws Exception {
+        new Random(17).nextBytes(content);
+        ChunkChecksums.Builder builder = new ChunkChecksums.Builder(CHUNK);
+        // Uneven writes, as a multipart parser would hand them over
+        for (int offset = 0; offset < content.length; offset += 777) {
+            builder.write(content, offset, Math.min(777, content.length - offset));
+        }
+        checksums = builder.build();
+        sha256 = MessageDigest.getInstance("SHA-256").digest(content);
+    }
+
+    @Test
+    public void passesIntactWholeFileAndRanges() throws Exception {
+        assertArrayEquals(content, readAll(0, content.length, content));
+        assertArrayEquals(Arrays.copyOfRange(content, 1500, 7200), readAll(1500, 5700, content));
+        // Ends with the short final chunk
+        assertArrayEquals(Arrays.copyOfRange(content, 9000, content.length), readAll(9000, 1500, content));
+    }
+
+    @Test
+    public void rejectsCorruptedChunkInRange() {
+        byte[] corrupted = content.clone();
+        corrupted[3456] ^= 1;
+        IOException e = assertThrows(IOException.class, () -> readAll(2000, 4000, corrupted));
+        assertEquals("Checksum mismatch in chunk 3", e.getMessage());
+    }
+
+    @Test
+    public void rejectsWholeFileWithWrongDigest() {
+        byte[] corrupted = content.clone();
+        // No chunk checksums on this stream, so only the SHA-256 can catch it
+        corrupted[10] ^= 1;
+        VerifyingInputStream in = new VerifyingInputStream(new ByteArrayInputStream(corrupted), 0, content.length, content.length)
+                .expectSha256(sha256);
+        assertThrows(IOException.class, in::readAllBytes);
+    }
+
+    @Test
+    public void rejectsTruncatedStream() {
+        byte[] truncated = Arrays.copyOf(content, 5000);
+        VerifyingInputStream in = new VerifyingInputStream(new ByteArrayInputStream(truncated), 0, content.length, content.length);
+        assertThrows(IOException.class, in::readAllBytes);
+    }
+
+    @Test
+    public void passesEncodedBodiesAsSent() throws Exception {
+        for (String coding : new String[] { Compression.GZIP, Compression.DEFLATE }) {
+            byte[] encoded = encode(coding, content);
+            assertArrayEquals(encoded, readEncoded(coding, encoded, encoded.length));
+            assertArrayEquals(encoded, readEncoded(coding, encoded, -1));
+
+            byte[] large = new byte[300_000];
+            new Random(5).nextBytes(large);
+            byte[] encodedLarge = encode(coding, large);
+            assertArrayEquals(encodedLarge, drain(new VerifyingInputStream(new ByteArrayInputStream(encodedLarge),
+                    0, large.length, large.length).encodedAs(coding, -1)));
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedEncodedBody() throws Exception {
+        for (String coding : new String[] { Compression.GZIP, Compression.DEFLATE }) {
+            byte[] encoded = encode(coding, content);
+            // Cut inside the trailer, where only the coding knows the body is short
+            byte[] truncated = Arrays.copyOf(encoded, encoded.length - 3);
+            assertThrows(IOException.class, () -> readEncoded(coding, truncated, -1));
+            assertThrows(IOException.class, () -> readEncoded(coding, encoded, encoded.length + 1));
+        }
+    }
+
+    @Test
+    public void withholdsTheEndOfAnEncodingOfTheWrongContent() throws Exception {
+        byte[] other = content.clone();
+        other[5000] ^= 1;
+        byte[] encoded = encode(Compression.GZIP, other);
+        InputStream in = encodedStream(Compression.GZIP, encoded, -1);
+        ByteArrayOutputStream relayed = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        IOException e = assertThrows(IOException.class, () -> {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                relayed.write(buffer, 0, n);
+            }
+        });
+        assertEquals("SHA-256 mismatch", e.getMessage());
+        assertTrue(relayed.size() < encoded.length);
+    }
+
+    @Test
+    public void rejectsCorruptedGzipTrailer() throws Exception {
+        byte[] encoded = encode(Compression.GZIP, content);
+        encoded[encoded.length - 1] ^= 1;
+        IOException e = assertThrows(IOException.class, () -> readEncoded(Compression.GZIP, encoded, -1));
+        assertEquals("gzip length mismatch", e.getMessage());
+    }
+
+    @Test
+    public void headerListsOnlyWholeChunksInsideRange() throws Exception {
+        ChunkChecksums header = ChunkChecksums.fromHeader(checksums.toHeader(1500, 5700, content.length));
+        assertEquals(2, header.firstChunk());
+        assertEquals(5, header.chunkCount());
+        assertEquals(checksums.crc(4), header.crc(4));
+        assertNull(checksums.toHeader(1500, 400, content.length));
+    }
+
+    private static byte[] encode(String coding, byte[] data) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        try (OutputStream out = Compression.encoder(coding, encoded)) {
+            out.write(data);
+        }
+        return encoded.toByteArray();
+    }
+
+    private InputStream encodedStream(String coding, byte[] encoded, long encodedLength) {
+        return new VerifyingInputStream(new ByteArrayInputStream(encoded), 0, content.length, content.length)
+                .expectSha256(sha256).encodedAs(coding, encodedLength);
+    }
+
+    private byte[] readEncoded(String coding, byte[] encoded, long encodedLength) throws IOException {
+        return drain(encodedStream(coding, encoded, encodedLength));
+    }
+
+    // Reads as large as a relay's, so the gzip header and trailer share them with data
+    private static byte[] drain(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[128 * 1024];
+        try (in) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] readAll(long offset, long length, byte[] source) throws IOException {
+        InputStream slice = new ByteArrayInputStream(source, (int) offset, (int) length);
+        ChunkChecksums ranged = ChunkChecksums.fromHeader(checksums.toHeader(offset, length, content.length));
+        try (VerifyingInputStream in = new VerifyingInputStream(slice, offset, length, content.length)
+                .expectChunks(ranged).expectSha256(sha256)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package p2p.utils;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ZipLayoutTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final List<byte[]> contents = new ArrayList<>();
+    private final List<byte[]> data = new ArrayList<>();
+    private final List<ZipLayout.Entry> entries = new ArrayList<>();
+
+    @Test
+    public void archiveReadsBackEntryForEntry() throws Exception {
+        byte[] text = "the quick brown fox jumps over the lazy dog\n".repeat(500).getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[50_000];
+        new Random(3).nextBytes(random);
+        addStored("photos/random.bin", random);
+        addDeflated("docs/fox.txt", text);
+        addStored("empty", new byte[0]);
+        addStored("docs/ünïcode.txt", "héllo".getBytes(StandardCharsets.UTF_8));
+        ZipLayout layout = new ZipLayout(entries, 1_700_000_000_000L);
+
+        byte[] archive = render(layout, 0, layout.length());
+        assertEquals(layout.length(), archive.length);
+
+        // ZipInputStream checks each entry's CRC and sizes from the local headers
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive))) {
+            for (int i = 0; i < entries.size(); i++) {
+                ZipEntry entry = zip.getNextEntry();
+                assertEquals(entries.get(i).name, entry.getName());
+                assertArrayEquals(contents.get(i), zip.readAllBytes());
+            }
+        }
+        // ZipFile goes through the central directory
+        Path file = tempDir.resolve("out.zip");
+        Files.write(file, archive);
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            assertEquals(entries.size(), zip.size());
+            assertArrayEquals(text, zip.getInputStream(zip.getEntry("docs/fox.txt")).readAllBytes());
+        }
+    }
+
+    @Test
+    public void anyRangeMatchesTheWholeArchive() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            byte[] content = new byte[i * 37];
+            new Random(i).nextBytes(content);
+            addStored("file-" + i, content);
+        }
+        ZipLayout layout = new ZipLayout(entries, 0);
+        byte[] whole = render(layout, 0, layout.length());
+
+        Random random = new Random(7);
+        for (int i = 0; i < 200; i++) {
+            long start = random.nextInt((int) layout.length());
+            long end = start + random.nextInt((int) (layout.length() - start) + 1);
+            assertArrayEquals(Arrays.copyOfRange(whole, (int) start, (int) end), render(layout, start, end));
+        }
+    }
+
+    @Test
+    public void manyEntriesGetZip64EndRecords() throws Exception {
+        for (int i = 0; i < 70_000; i++) {
+            addStored("f" + i, new byte[0]);
+        }
+        ZipLayout layout = new ZipLayout(entries, 0);
+        Path file = tempDir.resolve("many.zip");
+        Files.write(file, render(layout, 0, layout.length()));
+        try (ZipFile zip = new ZipFile(file.toFile())) {
+            assertEquals(70_000, zip.size());
+            assertEquals("f69999", zip.getEntry("f69999").getName());
+        }
+    }
+
+    @Test
+    public void entriesOverFourGigabytesGetZip64Sizes() throws Exception {
+        long huge = 5L * 1024 * 1024 * 1024;
+        List<ZipLayout.Entry> big = List.of(new ZipLayout.Entry("huge.bin", ZipLayout.STORED, huge, huge, 0),
+                new ZipLayout.Entry("after.txt", ZipLayout.STORED, 3, 3, 0));
+        ZipLayout layout = new ZipLayout(big, 0);
+
+        long[] emitted = new long[1];
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        layout.write(0, layout.length(), new ZipLayout.Sink() {
+            @Override
+            public void header(ByteBuffer bytes) {
+                emitted[0] += bytes.remaining();
+                tail.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            }
+
+            @Override
+            public void data(int entry, long position, long count) {
+                emitted[0] += count;
+            }
+        });
+        assertEquals(layout.length(), emitted[0]);
+        // The second entry starts past 4GB, so its central header carries a zip64 offset
+        String headers = new String(tail.toByteArray(), StandardCharsets.ISO_8859_1);
+        int central = headers.lastIndexOf("PK\u0001\u0002");
+        ByteBuffer header = ByteBuffer.wrap(tail.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("after.txt", headers.substring(central + 46, central + 55));
+        assertEquals(12, header.getShort(central + 30));
+        assertEquals(0xFFFFFFFF, header.getInt(central + 42));
+        long localOffset = 30 + "huge.bin".length() + 20 + huge;
+        assertEquals(localOffset, header.getLong(central + 55 + 4));
+    }
+
+    private void addStored(String name, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        contents.add(content);
+        data.add(content);
+        entries.add(new ZipLayout.Entry(name, ZipLayout.STORED, content.length, content.length, crc.getValue()));
+    }
+
+    private void addDeflated(String name, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(content);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        contents.add(content);
+        data.add(out.toByteArray());
+        entries.add(new ZipLayout.Entry(name, ZipLayout.DEFLATED, content.length, out.size(), crc.getValue()));
+    }
+
+    private byte[] render(ZipLayout layout, long start, long end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        layout.write(start, end, new ZipLayout.Sink() {
+            @Override
+            public void header(ByteBuffer bytes) {
+                out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            }
+
+            @Override
+            public void data(int entry, long position, long count) {
+                out.write(data.get(entry), (int) position, (int) count);
+            }
+        });
+        return out.toByteArray();
+    }
+}
@@ -1,5 +1,5 @@
 import React, { useState } from 'react';
-import FileUpload from './components/FileUpload';
+import FileUpload, { uploadFileInChunks } from './components/FileUpload';
 import FileDownload from './components/FileDownload';
 import InviteCode from './components/InviteCode';
 import './App.css';
@@ -25,33 +25,11 @@ function App() {
     }
     
     try {
-      const xhr = new XMLHttpRequest();
-      const formData = new FormData();
-      formData.append('file', file);
-      
-      xhr.upload.addEventListener('progress', (event) => {
-        if (event.lengthComputable) {
-          const percentComplete = (event.loaded / event.total) * 100;
-          console.log(`Upload progress: ${percentComplete.toFixed(1)}%`);
-          // You could add a progress bar here
-        }
+      const code = await uploadFileInChunks(file, (percentComplete) => {
+        console.log(`Upload progress: ${percentComplete.toFixed(1)}%`);
+        // You could add a progress bar here
       });
-      
-      xhr.onload = function() {
-        if (xhr.status === 200) {
-          const data = JSON.parse(xhr.responseText);
-          setPort(data.port);
-        } else {
-          throw new Error(`HTTP error! status: ${xhr.status}`);
-        }
-      };
-      
-      xhr.onerror = function() {
-        throw new Error('Network error occurred');
-      };
-      
-      xhr.open('POST', '/api/upload');
-      xhr.send(formData);
+      setPort(code);
     } catch (error) {
       console.error('Error uploading file:', error);
       alert('Failed to upload file. Please try again.');
@@ -13,8 +13,8 @@ const FileDownload = ({ onDownload, isDownloading }) => {
     }
     
     const port = parseInt(inviteCode.trim(), 10);
-    if (isNaN(port) || port <= 0 || port > 65535) {
-      setError('Please enter a valid port number (1-65535)');
+    if (!/^\d+$/.test(inviteCode.trim()) || port <= 0 || port > 2147483647) {
+      setError('Please enter a valid invite code (digits only)');
       return;
     }
     
@@ -45,7 +45,7 @@ const FileDownload = ({ onDownload, isDownloading }) => {
           id="inviteCode"
           value={inviteCode}
           onChange={(e) => setInviteCode(e.target.value)}
-          placeholder="Enter the invite code (port number)"
+          placeholder="Enter the invite code"
           className="input-field"
           disabled={isDownloading}
         />
@@ -1,5 +1,95 @@
 import React, { useState } from 'react';
 
+const CHUNK_SIZE = 8 * 1024 * 1024; // 8MB per chunk
+const PARALLEL_CHUNKS = 4;
+const CHUNK_ATTEMPTS = 3;
+const RETRY_BASE_MS = 500;
+
+// Remember unfinished uploads so a retry of the same file only sends missing chunks
+const resumeKey = (file) => `wind-upload:${file.name}:${file.size}:${file.lastModified}`;
+
+const startOrResumeUpload = async (file) => {
+  const savedId = localStorage.getItem(resumeKey(file));
+  if (savedId) {
+    const status = await fetch(`/api/upload/${savedId}`);
+    if (status.ok) {
+      const data = await status.json();
+      return { uploadId: data.uploadId, pending: data.missing, chunks: data.chunks };
+    }
+    localStorage.removeItem(resumeKey(file));
+  }
+
+  const params = new URLSearchParams({ filename: file.name, size: file.size, chunkSize: CHUNK_SIZE });
+  const init = await fetch(`/api/upload/init?${params}`, { method: 'POST' });
+  if (!init.ok) {
+    throw new Error(`HTTP error! status: ${init.status}`);
+  }
+  const data = await init.json();
+  localStorage.setItem(resumeKey(file), data.uploadId);
+  return { uploadId: data.uploadId, pending: [...Array(data.chunks).keys()], chunks: data.chunks };
+};
+
+// Waits before retry number `attempt`: doubling from RETRY_BASE_MS, with jitter so
+// parallel workers don't retry in step, and at least what Retry-After asks for
+const backoff = (attempt, retryAfterSeconds) => {
+  const exponential = RETRY_BASE_MS * 2 ** (attempt - 1) * (1 + Math.random());
+  const ms = Math.max(exponential, (Number(retryAfterSeconds) || 0) * 1000);
+  return new Promise((resolve) => setTimeout(resolve, ms));
+};
+
+// Server errors and network failures are retried; a 4xx fails at once, since
+// sending the same request again cannot fix it
+const sendChunk = async (file, uploadId, index) => {
+  const start = index * CHUNK_SIZE;
+  const body = file.slice(start, Math.min(start + CHUNK_SIZE, file.size));
+  for (let attempt = 1; ; attempt++) {
+    let response;
+    try {
+      response = await fetch(`/api/upload/${uploadId}/chunk/${index}`, { method: 'PUT', body });
+    } catch (error) {
+      if (attempt >= CHUNK_ATTEMPTS) {
+        throw error;
+      }
+      await backoff(attempt);
+      continue;
+    }
+    if (response.ok) {
+      return;
+    }
+    if (response.status < 500 || attempt >= CHUNK_ATTEMPTS) {
+      throw new Error(`HTTP error! status: ${response.status}`);
+    }
+    await backoff(attempt, response.headers.get('Retry-After'));
+  }
+};
+
+// Sends the file as chunks over several parallel requests and returns the invite code
+export const uploadFileInChunks = async (file, onProgress) => {
+  const { uploadId, pending, chunks } = await startOrResumeUpload(file);
+  let done = chunks - pending.length;
+  let next = 0;
+
+  const worker = async () => {
+    while (next < pending.length) {
+      const index = pending[next++];
+      await sendChunk(file, uploadId, index);
+      done++;
+      if (onProgress) {
+        onProgress(chunks === 0 ? 100 : (done / chunks) * 100);
+      }
+    }
+  };
+  await Promise.all(Array.from({ length: Math.min(PARALLEL_CHUNKS, pending.length) }, worker));
+
+  const complete = await fetch(`/api/upload/${uploadId}/complete`, { method: 'POST' });
+  if (!complete.ok) {
+    throw new Error(`HTTP error! status: ${complete.status}`);
+  }
+  localStorage.removeItem(resumeKey(file));
+  const data = await complete.json();
+  return data.port;
+};
+
 const FileUpload = ({ onFileUpload, isUploading }) => {
   const [file, setFile] = useState(null);
   const [dragActive, setDragActive] = useState(false);